@@ -0,0 +1,71 @@
+package org.frontcache.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ *
+ * Per request instance of cached response on cache hit:
+ * WebResponse.copy() (as CacheProcessorBase did before) vs overlay() of frozen cached instance
+ *
+ * Allocation per hit - run with GC profiler and compare gc.alloc.rate.norm (bytes/op)
+ *  java -jar target/benchmarks.jar CacheHitBenchmark -prof gc
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheHitBenchmark extends BaseBenchmark {
+
+	private WebResponse cached;
+
+	private byte[] includedContent;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++)
+			sb.append("<div class=\"coin\">coin ").append(i).append("</div>\n");
+
+		cached = new WebResponse("https://www.coinshome.net/en/welcome.htm", sb.toString().getBytes(), "30d", FCHeaders.COMPONENT_REFRESH_TYPE_REGULAR);
+		cached.setStatusCode(200);
+		cached.setDomain("coinshome.net");
+		cached.addHeader(FCHeaders.CONTENT_TYPE, "text/html;charset=UTF-8");
+		cached.addHeader("Content-Language", "en");
+		cached.addHeader("Cache-Control", "max-age=0");
+		cached.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, "30d");
+		cached.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_TAGS, "coins|welcome");
+		cached.addTags(Arrays.asList("coins", "welcome"));
+		cached.freeze(); // as in cache
+
+		includedContent = sb.append("<div>included</div>").toString().getBytes();
+	}
+
+	@Benchmark
+	public WebResponse copy() {
+		return cached.copy();
+	}
+
+	@Benchmark
+	public WebResponse overlay() {
+		return cached.overlay();
+	}
+
+	/**
+	 * hit with include substitution (FrontCacheEngine replaces content only)
+	 */
+	@Benchmark
+	public WebResponse overlayWithIncludes() {
+		WebResponse webResponse = cached.overlay();
+		webResponse.setContent(includedContent);
+		return webResponse;
+	}
+
+}
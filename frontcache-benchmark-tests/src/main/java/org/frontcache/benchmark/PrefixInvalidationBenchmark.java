@@ -0,0 +1,83 @@
+package org.frontcache.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.frontcache.cache.impl.KeyPrefixIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * 
+ * Latency of prefix invalidation (e.g. everything under /en/catalog-7/) at 1M keys:
+ * KeyPrefixIndex (radix trie) vs full key scan with indexOf (as L1 / in-memory caches did before)
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrefixInvalidationBenchmark extends BaseBenchmark {
+
+	private static final String HOST = "https://www.coinshome.net";
+	
+	private static final int CATALOGS = 1000;
+	
+	@Param({"1000000"})
+	private int keysCount;
+	
+	private KeyPrefixIndex prefixIndex;
+	
+	private List<String> keys;
+
+	private int counter = 0;
+	
+	@Setup
+	public void setup() {
+		prefixIndex = new KeyPrefixIndex();
+		keys = new ArrayList<String>(keysCount);
+		for (int i = 0; i < keysCount; i++)
+		{
+			String key = HOST + "/en/catalog-" + (i % CATALOGS) + "/item-" + i + ".htm";
+			keys.add(key);
+			prefixIndex.put(key);
+		}
+	}
+	
+	private String nextPrefix() {
+		return "/en/catalog-" + (counter++ % CATALOGS) + "/";
+	}
+
+	/**
+	 * find and remove keys under prefix (keys are put back to keep index size stable)
+	 */
+	@Benchmark
+	public int trieInvalidation() {
+		List<String> matched = prefixIndex.getKeysByPrefix(nextPrefix());
+		for (String key : matched)
+			prefixIndex.remove(key);
+		
+		for (String key : matched)
+			prefixIndex.put(key);
+		
+		return matched.size();
+	}
+
+	/**
+	 * find keys under prefix with full scan 
+	 */
+	@Benchmark
+	public int scanInvalidation() {
+		String prefix = nextPrefix();
+		int matched = 0;
+		for (String key : keys)
+			if (-1 < key.indexOf(prefix))
+				matched++;
+		
+		return matched;
+	}
+
+}
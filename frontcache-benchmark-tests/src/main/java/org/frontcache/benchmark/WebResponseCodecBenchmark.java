@@ -0,0 +1,78 @@
+package org.frontcache.benchmark;
+
+import java.util.Arrays;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+import org.frontcache.core.WebResponseCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * 
+ * WebResponse metadata serialization - Gson (legacy L2 format) vs WebResponseCodec
+ *
+ */
+public class WebResponseCodecBenchmark extends BaseBenchmark {
+
+	// same config as in LuceneIndexManager
+	private final Gson gson = new GsonBuilder().addSerializationExclusionStrategy(new ExclusionStrategy() {
+
+		@Override
+		public boolean shouldSkipField(FieldAttributes att) {
+			return false;
+		}
+
+		@Override
+		public boolean shouldSkipClass(Class<?> arg0) {
+			return byte[].class.equals(arg0);
+		}
+	}).create();
+
+	private WebResponse webResponse;
+	
+	private String json;
+	
+	private byte[] meta;
+
+	@Setup
+	public void setup() {
+		webResponse = new WebResponse("https://www.coinshome.net/en/welcome.htm", null, "30d", FCHeaders.COMPONENT_REFRESH_TYPE_REGULAR);
+		webResponse.setStatusCode(200);
+		webResponse.setDomain("coinshome.net");
+		webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html;charset=UTF-8");
+		webResponse.addHeader("Content-Language", "en");
+		webResponse.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, "30d");
+		webResponse.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_TAGS, "coins|welcome");
+		webResponse.addTags(Arrays.asList("coins", "welcome"));
+		
+		json = gson.toJson(webResponse);
+		meta = WebResponseCodec.encode(webResponse);
+	}
+
+	@Benchmark
+	public String gsonEncode() {
+		return gson.toJson(webResponse);
+	}
+
+	@Benchmark
+	public WebResponse gsonDecode() {
+		return gson.fromJson(json, WebResponse.class);
+	}
+
+	@Benchmark
+	public byte[] codecEncode() {
+		return WebResponseCodec.encode(webResponse);
+	}
+
+	@Benchmark
+	public WebResponse codecDecode() {
+		return WebResponseCodec.decode(meta);
+	}
+
+}
@@ -54,6 +54,7 @@ import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.frontcache.cache.CacheKeyNormalizer;
 import org.frontcache.cache.CacheManager;
 import org.frontcache.cache.CacheProcessor;
 import org.frontcache.core.DomainContext;
@@ -553,6 +554,7 @@ public class FrontCacheEngine {
 			portStr = ":" + port;
 
 		String currentRequestURL = context.getFrontCacheProtocol() + "://" + context.getFrontCacheHost() + portStr + context.getRequestURI() + context.getRequestQueryString();
+		currentRequestURL = CacheKeyNormalizer.getInstance().normalize(context.getDomainContext().getDomain(), currentRequestURL); // cache key
 		context.setCurrentRequestURL(currentRequestURL);
 		logger.debug("currentRequestURL: " + currentRequestURL);
 		
@@ -592,16 +594,27 @@ public class FrontCacheEngine {
 
 			if (null != webResponse)
 			{
+				// streaming - page is sent while includes are resolved
+				if (isStreamed(webResponse, context, includeProcessor))
+				{
+					addResponseHeaders(webResponse, context);
+					writeResponseWithIncludes(webResponse, currentRequestBaseURL, requestHeaders, context);
+					
+					if (null != context.getHttpClientResponse())
+						context.getHttpClientResponse().close();
+					
+					return;
+				}
+				
 				// include processor
 				// don't process includes if request from Frontcache (e.g. Browser -> FC -> [FC] -> Origin)
-				if (!context.getRequestFromFrontcache() && null != webResponse.getContent())
+				if (!context.getRequestFromFrontcache() && -1 < webResponse.getContentLenth())
 				{
-					// check process includes with recursion (resolve includes up to deepest level defined in includeProcessor)
-					int recursionLevel = 0;
-					while (includeProcessor.hasIncludes(webResponse, recursionLevel++))
+					// nested includes are resolved by include processor (up to deepest level defined in includeProcessor)
+					if (includeProcessor.hasIncludes(webResponse, 0))
 					{
 						// include processor return new webResponse with processed includes and merged headers
-						WebResponse incWebResponse = includeProcessor.processIncludes(webResponse, currentRequestBaseURL, requestHeaders, httpClient, context, recursionLevel);
+						WebResponse incWebResponse = includeProcessor.processIncludes(webResponse, currentRequestBaseURL, requestHeaders, httpClient, context, 1);
 						
 						// copy content only (cache setting use this (parent), headers are merged inside IncludeProcessor )
 						webResponse.setContent(incWebResponse.getContent());
@@ -622,8 +635,21 @@ public class FrontCacheEngine {
 							INCLUDE_LEVEL_TOP_LEVEL); // includeLevel
 				}
 				
+				boolean notModified = false;
+				String eTag = webResponse.getHeader(FCHeaders.X_FRONTCACHE_COMPONENT_ETAG); // include free content only
+				if (null != eTag && 200 == webResponse.getStatusCode())
+				{
+					eTag = FCUtils.representationETag(eTag, context.isGzipRequested()); // stored compressed content is sent as is to clients accepting gzip
+					context.getResponse().setHeader(FCHeaders.ETAG, eTag); // instead of origin's ETag
+					
+					notModified = FCUtils.isETagMatched(eTag, httpRequest.getHeader(FCHeaders.IF_NONE_MATCH));
+					if (notModified)
+						webResponse.setStatusCode(304); // per request instance
+				}
+				
 				addResponseHeaders(webResponse, context);
-				writeResponse(webResponse, context);
+				if (!notModified && !"HEAD".equalsIgnoreCase(httpRequest.getMethod())) // HEAD - headers only (component can be loaded from cache without content)
+					writeResponse(webResponse, context);
 				
 				if (null != context.getHttpClientResponse())
 					context.getHttpClientResponse().close();
@@ -693,15 +719,36 @@ public class FrontCacheEngine {
 	private void writeResponse(WebResponse webResponse, RequestContext context) throws Exception {
 
 		// there is no body to send
-		if (null == webResponse.getContent()) {
+		if (-1 == webResponse.getContentLenth()) {
 			return;
 		}
 		
 		HttpServletResponse servletResponse = context.getResponse();
 		servletResponse.setCharacterEncoding("UTF-8");
+		
+		byte[] body;
+		if (webResponse.isContentGzipped() && context.isGzipRequested())
+		{
+			// stored compressed - send as is
+			body = webResponse.getGzippedContent();
+			servletResponse.setHeader("Content-Encoding", "gzip");
+			servletResponse.setContentLength(body.length);
+		} else {
+			body = webResponse.getContent();
+		}
+		
+		if (webResponse.isContentGzipped())
+		{
+			// representation depends on Accept-Encoding
+			String vary = servletResponse.getHeader("Vary");
+			if (null == vary)
+				servletResponse.setHeader("Vary", "Accept-Encoding");
+			else if (-1 == vary.toLowerCase().indexOf("accept-encoding"))
+				servletResponse.setHeader("Vary", vary + ", Accept-Encoding");
+		}
+		
 		OutputStream outStream = servletResponse.getOutputStream();
 		try {
-			byte[] body = webResponse.getContent();
 			FCUtils.writeResponse(new ByteArrayInputStream(body), outStream);
 		}
 		finally {
@@ -717,6 +764,55 @@ public class FrontCacheEngine {
 		return;
 	}
 	
+	/**
+	 * headers are sent before includes are resolved, so requests with include trace to HTTP headers are buffered,
+	 * HEAD requests are buffered as well (headers only)
+	 * 
+	 * @param webResponse
+	 * @param context
+	 * @param includeProcessor
+	 * @return true if page is sent while includes are resolved (see IncludeProcessor.writeIncludes())
+	 */
+	static boolean isStreamed(WebResponse webResponse, RequestContext context, IncludeProcessor includeProcessor)
+	{
+		return !context.getRequestFromFrontcache() && -1 < webResponse.getContentLenth() // don't process includes if request from Frontcache
+				&& includeProcessor.isStreaming() 
+				&& !context.getLogToHTTPHeaders()
+				&& !"HEAD".equalsIgnoreCase(context.getRequest().getMethod())
+				&& includeProcessor.hasIncludes(webResponse, 0);
+	}
+	
+	/**
+	 * content and includes are written as soon as they are ready (see IncludeProcessor.writeIncludes())
+	 * 
+	 * @param webResponse
+	 * @param currentRequestBaseURL
+	 * @param requestHeaders
+	 * @param context
+	 * @throws Exception
+	 */
+	private void writeResponseWithIncludes(WebResponse webResponse, String currentRequestBaseURL, Map<String, List<String>> requestHeaders, RequestContext context) throws Exception {
+
+		HttpServletResponse servletResponse = context.getResponse();
+		servletResponse.setCharacterEncoding("UTF-8");
+		
+		OutputStream outStream = servletResponse.getOutputStream();
+		try {
+			includeProcessor.writeIncludes(webResponse, currentRequestBaseURL, requestHeaders, httpClient, context, outStream);
+		}
+		finally {
+			try {
+				outStream.flush();
+				outStream.close();
+			}
+			catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+		
+		return;
+	}
+	
 	private void addResponseHeaders(RequestContext context) {
 		HttpServletResponse servletResponse = context.getResponse();
 		Map<String, List<String>> originResponseHeaders = context.getOriginResponseHeaders();
@@ -765,6 +861,9 @@ public class FrontCacheEngine {
 		
 		if (webResponse.getHeaders() != null) {
 			for (String name : webResponse.getHeaders().keySet()) {
+				if (FCHeaders.X_FRONTCACHE_COMPONENT_INCLUDES.equals(name) || FCHeaders.X_FRONTCACHE_COMPONENT_ETAG.equals(name))
+					continue; // internal - describes stored content (ETag is sent as representation ETag)
+				
 				for (String value : webResponse.getHeaders().get(name)) {
 					
 					if (null == servletResponse.getHeader(name)) // if header already exist (e.g. in case of WebFilter) - do not duplicate
@@ -0,0 +1,328 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.frontcache.FCConfig;
+
+/**
+ *
+ * Cache key normalization - different URLs of the same page share one cache entry
+ *  - sort-params    - query params are sorted by name (?b=2&a=1 -> ?a=1&b=2)
+ *  - drop-params    - params removed from key (e.g. utm_*,gclid), '*' at the end - prefix
+ *  - keep-params    - whitelist - other params are removed from key
+ *  - lowercase-path - path is case insensitive (host is always lowercased)
+ *
+ * Settings are global (front-cache.cache-key.*) and can be overridden per domain (front-cache.domain.[domain].cache-key.*).
+ * Keys are normalized for requests, includes and invalidation. Origin is called with original URL.
+ *
+ */
+public class CacheKeyNormalizer {
+
+	private static final String KEY_PREFIX = "front-cache.cache-key.";
+
+	private static final int MAX_TRACKED_KEYS = 1000; // collapse stats - recently used normalized keys
+
+	private static final int MAX_TRACKED_VARIANTS = 100; // distinct raw keys counted per normalized key
+
+	private static final int TOP_COLLAPSED_AMOUNT = 10;
+
+	private static final KeySettings NO_NORMALIZATION = new KeySettings();
+
+	private final Properties properties;
+
+	private final Map<String, KeySettings> domainSettings = new ConcurrentHashMap<String, KeySettings>();
+
+	private final KeySettings defaultSettings;
+
+	private final Map<String, Set<Integer>> variants = new LinkedHashMap<String, Set<Integer>>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Set<Integer>> eldest) {
+			return size() > MAX_TRACKED_KEYS;
+		}
+	}; // LRU: normalized key -> hashes of raw keys, guarded by 'variants'
+
+	private final AtomicLong normalizedKeys = new AtomicLong(); // requests with key changed by normalization
+
+	private static class InstanceHolder {
+		private static final CacheKeyNormalizer INSTANCE = new CacheKeyNormalizer(FCConfig.getProperties());
+	}
+
+	public static CacheKeyNormalizer getInstance() {
+		return InstanceHolder.INSTANCE;
+	}
+
+	public CacheKeyNormalizer(Properties properties) {
+		this.properties = properties;
+		this.defaultSettings = loadSettings(KEY_PREFIX, NO_NORMALIZATION);
+	}
+
+	private KeySettings getSettings(String domain)
+	{
+		if (null == domain)
+			return defaultSettings;
+
+		KeySettings settings = domainSettings.get(domain);
+		if (null == settings)
+		{
+			settings = loadSettings("front-cache.domain." + domain.replace('.', '_') + ".cache-key.", defaultSettings);
+			domainSettings.put(domain, settings);
+		}
+
+		return settings;
+	}
+
+	private KeySettings loadSettings(String prefix, KeySettings defaults)
+	{
+		KeySettings settings = new KeySettings();
+		settings.sortParams = getBoolean(prefix + "sort-params", defaults.sortParams);
+		settings.lowercasePath = getBoolean(prefix + "lowercase-path", defaults.lowercasePath);
+		settings.dropParams = getList(prefix + "drop-params", defaults.dropParams);
+		settings.keepParams = getList(prefix + "keep-params", defaults.keepParams);
+		settings.enabled = settings.sortParams || settings.lowercasePath || !settings.dropParams.isEmpty() || !settings.keepParams.isEmpty();
+		return settings;
+	}
+
+	private boolean getBoolean(String key, boolean defaultValue)
+	{
+		String value = properties.getProperty(key);
+		return (null == value) ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	private List<String> getList(String key, List<String> defaultValue)
+	{
+		String value = properties.getProperty(key);
+		if (null == value)
+			return defaultValue;
+
+		List<String> list = new ArrayList<String>();
+		for (String item : value.split(","))
+			if (0 < item.trim().length())
+				list.add(item.trim());
+
+		return list;
+	}
+
+	/**
+	 *
+	 * @param domain
+	 * @param url - e.g. http://www.example.com/en/welcome.htm?b=2&a=1
+	 * @return cache key for URL
+	 */
+	public String normalize(String domain, String url)
+	{
+		KeySettings settings = getSettings(domain);
+		if (!settings.enabled || null == url)
+			return url;
+
+		int fragmentIdx = url.indexOf('#');
+		String key = (-1 < fragmentIdx) ? url.substring(0, fragmentIdx) : url;
+
+		int queryIdx = key.indexOf('?');
+		String base = (-1 < queryIdx) ? key.substring(0, queryIdx) : key;
+		String query = (-1 < queryIdx) ? key.substring(queryIdx + 1) : "";
+
+		StringBuilder sb = new StringBuilder(url.length());
+		sb.append(normalizeBase(base, settings));
+
+		List<String> params = new ArrayList<String>();
+		for (String param : query.split("&"))
+			if (0 < param.length() && isKept(getParamName(param), settings))
+				params.add(param);
+
+		if (settings.sortParams)
+			Collections.sort(params, PARAM_NAME_COMPARATOR); // stable - values of repeated param keep order
+
+		for (int i = 0; i < params.size(); i++)
+			sb.append((0 == i) ? '?' : '&').append(params.get(i));
+
+		String normalized = sb.toString();
+		trackVariant(normalized, url); // raw key in canonical form is a variant as well
+		if (normalized.equals(url))
+			return url;
+
+		normalizedKeys.incrementAndGet();
+		return normalized;
+	}
+
+	/**
+	 *
+	 * @param domain
+	 * @param prefix - path (e.g. /en/catalog/) or full URL prefix (e.g. http://www.example.com/en/catalog/)
+	 * @return prefix of normalized keys (query params are not normalized)
+	 */
+	public String normalizePrefix(String domain, String prefix)
+	{
+		KeySettings settings = getSettings(domain);
+		if (!settings.enabled || null == prefix)
+			return prefix;
+
+		int queryIdx = prefix.indexOf('?');
+		if (-1 < queryIdx)
+			return normalizeBase(prefix.substring(0, queryIdx), settings) + prefix.substring(queryIdx);
+
+		return normalizeBase(prefix, settings);
+	}
+
+	/**
+	 * @param filter - URL or invalidation tag
+	 * @return normalized key for URL, tags are returned as is
+	 */
+	public String normalizeFilter(String domain, String filter)
+	{
+		if (null == filter || -1 == filter.indexOf("://"))
+			return filter;
+
+		return normalize(domain, filter);
+	}
+
+	/**
+	 * scheme and host are lowercased, path - if lowercase-path
+	 */
+	private static String normalizeBase(String base, KeySettings settings)
+	{
+		int schemeIdx = base.indexOf("://");
+		if (-1 == schemeIdx)
+			return settings.lowercasePath ? base.toLowerCase() : base;
+
+		int pathIdx = base.indexOf('/', schemeIdx + "://".length());
+		if (-1 == pathIdx)
+			return base.toLowerCase();
+
+		String path = base.substring(pathIdx);
+		return base.substring(0, pathIdx).toLowerCase() + (settings.lowercasePath ? path.toLowerCase() : path);
+	}
+
+	private static String getParamName(String param)
+	{
+		int idx = param.indexOf('=');
+		return (-1 < idx) ? param.substring(0, idx) : param;
+	}
+
+	private static boolean isKept(String name, KeySettings settings)
+	{
+		if (!settings.keepParams.isEmpty() && !matches(name, settings.keepParams))
+			return false;
+
+		return !matches(name, settings.dropParams);
+	}
+
+	private static boolean matches(String name, List<String> patterns)
+	{
+		for (String pattern : patterns)
+		{
+			if (pattern.endsWith("*"))
+			{
+				if (name.startsWith(pattern.substring(0, pattern.length() - 1)))
+					return true;
+			} else if (pattern.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * counts distinct raw keys (by hash) of recently used normalized keys - least recently used key is dropped when MAX_TRACKED_KEYS are tracked
+	 */
+	private void trackVariant(String normalized, String raw)
+	{
+		synchronized (variants) {
+			Set<Integer> rawKeyHashes = variants.get(normalized);
+			if (null == rawKeyHashes)
+			{
+				rawKeyHashes = new HashSet<Integer>();
+				variants.put(normalized, rawKeyHashes);
+			}
+
+			if (rawKeyHashes.size() < MAX_TRACKED_VARIANTS)
+				rawKeyHashes.add(raw.hashCode());
+		}
+	}
+
+	/**
+	 * @return normalized key -> amount of distinct raw keys (including canonical one, up to MAX_TRACKED_VARIANTS) seen for it
+	 */
+	public Map<String, Integer> getCollapseStats()
+	{
+		Map<String, Integer> stats = new HashMap<String, Integer>();
+		synchronized (variants) {
+			for (Map.Entry<String, Set<Integer>> entry : variants.entrySet())
+				stats.put(entry.getKey(), entry.getValue().size());
+		}
+
+		return stats;
+	}
+
+	public void addStatus(Map<String, String> status) {
+		final Map<String, Integer> stats = getCollapseStats();
+		List<String> keys = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : stats.entrySet())
+			if (1 < entry.getValue())
+				keys.add(entry.getKey()); // several raw keys share cache entry
+		Collections.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String k1, String k2) {
+				return stats.get(k2).compareTo(stats.get(k1));
+			}
+		});
+
+		StringBuilder top = new StringBuilder();
+		for (int i = 0; i < keys.size() && i < TOP_COLLAPSED_AMOUNT; i++)
+			top.append((0 == i) ? "" : ", ").append(keys.get(i)).append(" (").append(stats.get(keys.get(i))).append(")");
+
+		status.put("cache-key.normalized", "" + normalizedKeys.get());
+		status.put("cache-key.collapsed-keys", "" + keys.size());
+		status.put("cache-key.top-collapsed", top.toString());
+	}
+
+	private static final Comparator<String> PARAM_NAME_COMPARATOR = new Comparator<String>() {
+		@Override
+		public int compare(String p1, String p2) {
+			return getParamName(p1).compareTo(getParamName(p2));
+		}
+	};
+
+	private static class KeySettings {
+
+		private boolean enabled = false;
+
+		private boolean sortParams = false;
+
+		private boolean lowercasePath = false;
+
+		private List<String> dropParams = Collections.emptyList();
+
+		private List<String> keepParams = Collections.emptyList();
+	}
+
+}
@@ -43,6 +43,14 @@ public interface CacheProcessor {
 	
 	public void removeFromCache(String domain, String filter);
 	
+	/**
+	 * Removes entries under URL prefix
+	 * 
+	 * @param domain
+	 * @param prefix - path (e.g. /en/catalog/ for any host) or full URL prefix (e.g. http://www.example.com/en/catalog/)
+	 */
+	public void removeFromCacheByPrefix(String domain, String prefix);
+	
 	public void removeFromCacheAll(String domain);
 	
 	public WebResponse processRequest(String urlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context) throws FrontCacheException;
@@ -51,7 +59,31 @@ public interface CacheProcessor {
 	
 	public List<String> getCachedKeys();
 	
-	public void doSoftInvalidation(String currentRequestURL, String originUrlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context);
+	/**
+	 * Schedules async refresh of expired soft refresh component
+	 * 
+	 * @param currentRequestURL
+	 * @param originUrlStr
+	 * @param requestHeaders
+	 * @param client
+	 * @param context
+	 * @param expireTimeMillis - when cached component is expired (older are refreshed first)
+	 */
+	public void doSoftInvalidation(String currentRequestURL, String originUrlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, long expireTimeMillis);
+	
+	/**
+	 * 
+	 * @param expireTimeMillis - when cached component is expired
+	 * @return true if expired component is kept in cache (stale-if-error grace period) to be served when origin fails
+	 */
+	public boolean isStaleIfError(long expireTimeMillis);
+	
+	/**
+	 * 
+	 * @param webResponse - expired component
+	 * @return true if expired component is kept in cache for conditional request to origin (ETag / Last-Modified revalidation)
+	 */
+	public boolean isRevalidatable(WebResponse webResponse);
 	
 	public void patch();	
 	
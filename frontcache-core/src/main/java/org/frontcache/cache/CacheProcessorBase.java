@@ -24,8 +24,11 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.client.HttpClient;
 import org.frontcache.core.FCHeaders;
@@ -34,6 +37,8 @@ import org.frontcache.core.FrontCacheException;
 import org.frontcache.core.RequestContext;
 import org.frontcache.core.WebResponse;
 import org.frontcache.hystrix.FC_ThroughCache;
+import org.frontcache.include.IncludeScanner;
+import org.frontcache.include.IncludeScanner.IncludeTag;
 import org.frontcache.reqlog.RequestLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,13 +47,49 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 
 	protected Logger logger = LoggerFactory.getLogger(getClass());
 	
-    protected ExecutorService softInvalidationExecutor = null;
+    protected RefreshScheduler refreshScheduler = new RefreshScheduler(); // soft refreshes
+    
+    private final RefreshAhead refreshAhead = new RefreshAhead(); // background refresh of hot components before expiration
+    
+    private final CacheVariants variants = new CacheVariants(); // components vary by request headers
+    
+    private final NegativeCache negativeCache = new NegativeCache(); // short TTL for 404 and redirects
+
+	private boolean gzipContent = true; // store text content gzip compressed (served as is to clients accepting gzip)
+
+	private int gzipMinSize = 1024; // small content is not worth compressing
+
+	// miss coalescing - concurrent misses for the same URL wait for the first one (single origin call)
+	private boolean missCoalescing = true;
+	
+	private final Map<String, Boolean> domainMissCoalescing = new HashMap<String, Boolean>(); // per domain overrides
+	
+	private long missCoalescingTimeout = 5000; // ms
+	
+	private final Map<String, CompletableFuture<WebResponse>> inFlightMisses = new ConcurrentHashMap<String, CompletableFuture<WebResponse>>();
+	
+	private final AtomicLong coalescedRequests = new AtomicLong();
+	
+	private final AtomicLong coalescingTimeouts = new AtomicLong();
+	
+	// stale-if-error - expired (regular refresh) components are kept in cache for grace period and served when origin fails
+	private long staleIfErrorGrace = 0; // ms, 0 - disabled
+	
+	private final AtomicLong staleIfErrorServed = new AtomicLong();
+	
+	// revalidation - expired components with ETag / Last-Modified are requested with If-None-Match / If-Modified-Since, 304 extends TTL of cached copy
+	private boolean revalidate = true;
+	
+	private final AtomicLong revalidationRequests = new AtomicLong();
+	
+	private final AtomicLong revalidationNotModified = new AtomicLong();
 
 	private static final String[] NON_PERSISTENT_HEADERS = new String[]{
 			"Set-Cookie", 
 			"Date",
 			FCHeaders.X_FRONTCACHE_ID,
 			FCHeaders.X_FRONTCACHE_COMPONENT,
+			FCHeaders.X_FRONTCACHE_STALE_IF_ERROR,
 //			FCHeaders.X_FRONTCACHE_FALLBACK_IS_USED, - if you see it in cache - something wrong - requests with fallbacks should not be cached
 //			FCHeaders.X_FRONTCACHE_COMPONENT_CACHE_LEVEL,
 //			FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE,
@@ -62,7 +103,68 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 			FCHeaders.X_FRONTCACHE_TRACE_REQUEST
 		};
 	
+	public static final String STALE_IF_ERROR_KEY = "front-cache.cache-processor.stale-if-error"; // grace period e.g. 1h, 0 - disabled
+	
+	public static final String REVALIDATE_RETENTION_KEY = "front-cache.cache-processor.revalidate-retention"; // e.g. 1d, 0 - disabled
+	
+	private static final long REVALIDATE_RETENTION_DEFAULT = 3600 * 1000; // 1h
+	
+	/**
+	 * 
+	 * @param properties
+	 * @return stale-if-error grace period (ms), 0 if disabled
+	 */
+	public static long getStaleIfErrorGrace(Properties properties)
+	{
+		String graceStr = properties.getProperty(STALE_IF_ERROR_KEY);
+		if (null == graceStr)
+			return 0;
+		
+		long graceSec = FCUtils.maxAgeStr2Int(graceStr.trim());
+		return (0 < graceSec) ? graceSec * 1000 : 0;
+	}
+	
+	/**
+	 * 
+	 * @param properties
+	 * @return how long (ms) expired components with ETag / Last-Modified are kept in L2 for revalidation, 0 if disabled
+	 */
+	public static long getRevalidateRetention(Properties properties)
+	{
+		String revalidateStr = properties.getProperty("front-cache.cache-processor.revalidate");
+		if (null != revalidateStr && !Boolean.parseBoolean(revalidateStr.trim()))
+			return 0;
+		
+		String retentionStr = properties.getProperty(REVALIDATE_RETENTION_KEY);
+		if (null == retentionStr)
+			return REVALIDATE_RETENTION_DEFAULT;
+		
+		long retentionSec = FCUtils.maxAgeStr2Int(retentionStr.trim());
+		return (0 < retentionSec) ? retentionSec * 1000 : 0;
+	}
+	
+	/**
+	 * 
+	 * @param webResponse
+	 * @return true if component has validators (ETag / Last-Modified) and TTL from origin (can be revalidated after expiration)
+	 */
+	public static boolean hasValidators(WebResponse webResponse)
+	{
+		return null != webResponse.getHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE) // TTL can be extended
+				&& (null != webResponse.getHeaderIgnoreCase(FCHeaders.ETAG) || null != webResponse.getHeaderIgnoreCase(FCHeaders.LAST_MODIFIED));
+	}
+	
 	public abstract WebResponse getFromCacheImpl(String url);
+	
+	/**
+	 * 
+	 * @param url
+	 * @return cached component, content can be missing (for HEAD requests) - implementations may skip loading content
+	 */
+	public WebResponse getMetadataFromCacheImpl(String url)
+	{
+		return getFromCacheImpl(url);
+	}
 
 	@Override
 	public final WebResponse getFromCache(String url)
@@ -83,14 +185,31 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 		long lengthBytes = -1;
 		
 		String currentRequestURL = context.getCurrentRequestURL();
+		String domain = context.getDomainContext().getDomain();
+		
+		String cacheKey = variants.getKey(currentRequestURL, variants.getVaryHeaders(domain, currentRequestURL), requestHeaders); // URL or variant key
 		
-		WebResponse cachedWebResponse = new FC_ThroughCache(this, currentRequestURL, context).execute();
+		WebResponse cachedWebResponse = null;
+		if (isHeadRequest(context))
+		{
+			// no body is sent - fresh component is served from metadata (content is not loaded)
+			cachedWebResponse = new FC_ThroughCache(this, cacheKey, context, true).execute();
+			if (null != cachedWebResponse && !isFresh(cachedWebResponse, context.getClientType()))
+				cachedWebResponse = null; // regular processing (expiration, refresh from origin) needs content
+		}
+		
+		if (null == cachedWebResponse)
+			cachedWebResponse = new FC_ThroughCache(this, cacheKey, context).execute();
 		
 		// isDynamicForClientType depends on clientType (bot|browser) - maxAge="[bot|browser:]30d"
 		// content is cached for bots and dynamic for browsers
 		// when dynamic - don't update cache
 		boolean isCacheableForClientType = true; // true - save/update to cache (default value is incorrect when include is pure dynamic);  false - don't save/update to cache
 		
+		WebResponse staleWebResponse = null; // expired component kept for stale-if-error
+		
+		WebResponse expiredWebResponse = null; // expired component kept for revalidation
+		
 		if (null != cachedWebResponse)
 		{
 			String clientType = context.getClientType(); // bot | browser
@@ -107,21 +226,69 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 				if (FCHeaders.COMPONENT_REFRESH_TYPE_SOFT.equalsIgnoreCase(refreshType))
 				{
 					// soft expiration
-					doSoftInvalidation(currentRequestURL, originUrlStr, requestHeaders, client, context);
+					Long expireTimeMillis = expireTimeMap.get(clientType);
+					doSoftInvalidation(cacheKey, originUrlStr, requestHeaders, client, context, (null == expireTimeMillis) ? 0 : expireTimeMillis);
 				} else {
 					// regular expiration
-					removeFromCache(context.getDomainContext().getDomain(), currentRequestURL);
+					Long expireTimeMillis = expireTimeMap.get(clientType);
+					if (null != expireTimeMillis && isStaleIfError(expireTimeMillis))
+						staleWebResponse = cachedWebResponse; // keep in cache until origin responds
+					
+					if (isRevalidatable(cachedWebResponse))
+						expiredWebResponse = cachedWebResponse; // origin may confirm it's not modified (304)
+					
+					if (null == staleWebResponse && null == expiredWebResponse)
+						removeFromCache(domain, cacheKey);
+					
 					cachedWebResponse = null; // refresh from origin
 				}
 			}
 		}
 
-		if (!isCacheableForClientType || // call origin if request is dynamic for client type [bot|browser] or component is null
+		WebResponse coalescedWebResponse = null;
+		CompletableFuture<WebResponse> missFuture = null; // not null - this request fetches for concurrent ones
+		if (null == cachedWebResponse && isMissCoalescing(domain))
+		{
+			CompletableFuture<WebResponse> newMissFuture = new CompletableFuture<WebResponse>();
+			CompletableFuture<WebResponse> inFlightMiss = inFlightMisses.putIfAbsent(cacheKey, newMissFuture);
+			if (null == inFlightMiss)
+				missFuture = newMissFuture;
+			else
+				coalescedWebResponse = awaitMiss(cacheKey, inFlightMiss, context.getClientType());
+		}
+
+		if (null != coalescedWebResponse)
+		{
+			// fetched by concurrent request
+			cachedWebResponse = coalescedWebResponse;
+			negativeCache.onHit(cachedWebResponse);
+			isCached = true;
+			context.setToplevelCached();
+			lengthBytes = cachedWebResponse.getContentLenth();
+			
+		} else if (!isCacheableForClientType || // call origin if request is dynamic for client type [bot|browser] or component is null
 				null == cachedWebResponse)
 		{
+			boolean isPutToCache = false;
 			try
 			{
-				cachedWebResponse = FCUtils.dynamicCall(originUrlStr, requestHeaders, client, context); // it can be pure dynamic include -> check if we need to save to cache 
+				if (null != expiredWebResponse)
+					revalidationRequests.incrementAndGet();
+				
+				cachedWebResponse = callOrigin(originUrlStr, requestHeaders, client, context, expiredWebResponse); // it can be pure dynamic include -> check if we need to save to cache 
+				
+				if (null != expiredWebResponse && 304 == cachedWebResponse.getStatusCode() && !context.isHystrixFallback())
+					cachedWebResponse = revalidated(expiredWebResponse, cachedWebResponse); // not modified -> cached copy with new expire time (saved to cache below)
+				
+				if (null != staleWebResponse && context.isHystrixFallback())
+				{
+					// origin failed (or circuit is open) -> expired copy instead of fallback (not saved to cache as any fallback)
+					cachedWebResponse = serveStale(staleWebResponse, context);
+					isCached = true;
+				}
+				
+				if (!context.isHystrixFallback() && isCacheableForClientType)
+					negativeCache.prepare(domain, cachedWebResponse); // 404 / redirect without max age -> short TTL
 				
 				String clientType = context.getClientType(); // bot | browser
 				Map<String, Long> expireTimeMap = cachedWebResponse.getExpireTimeMap();
@@ -131,28 +298,70 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 				lengthBytes = cachedWebResponse.getContentLenth();
 
 				// save to cache
+				List<String> responseVaryHeaders = null;
 				if (!context.isHystrixFallback() // don't cache hystrix fallbacks 
 						&& isCacheableForClientType 
 						&& isFreshDataCacheableForClientType 
-						&& cachedWebResponse.isCacheable())
+						&& cachedWebResponse.isCacheable()
+						&& null != (responseVaryHeaders = variants.getResponseVaryHeaders(cachedWebResponse))) // null - too many variants (e.g. Vary: Cookie)
 				{
+					variants.learn(currentRequestURL, responseVaryHeaders);
+					String putKey = variants.getKey(currentRequestURL, variants.getVaryHeaders(domain, currentRequestURL), requestHeaders); // origin may vary by new headers
+					
 					WebResponse copy4cache = cachedWebResponse.copy();
 					Map<String, List<String>> copyHeaders = copy4cache.getHeaders(); 
 					cleanupNonPersistentHeaders(copyHeaders);
 					
-					copy4cache.setUrl(currentRequestURL);
-					putToCache(context.getDomainContext().getDomain(), currentRequestURL, copy4cache); // put to cache copy
+					copy4cache.setUrl(putKey);
+					byte[] content = copy4cache.getContent(); // uncompressed
+					compressContent(copy4cache);
+					boolean includeFree = setIncludeTemplate(copy4cache, content);
+					setETag(copy4cache, content, includeFree);
+					copy4cache.freeze(); // shared by requests
+					putToCache(domain, putKey, copy4cache); // put to cache copy
+					negativeCache.onPut(copy4cache);
+					isPutToCache = putKey.equals(cacheKey);
+					
+					if (null != missFuture && isPutToCache)
+						missFuture.complete(copy4cache); // cacheable only (and the same variant) - it's safe to share
 				}
-			} catch (FrontCacheException ex) {
-				throw ex;
 			} catch (Exception ex) {
-				ex.printStackTrace();
-				throw new FrontCacheException(ex);
+				if (null != staleWebResponse)
+				{
+					logger.error("Origin call failed, stale-if-error copy is served: " + originUrlStr, ex);
+					context.setHystrixFallback(); // origin failed - response should not be cached (e.g. by upstream frontcache)
+					cachedWebResponse = serveStale(staleWebResponse, context);
+					isCached = true;
+					lengthBytes = cachedWebResponse.getContentLenth();
+				} else if (ex instanceof FrontCacheException) {
+					throw (FrontCacheException) ex;
+				} else {
+					ex.printStackTrace();
+					throw new FrontCacheException(ex);
+				}
+			} finally {
+				if (null != missFuture)
+				{
+					missFuture.complete(null); // not cacheable / failed -> waiting requests call origin
+					inFlightMisses.remove(cacheKey, missFuture);
+				}
+				
+				boolean keepStale = null != staleWebResponse && context.isHystrixFallback();
+				if ((null != staleWebResponse || null != expiredWebResponse) && !isPutToCache && !keepStale)
+					removeFromCache(domain, cacheKey); // origin response is not cacheable anymore (or cached under other variant key)
 			}
 				
 		} else {
 			
-			cachedWebResponse = cachedWebResponse.copy(); //to avoid modification instance in cache
+			if (refreshAhead.isEnabled())
+			{
+				Long expireTimeMillis = cachedWebResponse.getExpireTimeMap().get(context.getClientType());
+				if (null != expireTimeMillis && refreshAhead.onHit(cacheKey, cachedWebResponse, expireTimeMillis))
+					scheduleRefresh(cacheKey, originUrlStr, requestHeaders, client, context, expireTimeMillis, false); // keep in cache until refreshed
+			}
+			
+			cachedWebResponse = cachedWebResponse.overlay(); // to avoid modification instance in cache (nothing is copied for frozen instance)
+			negativeCache.onHit(cachedWebResponse);
 			isCached = true;
 			context.setToplevelCached();
 			lengthBytes = cachedWebResponse.getContentLenth();			
@@ -164,6 +373,138 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 		return cachedWebResponse;
 	}
 	
+	/**
+	 * origin call (hystrix command) - for cache misses, expired components and background refreshes
+	 * 
+	 * @param originUrlStr
+	 * @param requestHeaders
+	 * @param client
+	 * @param context - context.isHystrixFallback() is true if origin failed and fallback is returned
+	 * @param expiredWebResponse - cached copy to revalidate, null - regular call
+	 * @return
+	 * @throws FrontCacheException
+	 */
+	protected WebResponse callOrigin(String originUrlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, WebResponse expiredWebResponse) throws FrontCacheException
+	{
+		return FCUtils.dynamicCall(originUrlStr, requestHeaders, client, context, expiredWebResponse);
+	}
+	
+	private static boolean isHeadRequest(RequestContext context)
+	{
+		return null != context.getRequest() && "HEAD".equalsIgnoreCase(context.getRequest().getMethod());
+	}
+	
+	/**
+	 * 
+	 * @param webResponse
+	 * @param clientType
+	 * @return true if component is cacheable for client type and not expired
+	 */
+	private static boolean isFresh(WebResponse webResponse, String clientType)
+	{
+		Map<String, Long> expireTimeMap = webResponse.getExpireTimeMap();
+		return FCUtils.isWebComponentCacheableForClientType(expireTimeMap, clientType) && !FCUtils.isWebComponentExpired(expireTimeMap, clientType);
+	}
+	
+	@Override
+	public boolean isStaleIfError(long expireTimeMillis)
+	{
+		return 0 < staleIfErrorGrace 
+				&& CacheProcessor.CACHE_FOREVER != expireTimeMillis
+				&& System.currentTimeMillis() - expireTimeMillis < staleIfErrorGrace;
+	}
+	
+	@Override
+	public boolean isRevalidatable(WebResponse webResponse)
+	{
+		return revalidate && hasValidators(webResponse);
+	}
+	
+	/**
+	 * 
+	 * @param expiredWebResponse - expired component from cache
+	 * @param notModifiedResponse - 304 response from origin
+	 * @return copy of expired component with expire time counted from now (max age from 304 response if it's there)
+	 */
+	private WebResponse revalidated(WebResponse expiredWebResponse, WebResponse notModifiedResponse)
+	{
+		revalidationNotModified.incrementAndGet();
+		
+		WebResponse webResponse = expiredWebResponse.copy();
+		for (String name : new String[]{FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, FCHeaders.ETAG, FCHeaders.LAST_MODIFIED})
+		{
+			String value = notModifiedResponse.getHeaderIgnoreCase(name);
+			if (null != value)
+			{
+				webResponse.getHeaders().remove(name);
+				webResponse.addHeader(name, value);
+			}
+		}
+		
+		webResponse.resetExpireTime(webResponse.getHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE));
+		return webResponse;
+	}
+	
+	/**
+	 * 
+	 * @param staleWebResponse - expired component from cache
+	 * @param context
+	 * @return per request instance of expired component marked with header
+	 */
+	private WebResponse serveStale(WebResponse staleWebResponse, RequestContext context)
+	{
+		staleIfErrorServed.incrementAndGet();
+		context.setToplevelCached();
+		logger.debug("stale-if-error: expired copy is served - " + context.getCurrentRequestURL());
+		
+		WebResponse webResponse = staleWebResponse.overlay();
+		webResponse.addHeader(FCHeaders.X_FRONTCACHE_STALE_IF_ERROR, "true");
+		return webResponse;
+	}
+	
+	/**
+	 * 
+	 * @param domain
+	 * @return true if concurrent misses for the same URL are coalesced
+	 */
+	private boolean isMissCoalescing(String domain)
+	{
+		Boolean domainSetting = domainMissCoalescing.get(domain);
+		if (null != domainSetting)
+			return domainSetting;
+		
+		return missCoalescing;
+	}
+	
+	/**
+	 * wait for response fetched by concurrent request
+	 * 
+	 * @param currentRequestURL
+	 * @param inFlightMiss
+	 * @param clientType
+	 * @return copy of fetched response or null if it's not available in time or not cacheable for client type
+	 */
+	private WebResponse awaitMiss(String currentRequestURL, CompletableFuture<WebResponse> inFlightMiss, String clientType)
+	{
+		WebResponse webResponse = null;
+		try {
+			webResponse = inFlightMiss.get(missCoalescingTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			coalescingTimeouts.incrementAndGet();
+			logger.debug("Timeout while waiting for concurrent request to origin - " + currentRequestURL);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.debug("Concurrent request to origin failed - " + currentRequestURL, e);
+		}
+		
+		if (null == webResponse || !FCUtils.isWebComponentCacheableForClientType(webResponse.getExpireTimeMap(), clientType))
+			return null;
+		
+		coalescedRequests.incrementAndGet();
+		return webResponse.overlay(); // shared instance is in cache
+	}
+	
 	/**
 	 * perform async invalidation
 	 * 
@@ -172,18 +513,36 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 	 * @param requestHeaders
 	 * @param client
 	 * @param context
+	 * @param expireTimeMillis - when cached component is expired
 	 */
-	public void doSoftInvalidation(String currentRequestURL, String originUrlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context)
+	public void doSoftInvalidation(String currentRequestURL, String originUrlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, long expireTimeMillis)
 	{
-		// async invalidation
-		softInvalidationExecutor.submit(new Runnable(){
+		scheduleRefresh(currentRequestURL, originUrlStr, requestHeaders, client, context, expireTimeMillis, true);
+		return;
+	}
+	
+	/**
+	 * async refresh from origin (one per URL, requests for URL in queue raise its priority)
+	 * 
+	 * @param currentRequestURL
+	 * @param originUrlStr
+	 * @param requestHeaders
+	 * @param client
+	 * @param context
+	 * @param expireTimeMillis - when cached component is expired
+	 * @param removeFromCache - true if cached component is removed before origin call (soft refresh), false for refresh-ahead
+	 */
+	private void scheduleRefresh(String currentRequestURL, String originUrlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, long expireTimeMillis, boolean removeFromCache)
+	{
+		refreshScheduler.schedule(currentRequestURL, context.getDomainContext().getDomain(), expireTimeMillis, new Runnable(){
 
 			@Override
 			public void run() {
 				try {
 					
 //					logger.info("Soft invalidation: removing form cache: " + currentRequestURL);
-					removeFromCache(context.getDomainContext().getDomain(), currentRequestURL);
+					if (removeFromCache)
+						removeFromCache(context.getDomainContext().getDomain(), currentRequestURL);
 					
 					RequestContext ctxCopy = context.copy();
 					ctxCopy.setFilterChain(null); // async calls for ServletFilter doesnt works (some objects already disposed), so use http calls for soft resets 
@@ -193,18 +552,26 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 					requestHeadersCopy.put(FCHeaders.X_FRONTCACHE_DYNAMIC_REQUEST, Arrays.asList(new String[]{"true"}));
 					requestHeadersCopy.put(FCHeaders.X_FRONTCACHE_SOFT_REFRESH, Arrays.asList(new String[]{"true"}));
 					
-					WebResponse copy4cache = FCUtils.dynamicCall(originUrlStr, requestHeadersCopy, client, ctxCopy);
+					WebResponse copy4cache = callOrigin(originUrlStr, requestHeadersCopy, client, ctxCopy, null);
+					if (!removeFromCache && !isRefreshAheadCacheable(copy4cache, context.getClientType()))
+						return; // refresh-ahead - keep cached copy (it expires as usual)
+					
 					Map<String, List<String>> copyHeaders = copy4cache.getHeaders(); 
 					cleanupNonPersistentHeaders(copyHeaders);
 					
 					copy4cache.setUrl(currentRequestURL);
+					byte[] content = copy4cache.getContent(); // uncompressed
+					compressContent(copy4cache);
+					boolean includeFree = setIncludeTemplate(copy4cache, content);
+					setETag(copy4cache, content, includeFree);
+					copy4cache.freeze(); // shared by requests
 
 					if (!ctxCopy.isHystrixFallback()) // don't cache hystrix fallbacks
 						putToCache(context.getDomainContext().getDomain(), currentRequestURL, copy4cache); // put to cache copy
 					
 				} catch (Exception e) {
 					
-					logger.error("Soft invalidation/refresh failed: " + originUrlStr, e);
+					throw new RuntimeException("Soft invalidation/refresh failed: " + originUrlStr, e); // logged and counted by scheduler
 				}  
 			}
 			
@@ -214,6 +581,20 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 	}
 
 	
+	/**
+	 * the same checks as for origin response on cache miss 
+	 * 
+	 * @param webResponse - origin response
+	 * @param clientType - bot | browser
+	 * @return true if origin response can replace cached copy
+	 */
+	private boolean isRefreshAheadCacheable(WebResponse webResponse, String clientType)
+	{
+		return webResponse.isCacheable()
+				&& FCUtils.isWebComponentCacheableForClientType(webResponse.getExpireTimeMap(), clientType)
+				&& null != variants.getResponseVaryHeaders(webResponse); // null - too many variants (e.g. Vary: Cookie)
+	}
+	
 	/**
 	 * remove header not supposed to be stored in cache
 	 * right before saving to cache
@@ -233,10 +614,72 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 		return;
 	}
 	
+	/**
+	 * compress once - right before saving to cache
+	 * 
+	 * @param webResponse
+	 */
+	private void compressContent(WebResponse webResponse)
+	{
+		if (gzipContent && webResponse.isText())
+			webResponse.compressContent(gzipMinSize);
+		
+		return;
+	}
+	
+	/**
+	 * include template (positions, URLs, call and client types of include tags) - content is scanned once, right before saving to cache,
+	 * cache hits don't decompress / scan content to find includes
+	 * 
+	 * @param webResponse
+	 * @param content - uncompressed content
+	 * @return true if content is include free
+	 */
+	private boolean setIncludeTemplate(WebResponse webResponse, byte[] content)
+	{
+		List<IncludeTag> includes = IncludeScanner.scan(webResponse, content);
+		webResponse.getHeaders().remove(FCHeaders.X_FRONTCACHE_COMPONENT_INCLUDES); // e.g. from origin
+		if (webResponse.isText())
+			webResponse.getHeaders().put(FCHeaders.X_FRONTCACHE_COMPONENT_INCLUDES, IncludeScanner.toTemplate(includes));
+		
+		return null == includes;
+	}
+	
+	/**
+	 * strong ETag for include free content (content with includes is assembled per request) - computed once, right before saving to cache
+	 * 
+	 * @param webResponse
+	 * @param content - uncompressed content
+	 * @param includeFree
+	 */
+	private void setETag(WebResponse webResponse, byte[] content, boolean includeFree)
+	{
+		webResponse.getHeaders().remove(FCHeaders.X_FRONTCACHE_COMPONENT_ETAG); // e.g. from upstream frontcache
+		if (200 != webResponse.getStatusCode() || null == content || !includeFree)
+			return;
+		
+		webResponse.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_ETAG, FCUtils.strongETag(content, webResponse.isContentGzipped()));
+		return;
+	}
+	
 	@Override
 	public Map<String, String> getCacheStatus() {
 		Map<String, String> status = new HashMap<String, String>();
 		status.put("impl", this.getClass().getName());
+		status.put("gzip-content", "" + gzipContent);
+		status.put("miss-coalescing", "" + missCoalescing);
+		status.put("miss-coalescing.in-flight", "" + inFlightMisses.size());
+		status.put("miss-coalescing.coalesced", "" + coalescedRequests.get());
+		status.put("miss-coalescing.timeouts", "" + coalescingTimeouts.get());
+		refreshScheduler.addStatus(status);
+		refreshAhead.addStatus(status);
+		variants.addStatus(status);
+		negativeCache.addStatus(status);
+		status.put("stale-if-error.grace-ms", "" + staleIfErrorGrace);
+		status.put("stale-if-error.served", "" + staleIfErrorServed.get());
+		status.put("revalidation", "" + revalidate);
+		status.put("revalidation.requests", "" + revalidationRequests.get());
+		status.put("revalidation.not-modified", "" + revalidationNotModified.get());
 
 		return status;
 	}
@@ -244,14 +687,52 @@ public abstract class CacheProcessorBase implements CacheProcessor {
 	@Override
 	public void init(Properties properties) {		
 		Objects.requireNonNull(properties, "Properties should not be null");
-		int threadAmount = 2;
-		softInvalidationExecutor = Executors.newFixedThreadPool(threadAmount); 
+		
+		if (null != properties.getProperty("front-cache.cache-processor.gzip-content"))
+			gzipContent = Boolean.parseBoolean(properties.getProperty("front-cache.cache-processor.gzip-content").trim());
+		
+		gzipMinSize = (int) FCUtils.sizeStr2Long(properties.getProperty("front-cache.cache-processor.gzip-min-size"), gzipMinSize);
+		
+		if (null != properties.getProperty("front-cache.cache-processor.miss-coalescing"))
+			missCoalescing = Boolean.parseBoolean(properties.getProperty("front-cache.cache-processor.miss-coalescing").trim());
+		
+		if (null != properties.getProperty("front-cache.cache-processor.miss-coalescing-timeout"))
+		{
+			try {
+				missCoalescingTimeout = Long.parseLong(properties.getProperty("front-cache.cache-processor.miss-coalescing-timeout").trim());
+			} catch (Exception e) {
+				logger.error("Can't read front-cache.cache-processor.miss-coalescing-timeout - default is used " + missCoalescingTimeout, e);
+			}
+		}
+		
+		if (null != properties.getProperty("front-cache.cache-processor.revalidate"))
+			revalidate = Boolean.parseBoolean(properties.getProperty("front-cache.cache-processor.revalidate").trim());
+		
+		if (null != properties.getProperty(STALE_IF_ERROR_KEY))
+			staleIfErrorGrace = getStaleIfErrorGrace(properties);
+		
+		String domainList = properties.getProperty("front-cache.domains");
+		if (null != domainList)
+		{
+			for(String domain : domainList.split(","))
+			{
+				String domainSetting = properties.getProperty("front-cache.domain." + domain.replace('.', '_') + ".miss-coalescing");
+				if (null != domainSetting)
+					domainMissCoalescing.put(domain, Boolean.parseBoolean(domainSetting.trim()));
+			}
+		}
+		
+		
+		refreshScheduler.init(properties);
+		refreshAhead.init(properties);
+		variants.init(properties);
+		negativeCache.init(properties);
 
 	}
 	
 	@Override
 	public void destroy() {
-		softInvalidationExecutor.shutdown();
+		refreshScheduler.destroy();
 	}
 
 }
@@ -0,0 +1,235 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.frontcache.core.WebResponse;
+
+/**
+ *
+ * Variants of cached component - responses which depend on request headers (e.g. Accept-Language or device class header)
+ * are cached under variant keys: URL + '#vary:' + header values (e.g. http://www.example.com/en/welcome.htm#vary:accept-language=de)
+ *
+ * Headers are configured (front-cache.cache-processor.vary-headers, per domain front-cache.domain.[domain].vary-headers)
+ * or taken from origin's Vary response header (learned per URL, in memory).
+ * Variants have the same URL prefix and tags, so invalidation by URL (see getVariantPrefix()) or tag removes all of them.
+ *
+ */
+public class CacheVariants {
+
+	public static final String VARIANT_SEPARATOR = "#vary:"; // fragment is never part of request URL
+
+	private static final String VARY_HEADERS_KEY = "front-cache.cache-processor.vary-headers";
+
+	private static final int MAX_LEARNED_URLS = 100000;
+
+	// Accept-Encoding - frontcache compresses content itself
+	private static final Set<String> IGNORED_HEADERS = new HashSet<String>(Arrays.asList("accept-encoding"));
+
+	// too many variants - response is not cached
+	private static final Set<String> UNCACHEABLE_HEADERS = new HashSet<String>(Arrays.asList("*", "cookie", "user-agent", "authorization"));
+
+	private List<String> varyHeaders = Collections.emptyList();
+
+	private final Map<String, List<String>> domainVaryHeaders = new HashMap<String, List<String>>(); // per domain overrides
+
+	private final Map<String, List<String>> learnedVaryHeaders = new ConcurrentHashMap<String, List<String>>(); // URL -> headers from origin
+
+	private final AtomicLong uncacheable = new AtomicLong();
+
+	public void init(Properties properties) {
+		if (null != properties.getProperty(VARY_HEADERS_KEY))
+			varyHeaders = parseHeaders(properties.getProperty(VARY_HEADERS_KEY));
+
+		String domainList = properties.getProperty("front-cache.domains");
+		if (null != domainList)
+		{
+			for(String domain : domainList.split(","))
+			{
+				String domainSetting = properties.getProperty("front-cache.domain." + domain.replace('.', '_') + ".vary-headers");
+				if (null != domainSetting)
+					domainVaryHeaders.put(domain, parseHeaders(domainSetting));
+			}
+		}
+	}
+
+	/**
+	 * @param headersStr - comma separated header names
+	 * @return lowercased, sorted header names (ignored are removed)
+	 */
+	private static List<String> parseHeaders(String headersStr)
+	{
+		Set<String> headers = new HashSet<String>();
+		for (String header : headersStr.split(","))
+		{
+			String name = header.trim().toLowerCase();
+			if (0 < name.length() && !IGNORED_HEADERS.contains(name))
+				headers.add(name);
+		}
+
+		List<String> sorted = new ArrayList<String>(headers);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 *
+	 * @param domain
+	 * @param url
+	 * @return configured and learned (from origin) headers the URL varies by
+	 */
+	public List<String> getVaryHeaders(String domain, String url)
+	{
+		List<String> configured = domainVaryHeaders.get(domain);
+		if (null == configured)
+			configured = varyHeaders;
+
+		List<String> learned = learnedVaryHeaders.get(url);
+		if (null == learned || configured.containsAll(learned))
+			return configured;
+
+		if (configured.isEmpty())
+			return learned;
+
+		Set<String> headers = new HashSet<String>(configured);
+		headers.addAll(learned);
+		List<String> sorted = new ArrayList<String>(headers);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 *
+	 * @param url
+	 * @param varyHeaders
+	 * @param requestHeaders
+	 * @return cache key for request (URL if there are no vary headers)
+	 */
+	public String getKey(String url, List<String> varyHeaders, Map<String, List<String>> requestHeaders)
+	{
+		if (varyHeaders.isEmpty())
+			return url;
+
+		StringBuilder sb = new StringBuilder(url).append(VARIANT_SEPARATOR);
+		for (int i = 0; i < varyHeaders.size(); i++)
+		{
+			String name = varyHeaders.get(i);
+			if (0 < i)
+				sb.append('|');
+			sb.append(name).append('=').append(getHeaderValue(requestHeaders, name));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return lowercased header value without spaces ("" if not present)
+	 */
+	private static String getHeaderValue(Map<String, List<String>> requestHeaders, String name)
+	{
+		for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet())
+		{
+			if (name.equalsIgnoreCase(entry.getKey()) && null != entry.getValue() && !entry.getValue().isEmpty())
+			{
+				StringBuilder sb = new StringBuilder();
+				for (String value : entry.getValue())
+				{
+					if (0 < sb.length())
+						sb.append(',');
+					sb.append(value);
+				}
+				return sb.toString().replace(" ", "").toLowerCase();
+			}
+		}
+
+		return "";
+	}
+
+	/**
+	 *
+	 * @param webResponse - origin response
+	 * @return headers from Vary response header, null if response can't be cached (e.g. Vary: *)
+	 */
+	public List<String> getResponseVaryHeaders(WebResponse webResponse)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, List<String>> entry : webResponse.getHeaders().entrySet())
+			if ("Vary".equalsIgnoreCase(entry.getKey()) && null != entry.getValue())
+				for (String value : entry.getValue())
+					sb.append(value).append(',');
+
+		if (0 == sb.length())
+			return Collections.emptyList();
+
+		List<String> headers = parseHeaders(sb.toString());
+		for (String header : headers)
+		{
+			if (UNCACHEABLE_HEADERS.contains(header))
+			{
+				uncacheable.incrementAndGet();
+				return null;
+			}
+		}
+
+		return headers;
+	}
+
+	/**
+	 * Remembers headers the URL varies by (from origin's Vary header)
+	 *
+	 * @param url
+	 * @param headers
+	 */
+	public void learn(String url, List<String> headers)
+	{
+		if (headers.isEmpty())
+		{
+			learnedVaryHeaders.remove(url);
+			return;
+		}
+
+		if (learnedVaryHeaders.size() < MAX_LEARNED_URLS || learnedVaryHeaders.containsKey(url))
+			learnedVaryHeaders.put(url, headers);
+	}
+
+	/**
+	 * @param url
+	 * @return prefix of all variant keys for URL
+	 */
+	public static String getVariantPrefix(String url)
+	{
+		return url + VARIANT_SEPARATOR;
+	}
+
+	public void addStatus(Map<String, String> status) {
+		status.put("vary.headers", varyHeaders.toString());
+		status.put("vary.learned-urls", "" + learnedVaryHeaders.size());
+		status.put("vary.uncacheable", "" + uncacheable.get());
+	}
+
+}
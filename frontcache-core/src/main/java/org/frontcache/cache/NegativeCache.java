@@ -0,0 +1,202 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.FCUtils;
+import org.frontcache.core.WebResponse;
+
+/**
+ *
+ * Negative caching - 404 and redirect (301, 302) responses without max age from origin are cached for short TTL
+ * (bots requesting dead URLs don't reach origin every time).
+ *
+ * Redirects are stored without body (status and Location header only), 404 - with body unless 404-body=false.
+ * Entries have the same keys as regular components, so they are invalidated by URL (and tags if origin sets them).
+ *
+ */
+public class NegativeCache {
+
+	private static final String TTL_404_KEY = "negative-cache.ttl-404"; // e.g. 1m, 0 - disabled
+
+	private static final String TTL_REDIRECT_KEY = "negative-cache.ttl-redirect";
+
+	private static final String KEEP_404_BODY_KEY = "negative-cache.404-body";
+
+	private static final byte[] NO_BODY = new byte[0];
+
+	private long ttl404 = 0; // ms
+
+	private long ttlRedirect = 0; // ms
+
+	private boolean keep404Body = true;
+
+	private final Map<String, Long> domainTtl404 = new HashMap<String, Long>(); // per domain overrides
+
+	private final Map<String, Long> domainTtlRedirect = new HashMap<String, Long>();
+
+	private final Map<String, Boolean> domainKeep404Body = new HashMap<String, Boolean>();
+
+	private final AtomicLong puts404 = new AtomicLong();
+
+	private final AtomicLong putsRedirect = new AtomicLong();
+
+	private final AtomicLong hits404 = new AtomicLong();
+
+	private final AtomicLong hitsRedirect = new AtomicLong();
+
+	public void init(Properties properties) {
+
+		ttl404 = parseTtl(properties.getProperty("front-cache.cache-processor." + TTL_404_KEY), ttl404);
+		ttlRedirect = parseTtl(properties.getProperty("front-cache.cache-processor." + TTL_REDIRECT_KEY), ttlRedirect);
+
+		if (null != properties.getProperty("front-cache.cache-processor." + KEEP_404_BODY_KEY))
+			keep404Body = Boolean.parseBoolean(properties.getProperty("front-cache.cache-processor." + KEEP_404_BODY_KEY).trim());
+
+		String domainList = properties.getProperty("front-cache.domains");
+		if (null != domainList)
+		{
+			for(String domain : domainList.split(","))
+			{
+				String prefix = "front-cache.domain." + domain.replace('.', '_') + ".";
+				String domainSetting = properties.getProperty(prefix + TTL_404_KEY);
+				if (null != domainSetting)
+					domainTtl404.put(domain, parseTtl(domainSetting, 0));
+
+				domainSetting = properties.getProperty(prefix + TTL_REDIRECT_KEY);
+				if (null != domainSetting)
+					domainTtlRedirect.put(domain, parseTtl(domainSetting, 0));
+
+				domainSetting = properties.getProperty(prefix + KEEP_404_BODY_KEY);
+				if (null != domainSetting)
+					domainKeep404Body.put(domain, Boolean.parseBoolean(domainSetting.trim()));
+			}
+		}
+	}
+
+	/**
+	 * @param ttlStr - e.g. 30s, 5m
+	 * @return TTL in ms (0 if disabled)
+	 */
+	private static long parseTtl(String ttlStr, long defaultValue)
+	{
+		if (null == ttlStr)
+			return defaultValue;
+
+		long ttlSec = FCUtils.maxAgeStr2Int(ttlStr.trim());
+		return (0 < ttlSec) ? ttlSec * 1000 : 0; // forever is not allowed
+	}
+
+	private static boolean isRedirect(int statusCode)
+	{
+		return 301 == statusCode || 302 == statusCode;
+	}
+
+	private long getTtl(String domain, int statusCode)
+	{
+		Long ttl;
+		if (404 == statusCode)
+		{
+			ttl = domainTtl404.get(domain);
+			return (null == ttl) ? ttl404 : ttl;
+		}
+
+		if (isRedirect(statusCode))
+		{
+			ttl = domainTtlRedirect.get(domain);
+			return (null == ttl) ? ttlRedirect : ttl;
+		}
+
+		return 0;
+	}
+
+	private boolean isKeep404Body(String domain)
+	{
+		Boolean keepBody = domainKeep404Body.get(domain);
+		return (null == keepBody) ? keep404Body : keepBody;
+	}
+
+	/**
+	 * Makes origin response cacheable if it's 404 or redirect without max age from origin
+	 * (expire time is set to TTL for bots and browsers, body is dropped for redirects)
+	 *
+	 * @param domain
+	 * @param webResponse - fresh response from origin (not shared)
+	 * @return true if response is prepared for negative caching
+	 */
+	public boolean prepare(String domain, WebResponse webResponse)
+	{
+		int statusCode = webResponse.getStatusCode();
+		long ttl = getTtl(domain, statusCode);
+		if (0 == ttl || null != webResponse.getHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE)) // origin decides
+			return false;
+
+		if (isRedirect(statusCode))
+		{
+			if (null == webResponse.getHeader("Location"))
+				return false;
+
+			webResponse.setContent(NO_BODY);
+		} else if (!isKeep404Body(domain)) {
+			webResponse.setContent(NO_BODY);
+		}
+
+		long expireTimeMillis = System.currentTimeMillis() + ttl;
+		Map<String, Long> expireTimeMap = new HashMap<String, Long>();
+		expireTimeMap.put(FCHeaders.REQUEST_CLIENT_TYPE_BOT, expireTimeMillis);
+		expireTimeMap.put(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER, expireTimeMillis);
+		webResponse.setExpireTimeMap(expireTimeMap);
+		return true;
+	}
+
+	/**
+	 * @param webResponse - response put to cache
+	 */
+	public void onPut(WebResponse webResponse)
+	{
+		if (404 == webResponse.getStatusCode())
+			puts404.incrementAndGet();
+		else if (isRedirect(webResponse.getStatusCode()))
+			putsRedirect.incrementAndGet();
+	}
+
+	/**
+	 * @param webResponse - response from cache
+	 */
+	public void onHit(WebResponse webResponse)
+	{
+		if (404 == webResponse.getStatusCode())
+			hits404.incrementAndGet();
+		else if (isRedirect(webResponse.getStatusCode()))
+			hitsRedirect.incrementAndGet();
+	}
+
+	public void addStatus(Map<String, String> status) {
+		status.put("negative-cache.ttl-404-ms", "" + ttl404);
+		status.put("negative-cache.ttl-redirect-ms", "" + ttlRedirect);
+		status.put("negative-cache.404.puts", "" + puts404.get());
+		status.put("negative-cache.404.hits", "" + hits404.get());
+		status.put("negative-cache.redirect.puts", "" + putsRedirect.get());
+		status.put("negative-cache.redirect.hits", "" + hitsRedirect.get());
+	}
+
+}
@@ -78,6 +78,11 @@ public class NoCacheProcessor implements CacheProcessor {
 
 	}
 
+	@Override
+	public void removeFromCacheByPrefix(String domain, String prefix) {
+		return; // nothing is cached
+	}
+
 	@Override
 	public void removeFromCacheAll(String domain) {
 		// TODO Auto-generated method stub
@@ -99,11 +104,21 @@ public class NoCacheProcessor implements CacheProcessor {
 
 	@Override
 	public void doSoftInvalidation(String currentRequestURL, String originUrlStr,
-			Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context) {
+			Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, long expireTimeMillis) {
 	
 		return;
 	}
 
+	@Override
+	public boolean isStaleIfError(long expireTimeMillis) {
+		return false;
+	}
+
+	@Override
+	public boolean isRevalidatable(WebResponse webResponse) {
+		return false;
+	}
+
 	@Override
 	public void patch() {
 		// TODO Auto-generated method stub
@@ -0,0 +1,212 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.FCUtils;
+import org.frontcache.core.WebResponse;
+
+/**
+ *
+ * Refresh-ahead - decides which cache hits should trigger background refresh before component is expired.
+ * Component is refreshed when its hit rate (hits per minute) is above threshold
+ * and it's in the last 'ttl-fraction' of its max age (e.g. 0.1 -> last 3 days for 30d component)
+ *
+ */
+public class RefreshAhead {
+
+	private static final String ENABLED_KEY = "front-cache.cache-processor.refresh-ahead";
+
+	private static final String MIN_HIT_RATE_KEY = "front-cache.cache-processor.refresh-ahead.min-hit-rate"; // hits per minute
+
+	private static final String TTL_FRACTION_KEY = "front-cache.cache-processor.refresh-ahead.ttl-fraction";
+
+	private static final String MAX_KEYS_KEY = "front-cache.cache-processor.refresh-ahead.max-keys"; // max amount of tracked keys
+
+	private static final long WINDOW = 60000; // hit rate window - 1 min
+
+	private static final long CLEANUP_INTERVAL = 10000; // min interval between idle counter scans (when max keys are tracked)
+
+	private boolean enabled = false;
+
+	private int minHitRate = 60;
+
+	private double ttlFraction = 0.1;
+
+	private int maxKeys = 10000;
+
+	private final ConcurrentHashMap<String, HitCounter> hitCounters = new ConcurrentHashMap<String, HitCounter>();
+
+	private final AtomicLong triggered = new AtomicLong(); // hits triggered refresh (scheduler keeps one refresh per key)
+
+	private final AtomicLong lastCleanup = new AtomicLong();
+
+	public void init(Properties properties) {
+
+		if (null != properties.getProperty(ENABLED_KEY))
+			enabled = Boolean.parseBoolean(properties.getProperty(ENABLED_KEY).trim());
+
+		if (null != properties.getProperty(MIN_HIT_RATE_KEY))
+			minHitRate = Math.max(1, Integer.parseInt(properties.getProperty(MIN_HIT_RATE_KEY).trim()));
+
+		if (null != properties.getProperty(TTL_FRACTION_KEY))
+			ttlFraction = Math.min(1, Math.max(0, Double.parseDouble(properties.getProperty(TTL_FRACTION_KEY).trim())));
+
+		if (null != properties.getProperty(MAX_KEYS_KEY))
+			maxKeys = Math.max(1, Integer.parseInt(properties.getProperty(MAX_KEYS_KEY).trim()));
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Counts cache hit
+	 *
+	 * @param key
+	 * @param webResponse - cached (not expired) component
+	 * @param expireTimeMillis - when component is expired for client type
+	 * @return true if component should be refreshed in background
+	 */
+	public boolean onHit(String key, WebResponse webResponse, long expireTimeMillis)
+	{
+		return onHit(key, webResponse, expireTimeMillis, System.currentTimeMillis());
+	}
+
+	boolean onHit(String key, WebResponse webResponse, long expireTimeMillis, long now)
+	{
+		if (!enabled || CacheProcessor.CACHE_FOREVER == expireTimeMillis || CacheProcessor.NO_CACHE == expireTimeMillis)
+			return false;
+
+		HitCounter hitCounter = hitCounters.get(key);
+		if (null == hitCounter)
+		{
+			if (hitCounters.size() >= maxKeys && !removeIdle(now))
+				return false; // too many hot keys - the key is not tracked
+
+			hitCounter = new HitCounter(now);
+			HitCounter prev = hitCounters.putIfAbsent(key, hitCounter);
+			if (null != prev)
+				hitCounter = prev;
+		}
+
+		if (hitCounter.hit(now) < minHitRate)
+			return false;
+
+		long maxAgeMillis = getMaxAgeMillis(webResponse);
+		if (0 >= maxAgeMillis || expireTimeMillis - now > maxAgeMillis * ttlFraction)
+			return false;
+
+		triggered.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Scans counters at most once per CLEANUP_INTERVAL (by one thread), new keys are not tracked between scans
+	 *
+	 * @return true if some counters are removed
+	 */
+	private boolean removeIdle(long now)
+	{
+		long last = lastCleanup.get();
+		if (now - last < CLEANUP_INTERVAL || !lastCleanup.compareAndSet(last, now))
+			return false;
+
+		boolean removed = false;
+		for (Iterator<HitCounter> it = hitCounters.values().iterator(); it.hasNext();)
+		{
+			if (now - it.next().windowStart > 2 * WINDOW)
+			{
+				it.remove();
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 *
+	 * @param webResponse
+	 * @return max age (ms) from X-frontcache.component.maxage header - maxAge="[bot|browser:]30d", -1 if not available
+	 */
+	private static long getMaxAgeMillis(WebResponse webResponse)
+	{
+		String maxAgeStr = webResponse.getHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE);
+		if (null == maxAgeStr)
+			return -1;
+
+		if (-1 < maxAgeStr.indexOf(":"))
+			maxAgeStr = maxAgeStr.substring(maxAgeStr.indexOf(":") + 1);
+
+		long maxAgeSec = FCUtils.maxAgeStr2Int(maxAgeStr.trim());
+		return (0 < maxAgeSec) ? maxAgeSec * 1000 : -1;
+	}
+
+	public void addStatus(Map<String, String> status) {
+		status.put("refresh-ahead", "" + enabled);
+		status.put("refresh-ahead.tracked-keys", "" + hitCounters.size());
+		status.put("refresh-ahead.triggered", "" + triggered.get());
+	}
+
+	/**
+	 * hits in current and previous window
+	 */
+	private static class HitCounter {
+
+		private volatile long windowStart;
+
+		private final AtomicInteger current = new AtomicInteger();
+
+		private volatile int previous = 0;
+
+		HitCounter(long now) {
+			windowStart = now;
+		}
+
+		/**
+		 * @return approximate hits per minute
+		 */
+		int hit(long now)
+		{
+			long elapsed = now - windowStart;
+			if (elapsed >= WINDOW)
+			{
+				synchronized (this) {
+					elapsed = now - windowStart;
+					if (elapsed >= WINDOW)
+					{
+						previous = (elapsed < 2 * WINDOW) ? current.get() : 0;
+						current.set(0);
+						windowStart = now;
+						elapsed = 0;
+					}
+				}
+			}
+
+			int hits = current.incrementAndGet();
+			return hits + (int) (previous * (WINDOW - Math.max(0, elapsed)) / WINDOW); // sliding window approximation
+		}
+	}
+
+}
@@ -0,0 +1,357 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Runs soft refreshes (async origin calls for expired soft refresh components) in background threads.
+ *
+ *  - one refresh per key - requests for key already queued / refreshing only raise its priority
+ *  - bounded queue - when full, the lowest priority refresh is dropped (expired content is served until next request)
+ *  - priority - hits while waiting in queue and staleness (how long ago the component is expired)
+ *  - per domain concurrency - slow origin of one domain can't take all refresh threads
+ *
+ */
+public class RefreshScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+
+	private static final String THREADS_KEY = "front-cache.cache-processor.soft-refresh.threads";
+
+	private static final String QUEUE_SIZE_KEY = "front-cache.cache-processor.soft-refresh.queue-size";
+
+	private static final String DOMAIN_CONCURRENCY_KEY = "front-cache.cache-processor.soft-refresh.domain-concurrency"; // default for all domains
+
+	private int threadAmount = 2;
+
+	private int queueSize = 1000;
+
+	private int domainConcurrency = 2;
+
+	private final Map<String, Integer> domainConcurrencyMap = new HashMap<String, Integer>(); // per domain overrides
+
+	private final ConcurrentHashMap<String, RefreshTask> tasks = new ConcurrentHashMap<String, RefreshTask>(); // queued and running (key -> task)
+
+	private final List<RefreshTask> queue = new ArrayList<RefreshTask>(); // guarded by 'queue'
+
+	private final Map<String, Integer> runningByDomain = new HashMap<String, Integer>(); // guarded by 'queue'
+
+	private long sequence = 0; // FIFO for equal priority, guarded by 'queue'
+
+	private volatile boolean stopped = false;
+
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	private final AtomicLong scheduled = new AtomicLong();
+
+	private final AtomicLong deduplicated = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong totalLatency = new AtomicLong(); // ms, for completed and failed
+
+	private volatile long maxLatency = 0;
+
+	public void init(Properties properties) {
+
+		threadAmount = getIntProperty(properties, THREADS_KEY, threadAmount);
+		queueSize = getIntProperty(properties, QUEUE_SIZE_KEY, queueSize);
+		domainConcurrency = getIntProperty(properties, DOMAIN_CONCURRENCY_KEY, threadAmount);
+
+		String domainList = properties.getProperty("front-cache.domains");
+		if (null != domainList)
+		{
+			for(String domain : domainList.split(","))
+			{
+				String domainSettingKey = "front-cache.domain." + domain.replace('.', '_') + ".soft-refresh-concurrency";
+				if (null != properties.getProperty(domainSettingKey))
+					domainConcurrencyMap.put(domain, getIntProperty(properties, domainSettingKey, domainConcurrency));
+			}
+		}
+
+		for (int i = 0; i < threadAmount; i++)
+		{
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "soft-refresh-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+
+		logger.info("Soft refresh: " + threadAmount + " threads, queue size " + queueSize + ", domain concurrency " + domainConcurrency);
+	}
+
+	private static int getIntProperty(Properties properties, String key, int defaultValue) {
+		String valueStr = properties.getProperty(key);
+		if (null != valueStr && valueStr.trim().length() > 0)
+		{
+			try
+			{
+				int value = Integer.parseInt(valueStr.trim());
+				if (0 < value)
+					return value;
+			} catch (Exception ex) {
+				// default is used
+			}
+			logger.error("Can't read " + key + "=" + valueStr + ". Default is used " + defaultValue);
+		}
+		return defaultValue;
+	}
+
+	public void destroy() {
+		stopped = true;
+		synchronized (queue) {
+			queue.notifyAll();
+		}
+		for (Thread worker : workers)
+			worker.interrupt();
+	}
+
+	/**
+	 *
+	 * @param key - cache key (refresh is skipped if the key is already queued or refreshing)
+	 * @param domain
+	 * @param expireTimeMillis - when component is expired
+	 * @param refresh
+	 * @return true if refresh is scheduled (or already scheduled)
+	 */
+	public boolean schedule(String key, String domain, long expireTimeMillis, Runnable refresh)
+	{
+		RefreshTask task = tasks.get(key);
+		if (null != task)
+		{
+			task.hits.incrementAndGet(); // hot key - refresh sooner
+			deduplicated.incrementAndGet();
+			return true;
+		}
+
+		task = new RefreshTask(key, domain, expireTimeMillis, refresh);
+		if (null != tasks.putIfAbsent(key, task))
+		{
+			deduplicated.incrementAndGet();
+			return true;
+		}
+
+		RefreshTask droppedTask = null;
+		synchronized (queue) {
+			if (stopped)
+			{
+				tasks.remove(key, task);
+				return false;
+			}
+
+			task.seq = sequence++;
+			if (queue.size() >= queueSize)
+			{
+				long now = System.currentTimeMillis();
+				RefreshTask lowest = null;
+				for (RefreshTask queued : queue)
+					if (null == lowest || 0 > compare(lowest, queued, now))
+						lowest = queued;
+
+				if (0 < compare(task, lowest, now))
+				{
+					droppedTask = task; // new one is the least important
+				} else {
+					queue.remove(lowest);
+					droppedTask = lowest;
+					queue.add(task);
+				}
+			} else {
+				queue.add(task);
+			}
+			queue.notify();
+		}
+
+		scheduled.incrementAndGet();
+		if (null != droppedTask)
+		{
+			tasks.remove(droppedTask.key, droppedTask);
+			dropped.incrementAndGet();
+			logger.debug("Soft refresh queue is full - refresh is dropped: " + droppedTask.key);
+		}
+
+		return droppedTask != task;
+	}
+
+	/**
+	 *
+	 * @param t1
+	 * @param t2
+	 * @param now
+	 * @return negative if t1 should run before t2
+	 */
+	private static int compare(RefreshTask t1, RefreshTask t2, long now)
+	{
+		int res = Double.compare(t2.priority(now), t1.priority(now));
+		if (0 != res)
+			return res;
+
+		return Long.compare(t1.seq, t2.seq);
+	}
+
+	private int getDomainConcurrency(String domain)
+	{
+		Integer concurrency = domainConcurrencyMap.get(domain);
+		if (null != concurrency)
+			return concurrency;
+
+		return domainConcurrency;
+	}
+
+	/**
+	 * @return highest priority task for domain below concurrency limit (null if there is no such task)
+	 */
+	private RefreshTask pollTask()
+	{
+		long now = System.currentTimeMillis();
+		RefreshTask next = null;
+		for (RefreshTask task : queue)
+		{
+			Integer running = runningByDomain.get(task.domain);
+			if (null != running && running >= getDomainConcurrency(task.domain))
+				continue;
+
+			if (null == next || 0 < compare(next, task, now))
+				next = task;
+		}
+
+		if (null != next)
+		{
+			queue.remove(next);
+			Integer running = runningByDomain.get(next.domain);
+			runningByDomain.put(next.domain, (null == running) ? 1 : running + 1);
+		}
+
+		return next;
+	}
+
+	private void work()
+	{
+		while (!stopped)
+		{
+			RefreshTask task = null;
+			synchronized (queue) {
+				while (!stopped && null == (task = pollTask()))
+				{
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+
+			if (null == task)
+				return;
+
+			long start = System.currentTimeMillis();
+			try {
+				task.refresh.run();
+				completed.incrementAndGet();
+			} catch (Throwable t) {
+				failed.incrementAndGet();
+				logger.error("Soft refresh failed: " + task.key, t);
+			} finally {
+				long latency = System.currentTimeMillis() - start;
+				totalLatency.addAndGet(latency);
+				if (latency > maxLatency)
+					maxLatency = latency;
+
+				tasks.remove(task.key, task);
+				synchronized (queue) {
+					Integer running = runningByDomain.get(task.domain);
+					if (null == running || 1 >= running)
+						runningByDomain.remove(task.domain);
+					else
+						runningByDomain.put(task.domain, running - 1);
+
+					queue.notifyAll(); // tasks of the domain can run now
+				}
+			}
+		}
+	}
+
+	public void addStatus(Map<String, String> status) {
+		int queueDepth;
+		synchronized (queue) {
+			queueDepth = queue.size();
+		}
+		long finished = completed.get() + failed.get();
+
+		status.put("soft-refresh.queue-depth", "" + queueDepth);
+		status.put("soft-refresh.running", "" + (tasks.size() - queueDepth));
+		status.put("soft-refresh.scheduled", "" + scheduled.get());
+		status.put("soft-refresh.deduplicated", "" + deduplicated.get());
+		status.put("soft-refresh.dropped", "" + dropped.get());
+		status.put("soft-refresh.completed", "" + completed.get());
+		status.put("soft-refresh.failed", "" + failed.get());
+		status.put("soft-refresh.latency-avg-ms", "" + ((0 == finished) ? 0 : totalLatency.get() / finished));
+		status.put("soft-refresh.latency-max-ms", "" + maxLatency);
+	}
+
+	private static class RefreshTask {
+
+		private final String key;
+
+		private final String domain;
+
+		private final long expireTimeMillis;
+
+		private final Runnable refresh;
+
+		private final AtomicLong hits = new AtomicLong(1); // requests to expired component
+
+		private long seq;
+
+		RefreshTask(String key, String domain, long expireTimeMillis, Runnable refresh) {
+			this.key = key;
+			this.domain = domain;
+			this.expireTimeMillis = expireTimeMillis;
+			this.refresh = refresh;
+		}
+
+		/**
+		 * hits weighted by staleness (seconds since expiration)
+		 */
+		double priority(long now)
+		{
+			long staleness = Math.max(0, now - expireTimeMillis) / 1000;
+			return hits.get() * Math.log(2 + staleness);
+		}
+	}
+
+}
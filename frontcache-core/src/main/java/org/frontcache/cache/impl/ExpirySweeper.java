@@ -0,0 +1,183 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.frontcache.cache.CacheProcessorBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Schedules L2Store.deleteExpired() and keeps sweep settings / metrics.
+ * Store removes expired entries in batches (batchSize) and calls throttle() between batches,
+ * so sweep doesn't remove more than 'rate' entries per second (disk / index is shared with request threads).
+ * Entries expired within stale-if-error grace period are kept.
+ * Entries with validators (ETag / Last-Modified) are kept within revalidation retention period (if it's longer).
+ *
+ */
+public class ExpirySweeper {
+
+	private static final Logger logger = LoggerFactory.getLogger(ExpirySweeper.class);
+
+	private static final String SWEEP_INTERVAL_KEY = "front-cache.cache-processor.impl.l2.expiry-sweep-interval"; // ms, 0 - disabled
+
+	private static final String SWEEP_BATCH_SIZE_KEY = "front-cache.cache-processor.impl.l2.expiry-sweep-batch-size";
+
+	private static final String SWEEP_RATE_KEY = "front-cache.cache-processor.impl.l2.expiry-sweep-rate"; // max removed entries per second
+
+	private static final long SWEEP_INTERVAL_DEFAULT = 60000; // 1 min
+
+	private static final int SWEEP_BATCH_SIZE_DEFAULT = 500;
+
+	private static final int SWEEP_RATE_DEFAULT = 1000;
+
+	private final long interval;
+
+	private final int batchSize;
+
+	private final int rate;
+
+	private final long staleIfErrorGrace; // ms
+
+	private final long revalidateRetention; // ms
+
+	private Timer timer = null;
+
+	private volatile boolean stopped = false;
+
+	private final AtomicLong sweeps = new AtomicLong();
+
+	private final AtomicLong swept = new AtomicLong();
+
+	private volatile long lastSwept = 0;
+
+	private volatile long lastSweepDuration = 0;
+
+	public ExpirySweeper(Properties properties) {
+		interval = Math.max(0, Long.parseLong(properties.getProperty(SWEEP_INTERVAL_KEY, "" + SWEEP_INTERVAL_DEFAULT).trim()));
+		batchSize = Math.max(1, Integer.parseInt(properties.getProperty(SWEEP_BATCH_SIZE_KEY, "" + SWEEP_BATCH_SIZE_DEFAULT).trim()));
+		rate = Math.max(1, Integer.parseInt(properties.getProperty(SWEEP_RATE_KEY, "" + SWEEP_RATE_DEFAULT).trim()));
+		staleIfErrorGrace = CacheProcessorBase.getStaleIfErrorGrace(properties);
+		revalidateRetention = CacheProcessorBase.getRevalidateRetention(properties);
+	}
+
+	/**
+	 *
+	 * @param store - deleteExpired() is called every interval
+	 */
+	public void start(final L2Store store) {
+		if (0 == interval)
+		{
+			logger.info("L2 expiry sweeper is disabled");
+			return;
+		}
+
+		logger.info("L2 expiry sweeper: interval " + interval + " ms, batch size " + batchSize + ", rate " + rate + " entries/sec");
+		timer = new Timer(store.getClass().getSimpleName() + ".expirySweeper", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					store.deleteExpired();
+				} catch (Throwable t) {
+					logger.error("Error during L2 expiry sweep", t);
+				}
+			}
+		}, interval, interval);
+	}
+
+	public void stop() {
+		stopped = true;
+		if (null != timer)
+			timer.cancel();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param now - sweep start time
+	 * @return entries expired before are removed (entries in stale-if-error grace period are kept)
+	 */
+	public long getExpiredBefore(long now) {
+		return now - staleIfErrorGrace;
+	}
+
+	/**
+	 * @param now - sweep start time
+	 * @return entries with validators expired before are removed (entries in revalidation retention period are kept)
+	 */
+	public long getRevalidatableExpiredBefore(long now) {
+		return now - Math.max(staleIfErrorGrace, revalidateRetention);
+	}
+
+	/**
+	 * @param expireTime - entry expire time
+	 * @param revalidatable - entry has validators (ETag / Last-Modified)
+	 * @param now - sweep start time
+	 * @return true if entry should be removed
+	 */
+	public boolean isExpired(long expireTime, boolean revalidatable, long now) {
+		return expireTime < (revalidatable ? getRevalidatableExpiredBefore(now) : getExpiredBefore(now));
+	}
+
+	/**
+	 * Pauses sweep after batch to keep removal rate
+	 *
+	 * @param batchCount - entries removed in the batch
+	 * @param batchStart - time (ms) batch is started
+	 * @return false if sweep should be stopped (store is closing)
+	 */
+	public boolean throttle(int batchCount, long batchStart) {
+		long pause = batchCount * 1000L / rate - (System.currentTimeMillis() - batchStart);
+		if (0 < pause)
+		{
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return !stopped;
+	}
+
+	public void sweepFinished(long sweptCount, long duration) {
+		sweeps.incrementAndGet();
+		swept.addAndGet(sweptCount);
+		lastSwept = sweptCount;
+		lastSweepDuration = duration;
+		if (0 < sweptCount)
+			logger.debug("L2 expiry sweep: {} entries removed in {} ms", sweptCount, duration);
+	}
+
+	public void addStatus(Map<String, String> status) {
+		status.put("expiry-sweeps", "" + sweeps.get());
+		status.put("expiry-swept", "" + swept.get());
+		status.put("expiry-last-swept", "" + lastSwept);
+		status.put("expiry-last-sweep-ms", "" + lastSweepDuration);
+	}
+
+}
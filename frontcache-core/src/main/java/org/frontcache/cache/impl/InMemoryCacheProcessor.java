@@ -17,57 +17,66 @@
 package org.frontcache.cache.impl;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.frontcache.cache.CacheProcessor;
 import org.frontcache.cache.CacheProcessorBase;
+import org.frontcache.core.FCUtils;
 import org.frontcache.core.WebResponse;
 
+/**
+ * 
+ * Heap cache bounded by size in bytes (content + headers) with CLOCK (second chance) eviction.
+ * Hits are lock free - they only set the entry reference bit. 
+ * Puts / removals / eviction are serialized on the clock.
+ *
+ */
 public class InMemoryCacheProcessor extends CacheProcessorBase implements CacheProcessor {
 
+	private static final String MAX_SIZE_KEY = "front-cache.cache-processor.impl.in-memory.maxsize";
+	
+	private static final long MAX_SIZE_DEFAULT = 10L * 1024 * 1024; // 10M
+	
+	// lookups (lock free)
+	private final Map<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	
+	// insertion order - the eldest entry is the next eviction candidate
+	// guarded by itself, all structural changes of cache are done under this lock
+	private final LinkedHashMap<String, CacheEntry> clock = new LinkedHashMap<String, CacheEntry>();
 
-	private Map<String, WebResponse> cache = new ConcurrentHashMap<String, WebResponse>();
+	private final KeyPrefixIndex prefixIndex = new KeyPrefixIndex(); // guarded by clock
 
-	private int currentSize = 0;
-	private int maxSize = 0;
+	private final AtomicLong currentSize = new AtomicLong();
+	
+	private long maxSize = MAX_SIZE_DEFAULT;
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private final AtomicLong admissions = new AtomicLong();
+	
+	private final AtomicLong rejections = new AtomicLong(); // bigger than max size
+	
+	private final AtomicLong evictions = new AtomicLong();
 	
 	@Override
 	public void init(Properties properties) {
 		Objects.requireNonNull(properties, "Properties should not be null");
 		super.init(properties);
 		
-		try
-		{
-			String maxSizeStr = properties.getProperty("front-cache.cache-processor.impl.in-memory.maxsize");
-			String countStr = maxSizeStr;
-			
-			if (null == maxSizeStr)
-			{
-				logger.info("front-cache.cache-processor.impl.in-memory.maxsize is not defined. Please define");
-				logger.info("max cache size is " + maxSize);
-				return;
-			}
-			
-			if (maxSizeStr.endsWith("G"))
-			{
-				countStr = maxSizeStr.substring(0, maxSizeStr.indexOf("G"));
-				maxSize = Integer.parseInt(countStr)  * 1024 * 1024 * 1024; 
-			} else if (maxSizeStr.endsWith("M")) {
-				countStr = maxSizeStr.substring(0, maxSizeStr.indexOf("M"));
-				maxSize = Integer.parseInt(countStr)  * 1024 * 1024; 
-			} else if (maxSizeStr.endsWith("K")) {
-				countStr = maxSizeStr.substring(0, maxSizeStr.indexOf("K"));
-				maxSize = Integer.parseInt(countStr)  * 1024; 
-			} else {
-				maxSize = Integer.parseInt(countStr); 
-			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
+		String maxSizeStr = properties.getProperty(MAX_SIZE_KEY);
+		if (null == maxSizeStr)
+			logger.info(MAX_SIZE_KEY + " is not defined. Please define");
+		
+		maxSize = FCUtils.sizeStr2Long(maxSizeStr, MAX_SIZE_DEFAULT);
 
 		logger.info("max cache size is " + maxSize);
 	}	
@@ -75,32 +84,77 @@ public class InMemoryCacheProcessor extends CacheProcessorBase implements CacheP
 	@Override
 	public void putToCache(String domain, String url, WebResponse component) {
 		
-		int newSize = currentSize + component.getContent().length;
-		if (newSize < maxSize)
+		long size = getSize(component);
+		if (size > maxSize)
 		{
-			cache.put(url, component);
-			currentSize = newSize;
-		} else {
-			logger.info("web component is not cached - max cache size " + maxSize + " is reached");
+			rejections.incrementAndGet();
+			logger.info("web component is not cached - size " + size + " is bigger than max cache size " + maxSize);
+			return;
 		}
 		
+		CacheEntry entry = new CacheEntry(component, size);
+		synchronized (clock) {
+			CacheEntry prev = clock.remove(url);
+			if (null != prev)
+				currentSize.addAndGet(-prev.size);
+			else
+				prefixIndex.put(url);
+			
+			clock.put(url, entry);
+			cache.put(url, entry);
+			currentSize.addAndGet(size);
+			
+			// evict - entries referenced since the last pass get a second chance (moved to the tail)
+			while (currentSize.get() > maxSize && !clock.isEmpty())
+			{
+				Map.Entry<String, CacheEntry> eldest = clock.entrySet().iterator().next();
+				String key = eldest.getKey();
+				CacheEntry candidate = eldest.getValue();
+				clock.remove(key);
+				if (candidate.referenced && candidate != entry)
+				{
+					candidate.referenced = false;
+					clock.put(key, candidate);
+					continue;
+				}
+				
+				cache.remove(key);
+				prefixIndex.remove(key);
+				currentSize.addAndGet(-candidate.size);
+				evictions.incrementAndGet();
+			}
+		}
+		
+		admissions.incrementAndGet();
 		return;
 	}
 
 	@Override
 	public WebResponse getFromCacheImpl(String url) {
 		
-		WebResponse comp = cache.get(url);
-		if (null == comp)
+		CacheEntry entry = cache.get(url);
+		if (null == entry)
+		{
+			misses.incrementAndGet();
 			return null;
+		}
+		
+		if (!entry.referenced) // avoid writes to shared entry on every hit
+			entry.referenced = true;
 		
-		return comp;
+		hits.incrementAndGet();
+		return entry.response;
 	}
 
 	@Override
 	public void destroy() {
 		super.destroy();
-		cache.clear();
+		synchronized (clock) {
+			clock.clear();
+			cache.clear();
+			prefixIndex.clear();
+			currentSize.set(0);
+		}
 		
 		return;
 	}
@@ -108,23 +162,49 @@ public class InMemoryCacheProcessor extends CacheProcessorBase implements CacheP
 	@Override
 	public void removeFromCache(String domain, String filter) {
 
-		List<String> removeList = new ArrayList<String>();
-		
-		for(String key : cache.keySet())
-		{
-			if (-1 < key.indexOf(filter))
-				removeList.add(key);	
+		synchronized (clock) {
+			Iterator<Map.Entry<String, CacheEntry>> it = clock.entrySet().iterator();
+			while (it.hasNext())
+			{
+				Map.Entry<String, CacheEntry> entry = it.next();
+				if (-1 < entry.getKey().indexOf(filter))
+				{
+					it.remove();
+					cache.remove(entry.getKey());
+					prefixIndex.remove(entry.getKey());
+					currentSize.addAndGet(-entry.getValue().size);
+				}
+			}
+		}
+
+		return;
+	}
+
+	@Override
+	public void removeFromCacheByPrefix(String domain, String prefix) {
+
+		synchronized (clock) {
+			for (String key : prefixIndex.getKeysByPrefix(prefix))
+			{
+				CacheEntry removed = clock.remove(key);
+				cache.remove(key);
+				prefixIndex.remove(key);
+				if (null != removed)
+					currentSize.addAndGet(-removed.size);
+			}
 		}
-		
-		for(String key : removeList)
-			cache.remove(key);
 
 		return;
 	}
 
 	@Override
 	public void removeFromCacheAll(String domain) {
-		cache.clear();
+		synchronized (clock) {
+			clock.clear();
+			cache.clear();
+			prefixIndex.clear();
+			currentSize.set(0);
+		}
 	}
 	
 	@Override
@@ -133,15 +213,55 @@ public class InMemoryCacheProcessor extends CacheProcessorBase implements CacheP
 		
 		status.put("impl", this.getClass().getName());
 
-		status.put(CacheProcessor.CACHED_ENTRIES, "" + cache.keySet().size());
+		status.put(CacheProcessor.CACHED_ENTRIES, "" + cache.size());
 		
-		status.put("current size", "" + currentSize);
+		status.put("current size", "" + currentSize.get());
 		
 		status.put("max size", "" + maxSize);
 		
+		status.put("hits", "" + hits.get());
+		
+		status.put("misses", "" + misses.get());
+		
+		status.put("admissions", "" + admissions.get());
+		
+		status.put("rejections", "" + rejections.get());
+		
+		status.put("evictions", "" + evictions.get());
+		
 		return status;
 	}
 
+	/**
+	 * Approximate weight of cached response - content + url + headers 
+	 * 
+	 * @param component
+	 * @return size in bytes
+	 */
+	private static long getSize(WebResponse component)
+	{
+		long size = Math.max(0, component.getContentLenth());
+		
+		if (null != component.getUrl())
+			size += component.getUrl().length();
+		
+		if (null != component.getHeaders())
+		{
+			for (Map.Entry<String, List<String>> header : component.getHeaders().entrySet())
+			{
+				if (null != header.getKey())
+					size += header.getKey().length();
+				
+				if (null != header.getValue())
+					for (String value : header.getValue())
+						if (null != value)
+							size += value.length();
+			}
+		}
+		
+		return size;
+	}
+
 	@Override
 	public List<String> getCachedKeys() {
 		List<String> keys = new ArrayList<String>();
@@ -149,6 +269,21 @@ public class InMemoryCacheProcessor extends CacheProcessorBase implements CacheP
 		return keys;
 	}
 
+	private static class CacheEntry {
+		
+		private final WebResponse response;
+		
+		private final long size;
+		
+		// set on hit, cleared by eviction pass (second chance)
+		private volatile boolean referenced;
+		
+		private CacheEntry(WebResponse response, long size) {
+			this.response = response;
+			this.size = size;
+		}
+	}
+
 	@Override
 	public void patch() {
 		// TODO Auto-generated method stub
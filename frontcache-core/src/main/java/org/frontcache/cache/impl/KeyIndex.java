@@ -0,0 +1,182 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Reverse index (tag -> keys, domain -> keys, URL prefix -> keys) for caches without search capabilities (e.g. ehCache).
+ * Makes tag / domain / prefix invalidation O(matches) instead of full cache scan.
+ *
+ * Updates are serialized, lookups are lock free.
+ *
+ */
+public class KeyIndex {
+
+	private final Map<String, Set<String>> tag2keys = new ConcurrentHashMap<String, Set<String>>();
+
+	private final Map<String, Set<String>> domain2keys = new ConcurrentHashMap<String, Set<String>>();
+
+	private final Map<String, KeyInfo> keys = new ConcurrentHashMap<String, KeyInfo>(); // to clean up tags / domain on remove
+
+	private final KeyPrefixIndex prefixIndex = new KeyPrefixIndex();
+
+	/**
+	 * Adds or replaces key
+	 *
+	 * @param key
+	 * @param domain
+	 * @param tags
+	 */
+	public synchronized void put(String key, String domain, Collection<String> tags)
+	{
+		remove(key);
+
+		KeyInfo info = new KeyInfo(domain, (null == tags) ? Collections.<String>emptySet() : new HashSet<String>(tags));
+		keys.put(key, info);
+		prefixIndex.put(key);
+
+		if (null != domain)
+			add(domain2keys, domain, key);
+
+		for (String tag : info.tags)
+			add(tag2keys, tag, key);
+
+		return;
+	}
+
+	public synchronized void remove(String key)
+	{
+		KeyInfo info = keys.remove(key);
+		if (null == info)
+			return;
+
+		prefixIndex.remove(key);
+
+		if (null != info.domain)
+			remove(domain2keys, info.domain, key);
+
+		for (String tag : info.tags)
+			remove(tag2keys, tag, key);
+
+		return;
+	}
+
+	public synchronized void clear()
+	{
+		keys.clear();
+		tag2keys.clear();
+		domain2keys.clear();
+		prefixIndex.clear();
+	}
+
+	/**
+	 *
+	 * @param tag
+	 * @return snapshot of keys tagged with tag
+	 */
+	public List<String> getKeysByTag(String tag)
+	{
+		return snapshot(tag2keys.get(tag));
+	}
+
+	/**
+	 *
+	 * @param domain
+	 * @return snapshot of keys for domain
+	 */
+	public List<String> getKeysByDomain(String domain)
+	{
+		return snapshot(domain2keys.get(domain));
+	}
+
+	/**
+	 *
+	 * @param prefix - path (e.g. /en/catalog/) or full URL prefix
+	 * @return keys under prefix
+	 */
+	public List<String> getKeysByPrefix(String prefix)
+	{
+		return prefixIndex.getKeysByPrefix(prefix);
+	}
+
+	public boolean contains(String key)
+	{
+		return keys.containsKey(key);
+	}
+
+	public int size()
+	{
+		return keys.size();
+	}
+
+	public int getTagsCount()
+	{
+		return tag2keys.size();
+	}
+
+	private static void add(Map<String, Set<String>> index, String name, String key)
+	{
+		Set<String> set = index.get(name);
+		if (null == set)
+		{
+			set = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			index.put(name, set);
+		}
+		set.add(key);
+	}
+
+	private static void remove(Map<String, Set<String>> index, String name, String key)
+	{
+		Set<String> set = index.get(name);
+		if (null == set)
+			return;
+
+		set.remove(key);
+		if (set.isEmpty())
+			index.remove(name);
+	}
+
+	private static List<String> snapshot(Set<String> set)
+	{
+		if (null == set)
+			return Collections.emptyList();
+
+		return new ArrayList<String>(set);
+	}
+
+	private static class KeyInfo {
+
+		private final String domain;
+
+		private final Set<String> tags;
+
+		KeyInfo(String domain, Set<String> tags) {
+			this.domain = domain;
+			this.tags = tags;
+		}
+	}
+
+}
@@ -0,0 +1,340 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *
+ * Radix trie over URL paths (e.g. /en/catalog/coins.htm?page=2) of cache keys (full URLs)
+ * to find keys by prefix in O(prefix length + matches) instead of full scan.
+ *
+ * Prefix can be
+ *  path - /en/catalog/ (matches keys for any host)
+ *  full URL - http://www.example.com/en/catalog/
+ *
+ */
+public class KeyPrefixIndex {
+
+	private final Node root = new Node("");
+
+	private int size = 0;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * http://www.example.com:8080/en/welcome.htm?a=b -> /en/welcome.htm?a=b
+	 *
+	 * @param urlOrPath
+	 * @return
+	 */
+	public static String toPath(String urlOrPath)
+	{
+		int schemeIdx = urlOrPath.indexOf("://");
+		if (-1 == schemeIdx)
+			return urlOrPath;
+
+		int pathIdx = urlOrPath.indexOf('/', schemeIdx + 3);
+		if (-1 == pathIdx)
+			return "/";
+
+		return urlOrPath.substring(pathIdx);
+	}
+
+	/**
+	 *
+	 * @param prefix - path or full URL prefix
+	 * @param key - cache key (full URL)
+	 * @return true if key is under prefix
+	 */
+	public static boolean matches(String prefix, String key)
+	{
+		if (-1 < prefix.indexOf("://"))
+			return key.startsWith(prefix);
+
+		return toPath(key).startsWith(prefix);
+	}
+
+	public void put(String key)
+	{
+		String path = toPath(key);
+
+		lock.writeLock().lock();
+		try {
+			Node node = root;
+			int i = 0;
+			while (i < path.length())
+			{
+				char c = path.charAt(i);
+				Node child = node.getChild(c);
+				if (null == child)
+				{
+					child = new Node(path.substring(i));
+					node.putChild(child);
+					node = child;
+					break;
+				}
+
+				int common = commonPrefixLength(child.label, path, i);
+				if (common < child.label.length())
+				{
+					// split edge
+					Node mid = new Node(child.label.substring(0, common));
+					child.label = child.label.substring(common);
+					mid.putChild(child);
+					node.putChild(mid);
+					child = mid;
+				}
+
+				node = child;
+				i += common;
+			}
+
+			if (node.addKey(key))
+				size++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(String key)
+	{
+		String path = toPath(key);
+
+		lock.writeLock().lock();
+		try {
+			List<Node> nodes = new ArrayList<Node>(); // path from root
+			Node node = root;
+			nodes.add(node);
+			int i = 0;
+			while (i < path.length())
+			{
+				node = node.getChild(path.charAt(i));
+				if (null == node || !path.startsWith(node.label, i))
+					return;
+
+				nodes.add(node);
+				i += node.label.length();
+			}
+
+			if (!node.removeKey(key))
+				return;
+
+			size--;
+
+			// clean up empty nodes
+			for (int n = nodes.size() - 1; n > 0; n--)
+			{
+				Node current = nodes.get(n);
+				Node parent = nodes.get(n - 1);
+				if (current.isEmpty())
+				{
+					parent.removeChild(current);
+					continue; // parent can become empty or mergeable
+				}
+
+				if (null == current.keys && 1 == current.children.size())
+					current.mergeWithChild();
+
+				break;
+			}
+
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @param prefix - path or full URL prefix
+	 * @return keys under prefix
+	 */
+	public List<String> getKeysByPrefix(String prefix)
+	{
+		String path = toPath(prefix);
+		boolean fullUrl = -1 < prefix.indexOf("://");
+
+		List<String> keys = new ArrayList<String>();
+
+		lock.readLock().lock();
+		try {
+			Node node = root;
+			int i = 0;
+			while (i < path.length())
+			{
+				Node child = node.getChild(path.charAt(i));
+				if (null == child)
+					return keys;
+
+				int remaining = path.length() - i;
+				if (remaining <= child.label.length())
+				{
+					if (!child.label.startsWith(path.substring(i)))
+						return keys;
+				} else if (!path.startsWith(child.label, i)) {
+					return keys;
+				}
+
+				node = child;
+				i += child.label.length();
+			}
+
+			// collect subtree
+			ArrayDeque<Node> stack = new ArrayDeque<Node>();
+			stack.push(node);
+			while (!stack.isEmpty())
+			{
+				Node current = stack.pop();
+				if (null != current.keys)
+					for (String key : current.keys)
+						if (!fullUrl || key.startsWith(prefix)) // different hosts share the same path
+							keys.add(key);
+
+				if (null != current.children)
+					for (Node child : current.children.values())
+						stack.push(child);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return keys;
+	}
+
+	public int size()
+	{
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void clear()
+	{
+		lock.writeLock().lock();
+		try {
+			root.children = null;
+			root.keys = null;
+			size = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static int commonPrefixLength(String label, String path, int offset)
+	{
+		int max = Math.min(label.length(), path.length() - offset);
+		int i = 0;
+		while (i < max && label.charAt(i) == path.charAt(offset + i))
+			i++;
+
+		return i;
+	}
+
+	/**
+	 *
+	 * Trie node. Edge label is stored in child node
+	 *
+	 */
+	private static class Node {
+
+		private String label;
+
+		private Map<Character, Node> children; // lazy
+
+		private Set<String> keys; // lazy, keys (full URLs) with the path ending at the node
+
+		Node(String label) {
+			this.label = label;
+		}
+
+		Node getChild(char c)
+		{
+			return (null == children) ? null : children.get(c);
+		}
+
+		void putChild(Node child)
+		{
+			if (null == children)
+				children = new HashMap<Character, Node>(4);
+
+			children.put(child.label.charAt(0), child);
+		}
+
+		void removeChild(Node child)
+		{
+			children.remove(child.label.charAt(0));
+			if (children.isEmpty())
+				children = null;
+		}
+
+		boolean addKey(String key)
+		{
+			if (null == keys)
+			{
+				keys = Collections.singleton(key); // single host is the most common case
+				return true;
+			}
+
+			if (keys.contains(key))
+				return false;
+
+			if (1 == keys.size())
+				keys = new HashSet<String>(keys);
+
+			keys.add(key);
+			return true;
+		}
+
+		boolean removeKey(String key)
+		{
+			if (null == keys || !keys.contains(key))
+				return false;
+
+			if (1 == keys.size())
+				keys = null;
+			else
+				keys.remove(key);
+
+			return true;
+		}
+
+		boolean isEmpty()
+		{
+			return null == keys && null == children;
+		}
+
+		void mergeWithChild()
+		{
+			Node child = children.values().iterator().next();
+			label = label + child.label;
+			children = child.children;
+			keys = child.keys;
+		}
+	}
+
+}
@@ -36,14 +36,16 @@ import org.slf4j.LoggerFactory;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
 
 
 /**
  * Cache processor based on 
  * 
  * L1 - ehCache.
- * L2 - Apache Lucene.
+ * L2 - Apache Lucene (default) or LogStructuredStore.
  *
  */
 public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProcessor {
@@ -60,9 +62,17 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 	private CacheManager ehCacheManager = null;
 	
 	private Cache ehCache = null;
+	
+	private final KeyIndex l1KeyIndex = new KeyIndex(); // tag / domain -> keys (for invalidation)
 
     // L2 
-	private LuceneIndexManager luceneIndexManager;
+	private L2Store l2Store;
+	
+	private static final String L2_STORE_KEY = "front-cache.cache-processor.impl.l2.store"; // lucene | log
+	
+	private static final String L2_STORE_LUCENE = "lucene"; // default
+	
+	private static final String L2_STORE_LOG = "log"; // LogStructuredStore
 	
 	private static String CACHE_BASE_DIR_DEFAULT = "/tmp/cache/";
 	
@@ -70,6 +80,8 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 	
 	private static String CACHE_RELATIVE_DIR = "cache/l2-lucene-index/";
 	
+	private static final String LOG_STORE_RELATIVE_DIR = "cache/l2-log-store/";
+	
 	private static String INDEX_BASE_DIR = CACHE_BASE_DIR_DEFAULT + CACHE_RELATIVE_DIR;
 
 
@@ -117,17 +129,23 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
         	ehCacheManager.addCache(FRONT_CACHE);
             ehCache = ehCacheManager.getCache(FRONT_CACHE);
         }
+        
+        // keep l1KeyIndex in sync with evictions / expirations as well
+        ehCache.getCacheEventNotificationService().registerListener(new L1KeyIndexListener(l1KeyIndex));
 		
 		
-		// L2 - Lucene
+		// L2 - Lucene (default) or log store
+		String l2StoreType = properties.getProperty(L2_STORE_KEY, L2_STORE_LUCENE).trim();
+		String relativeDir = L2_STORE_LOG.equalsIgnoreCase(l2StoreType) ? LOG_STORE_RELATIVE_DIR : CACHE_RELATIVE_DIR;
+		
 		if (null != properties.getProperty(CACHE_BASE_DIR_KEY))
 		{
 			CACHE_BASE_DIR_DEFAULT = properties.getProperty(CACHE_BASE_DIR_KEY);
-			INDEX_BASE_DIR = CACHE_BASE_DIR_DEFAULT + CACHE_RELATIVE_DIR;
+			INDEX_BASE_DIR = CACHE_BASE_DIR_DEFAULT + relativeDir;
 		} else {
 			// get from FRONTCACHE_HOME
 			String frontcacheHome = System.getProperty(FCConfig.FRONT_CACHE_HOME_SYSTEM_KEY);
-			File fsBaseDir = new File(new File(frontcacheHome), CACHE_RELATIVE_DIR);
+			File fsBaseDir = new File(new File(frontcacheHome), relativeDir);
 			
 			INDEX_BASE_DIR = fsBaseDir.getAbsolutePath();
 			if (!INDEX_BASE_DIR.endsWith("/"))
@@ -135,7 +153,15 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 			
 		}
 		
-		luceneIndexManager = new LuceneIndexManager(INDEX_BASE_DIR);
+		if (L2_STORE_LOG.equalsIgnoreCase(l2StoreType))
+		{
+			l2Store = new LogStructuredStore(INDEX_BASE_DIR, properties);
+		} else {
+			if (!L2_STORE_LUCENE.equalsIgnoreCase(l2StoreType))
+				logger.error("Unknown L2 store " + l2StoreType + " - default is used (" + L2_STORE_LUCENE + ")");
+			
+			l2Store = new LuceneIndexManager(INDEX_BASE_DIR, properties);
+		}
 	}
 	
 	@Override
@@ -159,8 +185,8 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 			ex.printStackTrace();
 		}
 		
-		logger.info("Running destroy() for Lucene");
-		luceneIndexManager.close();
+		logger.info("Running destroy() for L2");
+		l2Store.close();
 		return;
 	}
 
@@ -197,9 +223,9 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 			
 			// L2 (default)
 			try {
-				luceneIndexManager.indexDoc(component);
+				l2Store.put(component);
 			} catch (IOException e) {
-				logger.error("Error during putting response to lucene cache", e);
+				logger.error("Error during putting response to L2 cache", e);
 			}
 		}
 		
@@ -217,79 +243,80 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 		if (null != el && null != el.getObjectValue())
 			return (WebResponse) el.getObjectValue();
 	
-		// check L2 - Lucene
-		WebResponse webResponse = luceneIndexManager.getResponse(url);
+		// check L2
+		WebResponse webResponse = l2Store.getResponse(url);
 		
 		return webResponse;
 	}
 	
+	@Override
+	public WebResponse getMetadataFromCacheImpl(String url) {
+		Element el = ehCache.get(url); // check L1 - ehCache
+		if (null != el && null != el.getObjectValue())
+			return (WebResponse) el.getObjectValue();
+	
+		// check L2 - content is not read
+		return l2Store.getResponseMetadata(url);
+	}
+	
 
 	@Override
 	public void removeFromCache(String domain, String filter) {
 		logger.debug("Removing from cache {}", filter);
 		
-		{ // remove from ehCache
-			List<Object> removeList = new ArrayList<Object>();
-			
-			for(Object key : ehCache.getKeys())
-			{
-				String objDomain = ((WebResponse) ehCache.get(key).getObjectValue()).getDomain();
-				
-				String str = key.toString();
-//				if (domain.equals(objDomain) && -1 < str.indexOf(filter))
-				if (-1 < str.indexOf(filter))
-					removeList.add(key);
-			}
-			
-			for(Object key : removeList)
-				ehCache.remove(key);
-		}
+		removeFromL1(filter);
 
-		// remove from Lucene
-		luceneIndexManager.delete(domain, filter);
+		// remove from L2
+		l2Store.delete(domain, filter);
 	}
 
 
 	public void removeFromCache(String filter) {
 		logger.debug("Removing from cache {}", filter);
 		
-		{ // remove from ehCache
-			List<Object> removeList = new ArrayList<Object>();
-			
-			for(Object key : ehCache.getKeys())
-			{
-				String str = key.toString();
-				if (-1 < str.indexOf(filter))
-					removeList.add(key);
-			}
-			
-			for(Object key : removeList)
-				ehCache.remove(key);
-		}
+		removeFromL1(filter);
 
-		// remove from Lucene
-		luceneIndexManager.delete(filter);
+		// remove from L2
+		l2Store.delete(filter);
+	}
+	
+	/**
+	 * Removes from ehCache by exact URL or tag (the same way as for Lucene) 
+	 * 
+	 * @param urlOrTag
+	 */
+	private void removeFromL1(String urlOrTag)
+	{
+		ehCache.remove(urlOrTag);
+		
+		for (String key : l1KeyIndex.getKeysByTag(urlOrTag))
+			ehCache.remove(key);
+		
+		return;
+	}
+	
+	@Override
+	public void removeFromCacheByPrefix(String domain, String prefix) {
+		logger.debug("Removing from cache by prefix {}", prefix);
+		
+		// remove from ehCache
+		for (String key : l1KeyIndex.getKeysByPrefix(prefix))
+			ehCache.remove(key);
+		
+		// remove from L2
+		l2Store.deleteByPrefix(prefix);
 	}
 	
 	@Override
 	public void removeFromCacheAll(String domain) {
 		logger.debug("truncate cache");
 
-		{ // remove from ehCache
-			List<Object> removeList = new ArrayList<Object>();
-			
-			for(Object key : ehCache.getKeys())
-			{
-				String objDomain = ((WebResponse) ehCache.get(key).getObjectValue()).getDomain();
-				if (null != domain && domain.equals(objDomain))
-					removeList.add(key);
-			}
-			
-			for(Object key : removeList)
+		// remove from ehCache
+		if (null != domain)
+			for (String key : l1KeyIndex.getKeysByDomain(domain))
 				ehCache.remove(key);
-		}
 
-		luceneIndexManager.deleteAll(domain);
+		l2Store.deleteAll(domain);
 	}
 	
 	
@@ -298,14 +325,18 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 		Map<String, String> status = super.getCacheStatus();
 		status.put("impl", this.getClass().getName());
 		status.put("impl_L1", "EhCache");
-		status.put("impl_L2", "Lucene");
-		status.put(CacheProcessor.CACHED_ENTRIES, "" + (ehCache.getKeys().size() + luceneIndexManager.getIndexSize()));
+		status.put("impl_L2", l2Store.getClass().getSimpleName());
+		status.put(CacheProcessor.CACHED_ENTRIES, "" + (ehCache.getKeys().size() + l2Store.getIndexSize()));
 		status.put(CacheProcessor.CACHED_ENTRIES + "-L1", "" + ehCache.getKeys().size());
-		status.put(CacheProcessor.CACHED_ENTRIES + "-L2", "" + luceneIndexManager.getIndexSize());
+		status.put("L1.indexed-keys", "" + l1KeyIndex.size());
+		status.put("L1.indexed-tags", "" + l1KeyIndex.getTagsCount());
+		status.put(CacheProcessor.CACHED_ENTRIES + "-L2", "" + l2Store.getIndexSize());
+		for (Map.Entry<String, String> l2Status : l2Store.getStatus().entrySet())
+			status.put("L2." + l2Status.getKey(), l2Status.getValue());
 		
 		for (String domain : FCConfig.getDomains())
 		{
-			long domainCount = luceneIndexManager.getDocumentsCount(domain);
+			long domainCount = l2Store.getDocumentsCount(domain);
 			status.put(CacheProcessor.CACHED_ENTRIES + "-L2." + domain, "" + domainCount);
 		}
 		
@@ -321,8 +352,8 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 		for (Object key : ehCache.getKeys())
 			keys.add(key.toString());
 
-		// Lucene
-		keys.addAll(luceneIndexManager.getKeys());
+		// L2
+		keys.addAll(l2Store.getKeys());
 		
 		return keys;
 	}
@@ -340,7 +371,7 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 		
 		System.out.println("!!!!! start getting keys ... ");
 		logger.info("!!!!! start getting keys ... ");
-		List<String> urls = luceneIndexManager.getKeys();
+		List<String> urls = l2Store.getKeys();
 		System.out.println("" + urls.size() + " keys are found ... ");
 		logger.info("" + urls.size() + " keys are found ... ");
 		
@@ -376,11 +407,65 @@ public class L1L2CacheProcessor extends CacheProcessorBase implements CacheProce
 				webResponseDomainNullErrorCounter++;
 			}
 			
-		} // for (String url : luceneIndexManager.getKeys())
+		} // for (String url : l2Store.getKeys())
 
 		System.out.println("webResponseNullCounter = " + webResponseNullCounter + " webResponseDomainErrorCounter = " + webResponseDomainErrorCounter + ", webResponseDomainNullErrorCounter = " + webResponseDomainNullErrorCounter);
 		
 		return;
 	}
-}
+	
+	/**
+	 * 
+	 * Maintains L1 key index on ehCache changes (including evictions and expirations)
+	 *
+	 */
+	static class L1KeyIndexListener extends CacheEventListenerAdapter {
+
+		private final KeyIndex keyIndex;
+		
+		L1KeyIndexListener(KeyIndex keyIndex) {
+			this.keyIndex = keyIndex;
+		}
+
+		@Override
+		public void notifyElementPut(Ehcache cache, Element element) {
+			index(element);
+		}
+
+		@Override
+		public void notifyElementUpdated(Ehcache cache, Element element) {
+			index(element);
+		}
+
+		@Override
+		public void notifyElementRemoved(Ehcache cache, Element element) {
+			keyIndex.remove(element.getObjectKey().toString());
+		}
+
+		@Override
+		public void notifyElementExpired(Ehcache cache, Element element) {
+			keyIndex.remove(element.getObjectKey().toString());
+		}
+
+		@Override
+		public void notifyElementEvicted(Ehcache cache, Element element) {
+			keyIndex.remove(element.getObjectKey().toString());
+		}
 
+		@Override
+		public void notifyRemoveAll(Ehcache cache) {
+			keyIndex.clear();
+		}
+		
+		private void index(Element element)
+		{
+			Object value = element.getObjectValue();
+			if (value instanceof WebResponse)
+			{
+				WebResponse webResponse = (WebResponse) value;
+				keyIndex.put(element.getObjectKey().toString(), webResponse.getDomain(), webResponse.getTags());
+			}
+		}
+	}
+	
+}
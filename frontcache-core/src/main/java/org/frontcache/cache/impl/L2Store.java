@@ -0,0 +1,78 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.frontcache.core.WebResponse;
+
+/**
+ *
+ * Persistent (L2) storage for L1L2CacheProcessor
+ * implementations - LuceneIndexManager, LogStructuredStore
+ *
+ */
+public interface L2Store {
+
+	public void put(WebResponse response) throws IOException;
+
+	public WebResponse getResponse(String url);
+
+	/**
+	 *
+	 * @param url
+	 * @return response without content (content is not read)
+	 */
+	public WebResponse getResponseMetadata(String url);
+
+	/**
+	 * Removes by exact URL or tag
+	 *
+	 * @param domain
+	 * @param urlOrTag
+	 */
+	public void delete(String domain, String urlOrTag);
+
+	public void delete(String urlOrTag);
+
+	/**
+	 *
+	 * @param prefix - path (e.g. /en/catalog/) or full URL prefix
+	 */
+	public void deleteByPrefix(String prefix);
+
+	public void deleteAll(String domain);
+
+	public void deleteExpired();
+
+	public List<String> getKeys();
+
+	public int getIndexSize();
+
+	public long getDocumentsCount(String domain);
+
+	/**
+	 *
+	 * @return implementation specific metrics (e.g. commits, compactions)
+	 */
+	public Map<String, String> getStatus();
+
+	public void close();
+
+}
@@ -0,0 +1,858 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.frontcache.cache.CacheProcessorBase;
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.FCUtils;
+import org.frontcache.core.WebResponse;
+import org.frontcache.core.WebResponseCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * L2 store - append-only segment files (memory-mapped) + in-memory key -> location index.
+ *
+ * Record: int body length | int CRC32 of body | body
+ *  put body - type | int key length | key | int meta length | meta (WebResponseCodec) | int content length (-1 - null) | content
+ *  delete body - type | int key length | key
+ *
+ * Index (incl. tags / domains / URL prefixes) is rebuilt from segments on start,
+ * torn / corrupted tail of segment (e.g. after crash) is detected by CRC and cut.
+ * Segments with many dead records (overwritten / deleted) are compacted in background.
+ * Expired entries are removed by ExpirySweeper (expire time is kept in index).
+ *
+ */
+public class LogStructuredStore implements L2Store {
+
+	private static final Logger logger = LoggerFactory.getLogger(LogStructuredStore.class);
+
+	private static final String SEGMENT_SIZE_KEY = "front-cache.cache-processor.impl.l2.log.segment-size";
+
+	private static final String COMPACTION_THRESHOLD_KEY = "front-cache.cache-processor.impl.l2.log.compaction-threshold"; // dead bytes ratio
+
+	private static final String COMPACTION_INTERVAL_KEY = "front-cache.cache-processor.impl.l2.log.compaction-interval"; // ms
+
+	private static final String DURABILITY_KEY = "front-cache.cache-processor.impl.l2.durability"; // sync | async (the same as for Lucene)
+
+	private static final String COMMIT_INTERVAL_KEY = "front-cache.cache-processor.impl.l2.commit-interval"; // async - how often segments are flushed to disk (ms)
+
+	private static final long SEGMENT_SIZE_DEFAULT = 64L * 1024 * 1024; // 64M
+
+	private static final double COMPACTION_THRESHOLD_DEFAULT = 0.5;
+
+	private static final long COMPACTION_INTERVAL_DEFAULT = 60000; // 1 min
+
+	private static final long COMMIT_INTERVAL_DEFAULT = 5000; // 5 sec
+
+	private static final String SEGMENT_FILE_SUFFIX = ".seg";
+
+	private static final byte RECORD_PUT = 1;
+
+	private static final byte RECORD_DELETE = 2;
+
+	private static final int RECORD_HEADER_SIZE = 8; // body length + crc
+
+	private final File dir;
+
+	private final int segmentSize;
+
+	private final double compactionThreshold;
+
+	private final boolean syncDurability;
+
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>(); // ordered by id, the last one is active
+
+	private Segment activeSegment; // guarded by this
+
+	private long nextSegmentId = 0; // guarded by this
+
+	private final Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+	private final KeyIndex keyIndex = new KeyIndex(); // tags / domains / prefixes
+
+	private final Timer timer = new Timer("LogStructuredStore.timer", true);
+
+	private final AtomicLong compactions = new AtomicLong();
+
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+
+	private long recoveredRecords = 0;
+
+	private long truncatedSegments = 0;
+
+	private final ExpirySweeper expirySweeper;
+
+	/**
+	 *
+	 * @param dirPath - directory for segment files
+	 * @param properties
+	 */
+	public LogStructuredStore(String dirPath, Properties properties) {
+
+		dir = new File(dirPath);
+		if (!dir.exists())
+			dir.mkdirs();
+
+		long segmentSizeLong = FCUtils.sizeStr2Long(properties.getProperty(SEGMENT_SIZE_KEY), SEGMENT_SIZE_DEFAULT);
+		if (segmentSizeLong < 1024 || segmentSizeLong > Integer.MAX_VALUE)
+		{
+			logger.info("wrong L2 segment size " + segmentSizeLong + " - default is used " + SEGMENT_SIZE_DEFAULT);
+			segmentSizeLong = SEGMENT_SIZE_DEFAULT;
+		}
+		segmentSize = (int) segmentSizeLong;
+
+		compactionThreshold = getDoubleProperty(properties, COMPACTION_THRESHOLD_KEY, COMPACTION_THRESHOLD_DEFAULT);
+		long compactionInterval = getLongProperty(properties, COMPACTION_INTERVAL_KEY, COMPACTION_INTERVAL_DEFAULT);
+		long commitInterval = getLongProperty(properties, COMMIT_INTERVAL_KEY, COMMIT_INTERVAL_DEFAULT);
+		syncDurability = !LuceneIndexManager.DURABILITY_ASYNC.equalsIgnoreCase(properties.getProperty(DURABILITY_KEY, LuceneIndexManager.DURABILITY_SYNC).trim());
+
+		logger.info("L2 log store: " + dir.getAbsolutePath() + ", segment size: " + segmentSize + ", compaction threshold: " + compactionThreshold
+				+ ", durability: " + (syncDurability ? LuceneIndexManager.DURABILITY_SYNC : LuceneIndexManager.DURABILITY_ASYNC));
+
+		try {
+			recover();
+		} catch (IOException e) {
+			logger.error("Error during L2 log store recovery " + dir.getAbsolutePath(), e);
+		}
+
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (Throwable t) {
+					logger.error("Error during L2 log store compaction", t);
+				}
+			}
+		}, compactionInterval, compactionInterval);
+
+		if (!syncDurability)
+		{
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					force();
+				}
+			}, commitInterval, commitInterval);
+		}
+
+		expirySweeper = new ExpirySweeper(properties);
+		expirySweeper.start(this);
+	}
+
+	private static long getLongProperty(Properties properties, String key, long defaultValue) {
+		String valueStr = properties.getProperty(key);
+		if (null != valueStr && valueStr.trim().length() > 0)
+		{
+			try
+			{
+				long value = Long.parseLong(valueStr.trim());
+				if (0 < value)
+					return value;
+			} catch (Exception ex) {
+				// default is used
+			}
+			logger.error("Can't read " + key + "=" + valueStr + ". Default is used " + defaultValue);
+		}
+		return defaultValue;
+	}
+
+	private static double getDoubleProperty(Properties properties, String key, double defaultValue) {
+		String valueStr = properties.getProperty(key);
+		if (null != valueStr && valueStr.trim().length() > 0)
+		{
+			try
+			{
+				double value = Double.parseDouble(valueStr.trim());
+				if (0 < value && value <= 1)
+					return value;
+			} catch (Exception ex) {
+				// default is used
+			}
+			logger.error("Can't read " + key + "=" + valueStr + ". Default is used " + defaultValue);
+		}
+		return defaultValue;
+	}
+
+	@Override
+	public void put(WebResponse response) throws IOException {
+
+		if (null == response.getUrl())
+		{
+			logger.error("URL can't be null for " + response);
+			return;
+		}
+
+		byte[] record = encodePut(response);
+
+		synchronized (this) {
+			Location location = append(record, getExpireTime(response), CacheProcessorBase.hasValidators(response));
+			markDead(index.put(response.getUrl(), location));
+			keyIndex.put(response.getUrl(), response.getDomain(), response.getTags());
+
+			if (syncDurability)
+				activeSegment.buffer.force();
+		}
+	}
+
+	@Override
+	public WebResponse getResponse(String url) {
+		return getResponse(url, true);
+	}
+
+	@Override
+	public WebResponse getResponseMetadata(String url) {
+		return getResponse(url, false);
+	}
+
+	private WebResponse getResponse(String url, boolean withContent) {
+		Location location = index.get(url);
+		if (null == location)
+			return null;
+
+		try {
+			// segment can be compacted meanwhile - mapping stays valid till buffer is GC-ed
+			ByteBuffer buffer = location.segment.buffer.duplicate();
+			buffer.position(location.offset + RECORD_HEADER_SIZE + 1); // skip header & type
+			skipBytes(buffer, buffer.getInt()); // key
+
+			byte[] meta = new byte[buffer.getInt()];
+			buffer.get(meta);
+
+			byte[] content = null;
+			int contentLength = buffer.getInt();
+			if (-1 < contentLength && withContent)
+			{
+				content = new byte[contentLength];
+				buffer.get(content);
+			}
+
+			WebResponse response = WebResponseCodec.decode(meta);
+			if (!withContent)
+				return response;
+
+			if (WebResponseCodec.isContentGzipped(meta, 0, meta.length))
+				response.setGzippedContent(content);
+			else
+				response.setContent(content);
+			return response;
+		} catch (Exception e) {
+			logger.error("Error during loading data from L2 log store", e);
+		}
+
+		return null;
+	}
+
+	@Override
+	public void delete(String domain, String urlOrTag) {
+		delete(urlOrTag);
+	}
+
+	@Override
+	public synchronized void delete(String urlOrTag) {
+		deleteKey(urlOrTag);
+
+		for (String key : keyIndex.getKeysByTag(urlOrTag))
+			deleteKey(key);
+
+		if (syncDurability)
+			activeSegment.buffer.force();
+	}
+
+	@Override
+	public synchronized void deleteByPrefix(String prefix) {
+		for (String key : keyIndex.getKeysByPrefix(prefix))
+			deleteKey(key);
+
+		if (syncDurability)
+			activeSegment.buffer.force();
+	}
+
+	@Override
+	public synchronized void deleteAll(String domain) {
+		if (null == domain)
+		{
+			logger.error("Cant delete all with null domain");
+			return;
+		}
+
+		for (String key : keyIndex.getKeysByDomain(domain))
+			deleteKey(key);
+
+		if (syncDurability)
+			activeSegment.buffer.force();
+	}
+
+	/**
+	 * Removes expired (for all client types) entries in batches.
+	 * Soft refresh entries are not removed
+	 */
+	@Override
+	public void deleteExpired() {
+		long start = System.currentTimeMillis();
+		long swept = 0;
+
+		int batchSize = expirySweeper.getBatchSize();
+		List<String> batch = new ArrayList<String>(batchSize);
+		long batchStart = start;
+
+		Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator(); // weakly consistent - no lock for scan
+		while (it.hasNext())
+		{
+			Map.Entry<String, Location> entry = it.next();
+			if (isExpired(entry.getValue(), start))
+				batch.add(entry.getKey());
+
+			if (batch.size() < batchSize && (it.hasNext() || batch.isEmpty()))
+				continue;
+
+			int removed = deleteExpired(batch, start);
+			swept += removed;
+			batch.clear();
+
+			if (!expirySweeper.throttle(removed, batchStart))
+				break;
+
+			batchStart = System.currentTimeMillis();
+		}
+
+		expirySweeper.sweepFinished(swept, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 *
+	 * @param keys
+	 * @param now - sweep start time
+	 * @return amount of removed entries (entry can be updated since it was found)
+	 */
+	private synchronized int deleteExpired(List<String> keys, long now) {
+		int removed = 0;
+		for (String key : keys)
+		{
+			Location location = index.get(key);
+			if (null != location && isExpired(location, now))
+			{
+				deleteKey(key);
+				removed++;
+			}
+		}
+
+		if (syncDurability && 0 < removed)
+			activeSegment.buffer.force();
+
+		return removed;
+	}
+
+	private boolean isExpired(Location location, long now) {
+		return expirySweeper.isExpired(location.expireTime, location.revalidatable, now);
+	}
+
+	@Override
+	public List<String> getKeys() {
+		return new ArrayList<String>(index.keySet());
+	}
+
+	@Override
+	public int getIndexSize() {
+		return index.size();
+	}
+
+	@Override
+	public long getDocumentsCount(String domain) {
+		return keyIndex.getKeysByDomain(domain).size();
+	}
+
+	@Override
+	public Map<String, String> getStatus() {
+		long storeSize = 0;
+		long usedSize = 0;
+		long deadSize = 0;
+		long tombstoneSize = 0;
+		for (Segment segment : segments)
+		{
+			storeSize += segment.capacity;
+			usedSize += segment.writePosition;
+			deadSize += segment.deadBytes.get();
+			tombstoneSize += segment.tombstoneBytes.get();
+		}
+
+		Map<String, String> status = new HashMap<String, String>();
+		status.put("durability", syncDurability ? LuceneIndexManager.DURABILITY_SYNC : LuceneIndexManager.DURABILITY_ASYNC);
+		status.put("segments", "" + segments.size());
+		status.put("store-size", "" + storeSize);
+		status.put("used-size", "" + usedSize);
+		status.put("dead-size", "" + deadSize);
+		status.put("tombstone-size", "" + tombstoneSize);
+		status.put("compactions", "" + compactions.get());
+		status.put("reclaimed-size", "" + reclaimedBytes.get());
+		status.put("recovered-records", "" + recoveredRecords);
+		status.put("truncated-segments", "" + truncatedSegments);
+		expirySweeper.addStatus(status);
+		return status;
+	}
+
+	@Override
+	public void close() {
+		timer.cancel();
+		expirySweeper.stop();
+
+		synchronized (this) {
+			for (Segment segment : segments)
+			{
+				try {
+					segment.buffer.force();
+					segment.channel.close();
+				} catch (IOException e) {
+					logger.error("Error during closing L2 segment " + segment.file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * should be called under lock
+	 *
+	 * @param key
+	 */
+	private void deleteKey(String key) {
+		Location location = index.remove(key);
+		if (null == location)
+			return;
+
+		markDead(location);
+		keyIndex.remove(key);
+
+		try {
+			markTombstone(append(encodeDelete(key), Long.MAX_VALUE, false));
+		} catch (IOException e) {
+			logger.error("Error during writing L2 tombstone for " + key, e);
+		}
+	}
+
+	/**
+	 * Appends record to active segment (new segment is created if there is no space)
+	 * should be called under lock
+	 *
+	 * @param record
+	 * @param expireTime - expire time of put record
+	 * @param revalidatable - put record has validators (kept longer by expiry sweep)
+	 * @return
+	 * @throws IOException
+	 */
+	private Location append(byte[] record, long expireTime, boolean revalidatable) throws IOException {
+
+		if (null == activeSegment || activeSegment.capacity - activeSegment.writePosition < record.length)
+			roll(record.length);
+
+		int offset = activeSegment.writePosition;
+		ByteBuffer buffer = activeSegment.buffer.duplicate();
+		buffer.position(offset);
+		buffer.put(record);
+		activeSegment.writePosition = offset + record.length;
+
+		return new Location(activeSegment, offset, record.length, expireTime, revalidatable);
+	}
+
+	/**
+	 * should be called under lock
+	 *
+	 * @param minSize - size of record to be written
+	 * @throws IOException
+	 */
+	private void roll(int minSize) throws IOException {
+		if (null != activeSegment)
+			activeSegment.buffer.force();
+
+		long id = nextSegmentId++;
+		File file = new File(dir, String.format("%016d", id) + SEGMENT_FILE_SUFFIX);
+		Segment segment = new Segment(id, file, Math.max(segmentSize, minSize));
+		segments.add(segment);
+		activeSegment = segment;
+		logger.debug("New L2 segment {}", file);
+	}
+
+	/**
+	 *
+	 * @param response
+	 * @return Long.MAX_VALUE for soft refresh (stale content is served while refreshing)
+	 */
+	private static long getExpireTime(WebResponse response) {
+		if (FCHeaders.COMPONENT_REFRESH_TYPE_SOFT.equalsIgnoreCase(response.getRefreshType()))
+			return Long.MAX_VALUE;
+
+		return response.getExpireTimeMillis();
+	}
+
+	private static void markDead(Location location) {
+		if (null != location)
+			location.segment.deadBytes.addAndGet(location.length);
+	}
+
+	/**
+	 * tombstone masks puts in older segments - it's not dead till its segment becomes the oldest one (see compact())
+	 */
+	private static void markTombstone(Location location) {
+		location.segment.tombstoneBytes.addAndGet(location.length);
+	}
+
+	private void force() {
+		Segment segment = activeSegment;
+		if (null != segment)
+			segment.buffer.force();
+	}
+
+	/**
+	 * Rebuilds index from segment files
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void recover() throws IOException {
+
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_FILE_SUFFIX);
+			}
+		});
+
+		if (null == files)
+			files = new File[0];
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(getSegmentId(f1), getSegmentId(f2));
+			}
+		});
+
+		CRC32 crc = new CRC32();
+		for (File file : files)
+		{
+			long id = getSegmentId(file);
+			if (file.length() > Integer.MAX_VALUE || file.length() < RECORD_HEADER_SIZE)
+			{
+				logger.error("Wrong L2 segment file size " + file + " - skipped");
+				continue;
+			}
+
+			Segment segment = new Segment(id, file, (int) file.length());
+			nextSegmentId = id + 1;
+
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int pos = 0;
+			boolean corrupted = false;
+			while (pos + RECORD_HEADER_SIZE <= segment.capacity)
+			{
+				int bodyLength = buffer.getInt(pos);
+				if (0 == bodyLength)
+					break; // end of data
+
+				if (bodyLength < 0 || pos + RECORD_HEADER_SIZE + bodyLength > segment.capacity)
+				{
+					corrupted = true;
+					break;
+				}
+
+				ByteBuffer body = segment.buffer.duplicate();
+				body.position(pos + RECORD_HEADER_SIZE);
+				body.limit(pos + RECORD_HEADER_SIZE + bodyLength);
+				crc.reset();
+				crc.update(body);
+				if ((int) crc.getValue() != buffer.getInt(pos + 4))
+				{
+					corrupted = true;
+					break;
+				}
+
+				applyRecord(segment, pos, RECORD_HEADER_SIZE + bodyLength);
+				recoveredRecords++;
+				pos += RECORD_HEADER_SIZE + bodyLength;
+			}
+
+			if (corrupted)
+			{
+				// torn write - zero the tail, so it's not confused with data later
+				logger.error("Corrupted record in L2 segment " + file + " at " + pos + " - segment is cut");
+				truncatedSegments++;
+				ByteBuffer tail = segment.buffer.duplicate();
+				tail.position(pos);
+				byte[] zeros = new byte[64 * 1024];
+				while (tail.hasRemaining())
+					tail.put(zeros, 0, Math.min(zeros.length, tail.remaining()));
+
+				segment.buffer.force();
+			}
+
+			segment.writePosition = pos;
+			segments.add(segment);
+			activeSegment = segment;
+		}
+
+		logger.info("L2 log store recovered: " + index.size() + " entries, " + recoveredRecords + " records in " + segments.size() + " segments");
+	}
+
+	/**
+	 * applies record to index during recovery
+	 */
+	private void applyRecord(Segment segment, int offset, int length) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(offset + RECORD_HEADER_SIZE);
+		byte type = buffer.get();
+		String key = readString(buffer);
+
+		if (RECORD_PUT == type)
+		{
+			byte[] meta = new byte[buffer.getInt()];
+			buffer.get(meta);
+			WebResponse response = WebResponseCodec.decode(meta);
+
+			markDead(index.put(key, new Location(segment, offset, length, getExpireTime(response), CacheProcessorBase.hasValidators(response))));
+			keyIndex.put(key, response.getDomain(), response.getTags());
+		} else {
+			markDead(index.remove(key));
+			keyIndex.remove(key);
+			markTombstone(new Location(segment, offset, length, Long.MAX_VALUE, false));
+		}
+	}
+
+	/**
+	 * Rewrites live records from segments with many dead records to active segment and removes old segments
+	 */
+	void compact() {
+		for (Segment segment : segments)
+		{
+			if (segment == activeSegment)
+				continue;
+
+			long deadBytes = segment.deadBytes.get();
+			if (segments.get(0) == segment)
+				deadBytes += segment.tombstoneBytes.get(); // there is nothing older to mask - tombstones are dropped by compaction
+
+			if (deadBytes < compactionThreshold * segment.writePosition)
+				continue;
+
+			try {
+				compactSegment(segment);
+			} catch (IOException e) {
+				logger.error("Error during compaction of L2 segment " + segment.file, e);
+			}
+		}
+	}
+
+	private void compactSegment(Segment segment) throws IOException {
+		long start = System.currentTimeMillis();
+
+		// tombstones are needed to mask puts in older segments only
+		boolean oldest = segments.get(0) == segment;
+
+		// segment is immutable (not active) - can be scanned without lock
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int pos = 0;
+		while (pos < segment.writePosition)
+		{
+			int length = RECORD_HEADER_SIZE + buffer.getInt(pos);
+			buffer.position(pos + RECORD_HEADER_SIZE);
+			byte type = buffer.get();
+			String key = readString(buffer);
+
+			synchronized (this) {
+				if (RECORD_PUT == type)
+				{
+					Location current = index.get(key);
+					if (null != current && current.segment == segment && current.offset == pos)
+						index.put(key, append(copy(segment, pos, length), current.expireTime, current.revalidatable));
+
+				} else if (!oldest && !index.containsKey(key)) {
+					markTombstone(append(copy(segment, pos, length), Long.MAX_VALUE, false));
+				}
+			}
+
+			pos += length;
+		}
+
+		synchronized (this) {
+			activeSegment.buffer.force(); // copies are durable before old segment is removed
+			segments.remove(segment);
+			segment.channel.close();
+			if (!segment.file.delete())
+				logger.error("Can't delete compacted L2 segment " + segment.file);
+		}
+
+		compactions.incrementAndGet();
+		reclaimedBytes.addAndGet(segment.capacity);
+		logger.info("L2 segment " + segment.file.getName() + " compacted in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static byte[] copy(Segment segment, int offset, int length) {
+		byte[] record = new byte[length];
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(offset);
+		buffer.get(record);
+		return record;
+	}
+
+	private static byte[] encodePut(WebResponse response) {
+		byte[] key = response.getUrl().getBytes(StandardCharsets.UTF_8);
+		byte[] meta = WebResponseCodec.encode(response);
+		byte[] content = response.isContentGzipped() ? response.getGzippedContent() : response.getContent(); // as is
+
+		int bodyLength = 1 + 4 + key.length + 4 + meta.length + 4 + ((null == content) ? 0 : content.length);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+		record.putInt(bodyLength);
+		record.putInt(0); // crc
+		record.put(RECORD_PUT);
+		record.putInt(key.length);
+		record.put(key);
+		record.putInt(meta.length);
+		record.put(meta);
+		if (null == content)
+		{
+			record.putInt(-1);
+		} else {
+			record.putInt(content.length);
+			record.put(content);
+		}
+
+		return withCrc(record.array());
+	}
+
+	private static byte[] encodeDelete(String url) {
+		byte[] key = url.getBytes(StandardCharsets.UTF_8);
+
+		int bodyLength = 1 + 4 + key.length;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+		record.putInt(bodyLength);
+		record.putInt(0); // crc
+		record.put(RECORD_DELETE);
+		record.putInt(key.length);
+		record.put(key);
+
+		return withCrc(record.array());
+	}
+
+	private static byte[] withCrc(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+		ByteBuffer.wrap(record).putInt(4, (int) crc.getValue());
+		return record;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void skipBytes(ByteBuffer buffer, int length) {
+		buffer.position(buffer.position() + length);
+	}
+
+	private static long getSegmentId(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 *
+	 * Segment file mapped to memory
+	 *
+	 */
+	private static class Segment {
+
+		private final long id;
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		private final MappedByteBuffer buffer;
+
+		private final int capacity;
+
+		private volatile int writePosition = 0;
+
+		private final AtomicLong deadBytes = new AtomicLong(); // overwritten / deleted puts
+
+		private final AtomicLong tombstoneBytes = new AtomicLong(); // delete records
+
+		Segment(long id, File file, int capacity) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.capacity = capacity;
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity); // file is extended (zero filled) if needed
+		}
+	}
+
+	/**
+	 *
+	 * Location of record in segment
+	 *
+	 */
+	private static class Location {
+
+		private final Segment segment;
+
+		private final int offset;
+
+		private final int length;
+
+		private final long expireTime; // Long.MAX_VALUE - not subject to expiry sweep
+
+		private final boolean revalidatable; // has validators - kept for revalidation retention period
+
+		Location(Segment segment, int offset, int length, long expireTime, boolean revalidatable) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expireTime = expireTime;
+			this.revalidatable = revalidatable;
+		}
+	}
+
+}
@@ -21,18 +21,35 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
@@ -44,14 +61,24 @@ import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TermStatistics;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
+import org.frontcache.cache.CacheProcessorBase;
+import org.frontcache.core.FCHeaders;
 import org.frontcache.core.WebResponse;
+import org.frontcache.core.WebResponseCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,23 +91,88 @@ import com.google.gson.GsonBuilder;
  * Provides access to lucene index.
  *
  */
-public class LuceneIndexManager {
+public class LuceneIndexManager implements L2Store {
 
 	private static final Logger logger = LoggerFactory.getLogger(LuceneIndexManager.class);
 
 	private static String INDEX_PATH;
 	
-	public static final String JSON_FIELD = "json";
+	public static final String JSON_FIELD = "json"; // legacy metadata format (read only)
+	public static final String META_FIELD = "meta"; // metadata in WebResponseCodec format
 	public static final String BIN_FIELD = "bin";
 
 	// searchable fields
 	public static final String TAGS_FIELD = "tags"; // for invalidation
 	public static final String URL_FIELD = "url"; 
+	public static final String PATH_FIELD = "path"; // URL path (+ query) - for prefix invalidation
 	public static final String DOMAIN_FIELD = "domain"; // for shared / multidomain mode 
-	public static final String EXPIRE_DATE_FIELD = "expire_date"; 
+	public static final String EXPIRE_DATE_FIELD = "expire_date"; // point (range query) + doc values (sort), not indexed for soft refresh
+	public static final String REVALIDATABLE_FIELD = "revalidatable"; // has validators (ETag / Last-Modified) - kept longer by expiry sweep
+	
+	private static final Set<String> METADATA_FIELDS = new HashSet<String>(Arrays.asList(META_FIELD, JSON_FIELD)); // without content (HEAD requests)
+	
+	private static final String REFRESH_INTERVAL_KEY = "front-cache.cache-processor.impl.l2.refresh-interval"; // ms
+	
+	private static final long REFRESH_INTERVAL_DEFAULT = 1000; // 1 sec
+	
+	private static final String DURABILITY_KEY = "front-cache.cache-processor.impl.l2.durability"; // sync | async
+	
+	public static final String DURABILITY_SYNC = "sync"; // commit on every change (caller thread) 
+	
+	public static final String DURABILITY_ASYNC = "async"; // changes are queued and committed in batches by background writer
+	
+	private static final String COMMIT_BATCH_SIZE_KEY = "front-cache.cache-processor.impl.l2.commit-batch-size";
+	
+	private static final int COMMIT_BATCH_SIZE_DEFAULT = 1000;
+	
+	private static final String COMMIT_INTERVAL_KEY = "front-cache.cache-processor.impl.l2.commit-interval"; // ms
+	
+	private static final long COMMIT_INTERVAL_DEFAULT = 5000; // 5 sec
+	
+	private static final String WRITE_QUEUE_SIZE_KEY = "front-cache.cache-processor.impl.l2.write-queue-size";
+	
+	private static final int WRITE_QUEUE_SIZE_DEFAULT = 10000;
 	
 	private IndexWriter indexWriter = null;
 	
+	// near-real-time searcher shared by all read paths (instead of opening reader per lookup)
+	private volatile SearcherManager searcherManager = null;
+	
+	private Timer searcherRefreshTimer = null;
+	
+	private long refreshInterval = REFRESH_INTERVAL_DEFAULT;
+	
+	private volatile long lastRefreshTime = System.currentTimeMillis();
+	
+	// write-behind pipeline (durability = async)
+	private String durability = DURABILITY_SYNC;
+	
+	private int commitBatchSize = COMMIT_BATCH_SIZE_DEFAULT;
+	
+	private long commitInterval = COMMIT_INTERVAL_DEFAULT;
+	
+	private BlockingQueue<WriteOperation> writeQueue = null;
+	
+	private Thread writerThread = null;
+	
+	// queued puts - visible for readers until they are applied to index & searcher is refreshed  
+	private final Map<String, WebResponse> pendingPuts = new ConcurrentHashMap<String, WebResponse>();
+	
+	// queued invalidations (tombstones) - matching documents are hidden from readers until delete is applied & searcher is refreshed
+	private final Queue<WriteOperation> pendingDeletes = new ConcurrentLinkedQueue<WriteOperation>();
+	
+	private volatile boolean writerRunning = false;
+	
+	private final AtomicLong droppedWrites = new AtomicLong();
+	
+	private final AtomicLong commitCount = new AtomicLong();
+	
+	private volatile long lastCommitDuration = 0;
+	
+	private volatile int lastCommitBatchSize = 0;
+	
+	private final ExpirySweeper expirySweeper;
+	
 	public final static FieldType JSON_TYPE;
 	static {
 	    JSON_TYPE = new FieldType();
@@ -109,10 +201,45 @@ public class LuceneIndexManager {
 	
 	/**
 	 * Constructor
+	 * Every change is committed before method returns (durability = sync)
+	 * 
 	 * @param indexPath
 	 */
 	public LuceneIndexManager(String indexPath) {
+		this(indexPath, syncProperties());
+	}
+	
+	/**
+	 * Constructor
+	 * @param indexPath
+	 * @param properties - L2 settings (e.g. searcher refresh interval, durability)
+	 */
+	public LuceneIndexManager(String indexPath, Properties properties) {
 		INDEX_PATH = indexPath;
+		
+		refreshInterval = getLongProperty(properties, REFRESH_INTERVAL_KEY, REFRESH_INTERVAL_DEFAULT);
+		logger.info("L2 searcher refresh interval: " + refreshInterval + " ms");
+		
+		if (DURABILITY_ASYNC.equalsIgnoreCase(properties.getProperty(DURABILITY_KEY, DURABILITY_SYNC).trim()))
+			durability = DURABILITY_ASYNC; // opt-in - changes in last batch can be lost on crash
+		else
+			durability = DURABILITY_SYNC;
+		
+		logger.info("L2 durability: " + durability);
+		
+		if (DURABILITY_ASYNC.equals(durability))
+		{
+			commitBatchSize = (int) getLongProperty(properties, COMMIT_BATCH_SIZE_KEY, COMMIT_BATCH_SIZE_DEFAULT);
+			commitInterval = getLongProperty(properties, COMMIT_INTERVAL_KEY, COMMIT_INTERVAL_DEFAULT);
+			int writeQueueSize = (int) getLongProperty(properties, WRITE_QUEUE_SIZE_KEY, WRITE_QUEUE_SIZE_DEFAULT);
+			logger.info("L2 commit batch size: " + commitBatchSize + ", commit interval: " + commitInterval + " ms, write queue size: " + writeQueueSize);
+			
+			writeQueue = new LinkedBlockingQueue<WriteOperation>(writeQueueSize);
+			startWriter();
+		}
+		
+		expirySweeper = new ExpirySweeper(properties);
+		
 		Path path = Paths.get(INDEX_PATH);
 		if (!Files.exists(path)) {
 			try {
@@ -139,8 +266,30 @@ public class LuceneIndexManager {
 				logger.error("Error during creating indexWriter " + e.getMessage());
 			}
 		}
+		
+		expirySweeper.start(this);
 	}
 
+	private static Properties syncProperties() {
+		Properties properties = new Properties();
+		properties.setProperty(DURABILITY_KEY, DURABILITY_SYNC);
+		return properties;
+	}
+	
+	private static long getLongProperty(Properties properties, String key, long defaultValue) {
+		String valueStr = properties.getProperty(key);
+		if (null != valueStr && valueStr.trim().length() > 0)
+		{
+			try
+			{
+				return Long.parseLong(valueStr.trim());
+			} catch (Exception ex) {
+				logger.error("Can't read " + key + "=" + valueStr + ". Default is used " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+	
 	/**
 	 * Returns instance of IndexManager
 	 * @param create
@@ -161,62 +310,505 @@ public class LuceneIndexManager {
 					iwc.setRAMBufferSizeMB(250.0);
 					indexWriter = new IndexWriter(dir, iwc);
 					logger.info("IndexWriter initialized");
+					
+					initSearcherManager(indexWriter);
 				}
 			}
 		}
 
 		return indexWriter;
 	}
+	
+	/**
+	 * Opens NRT searcher manager on top of indexWriter 
+	 * and schedules periodic refresh (to make changes visible for readers)
+	 * 
+	 * @param iWriter
+	 * @throws IOException
+	 */
+	private void initSearcherManager(IndexWriter iWriter) throws IOException {
+		
+		closeSearcherManager(); // close previous (if writer is reopened)
+		
+		searcherManager = new SearcherManager(iWriter, new SearcherFactory());
+		searcherManager.addListener(new ReferenceManager.RefreshListener() {
+			
+			@Override
+			public void beforeRefresh() throws IOException {
+			}
+			
+			@Override
+			public void afterRefresh(boolean didRefresh) throws IOException {
+				lastRefreshTime = System.currentTimeMillis();
+			}
+		});
+		lastRefreshTime = System.currentTimeMillis();
+		
+		final SearcherManager sm = searcherManager;
+		searcherRefreshTimer = new Timer("LuceneIndexManager.searcherRefreshTimer", true);
+		searcherRefreshTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					sm.maybeRefresh();
+				} catch (Exception e) {
+					logger.debug("Error during refreshing searcher. " + e.getMessage());
+				}
+			}
+		}, refreshInterval, refreshInterval);
+		
+		logger.info("SearcherManager initialized");
+	}
+	
+	private void closeSearcherManager() {
+		
+		if (null != searcherRefreshTimer)
+		{
+			searcherRefreshTimer.cancel();
+			searcherRefreshTimer = null;
+		}
+		
+		if (null != searcherManager)
+		{
+			try {
+				searcherManager.close();
+			} catch (Exception e) {
+				logger.error("Error during closing searcherManager", e);
+			}
+			searcherManager = null;
+		}
+	}
+	
+	/**
+	 * Returns shared searcher manager. 
+	 * Searchers should be acquired / released 
+	 *  
+	 * @return
+	 * @throws IOException
+	 */
+	private SearcherManager getSearcherManager() throws IOException {
+		getIndexWriter(); // (re)open writer and searcher manager if needed
+		return searcherManager;
+	}
+	
+	/**
+	 * Makes recent changes visible for searchers (best effort - skipped if other thread is refreshing). 
+	 * Periodic refresh takes care about the rest
+	 */
+	private void refreshSearcher() {
+		try {
+			SearcherManager sm = searcherManager;
+			if (null != sm)
+				sm.maybeRefresh();
+		} catch (Exception e) {
+			logger.debug("Error during refreshing searcher. " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * How long (ms) changes may be not visible for readers
+	 * 0 - searcher is up to date
+	 * 
+	 * @return
+	 */
+	public long getSearcherStaleness() {
+		try {
+			SearcherManager sm = searcherManager;
+			if (null == sm || sm.isSearcherCurrent())
+				return 0;
+		} catch (Exception e) {
+			logger.debug("Error during checking searcher. " + e.getMessage());
+		}
+		
+		return System.currentTimeMillis() - lastRefreshTime;
+	}
 
+	@Override
+	public void put(WebResponse response) throws IOException {
+		indexDoc(response);
+	}
+	
 	/**
 	 * Writes webResponse to index
+	 * (durability = async -> queued and committed later by background writer)
+	 * 
 	 * @param response
 	 * @throws IOException
 	 */
 	void indexDoc(WebResponse response) throws IOException {
 
-		IndexWriter iWriter = getIndexWriter();
-
-		Document doc = new Document();
-
-		String url = response.getUrl();
-		
-		if (null == url)
+		if (null == response.getUrl())
 		{
 			logger.error("URL can't be null during index time for " + response);
 			return;
 		}
 
-		doc.add(new StringField(URL_FIELD, url, Field.Store.YES));
+		write(new WriteOperation(response));
+	}
+	
+	/**
+	 * Converts webResponse to lucene document
+	 * 
+	 * @param response
+	 * @return
+	 */
+	private Document toDocument(WebResponse response) {
+		
+		Document doc = new Document();
+
+		doc.add(new StringField(URL_FIELD, response.getUrl(), Field.Store.YES));
+		
+		doc.add(new StringField(PATH_FIELD, KeyPrefixIndex.toPath(response.getUrl()), Field.Store.NO));
 		
 		doc.add(new StringField(DOMAIN_FIELD, response.getDomain(), Field.Store.YES));
 		
-		if (null != response.getContent())
-			doc.add(new StoredField(BIN_FIELD, response.getContent()));
+		byte[] content = response.isContentGzipped() ? response.getGzippedContent() : response.getContent(); // as is
+		if (null != content)
+			doc.add(new StoredField(BIN_FIELD, content));
 		
-//		doc.add(new NumericDocValuesField(EXPIRE_DATE_FIELD, response.getExpireTimeMillis())); // TODO: store map ?
+		// soft refresh entries are kept after expiration (stale content is served while refreshing)
+		if (!FCHeaders.COMPONENT_REFRESH_TYPE_SOFT.equalsIgnoreCase(response.getRefreshType()))
+		{
+			long expireTimeMillis = response.getExpireTimeMillis();
+			doc.add(new LongPoint(EXPIRE_DATE_FIELD, expireTimeMillis));
+			doc.add(new NumericDocValuesField(EXPIRE_DATE_FIELD, expireTimeMillis));
+			
+			if (CacheProcessorBase.hasValidators(response))
+				doc.add(new StringField(REVALIDATABLE_FIELD, "true", Field.Store.NO));
+		}
 		
-		doc.add(new StoredField(JSON_FIELD, gson.toJson(response), JSON_TYPE));
+		doc.add(new StoredField(META_FIELD, WebResponseCodec.encode(response)));
 		
 		for (String tag : response.getTags())
 			doc.add(new StringField(TAGS_FIELD, tag, Field.Store.NO)); // tag is StringField to exact match
+		
+		return doc;
+	}
+	
+	/**
+	 * durability = sync -> apply & commit in caller thread
+	 * durability = async -> put to write queue (background writer applies & commits in batches)
+	 * 
+	 * @param operation
+	 */
+	private void write(WriteOperation operation) {
+		
+		if (!writerRunning)
+		{
+			IndexWriter iWriter = null;
+			try {
+				iWriter = getIndexWriter();
+				if (iWriter == null){
+					return ;
+				}
+			} catch (Exception e1) {
+				logger.debug("Error during getting indexWriter. " + e1.getMessage());
+				return;
+			}
+			
+			try {
+				apply(iWriter, operation);
+			} finally {
+				commit(iWriter, 1);
+				refreshSearcher();
+			}
+			return;
+		}
+		
+		if (null != operation.response)
+		{
+			// cache put - fine to drop when writer can't keep up 
+			pendingPuts.put(operation.response.getUrl(), operation.response);
+			if (!writeQueue.offer(operation))
+			{
+				pendingPuts.remove(operation.response.getUrl(), operation.response);
+				droppedWrites.incrementAndGet();
+				logger.debug("L2 write queue is full - " + operation.response.getUrl() + " is not cached");
+			}
+		} else {
+			// invalidation - must not be lost 
+			if (operation.isInvalidation())
+				pendingDeletes.add(operation); // read-your-writes - hide matching documents till delete is visible
 			
+			removePendingPuts(operation);
+			try {
+				writeQueue.put(operation);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.error("Interrupted while queueing L2 invalidation " + operation.deleteQuery);
+			}
+		}
+		return;
+	}
+	
+	/**
+	 * remove queued puts matching delete operation 
+	 * 
+	 * @param operation
+	 */
+	private void removePendingPuts(WriteOperation operation) {
+		if (pendingPuts.isEmpty())
+			return;
+		
+		for (WebResponse pending : pendingPuts.values())
+		{
+			if (operation.matches(pending))
+				pendingPuts.remove(pending.getUrl(), pending);
+		}
+	}
+	
+	/**
+	 * Tombstones must be read before searcher is acquired.
+	 * Writer removes tombstone after refresh, so tombstone missing in snapshot is visible for any searcher acquired after the snapshot. 
+	 * 
+	 * @return queued deletes, which may be not visible for readers yet (null if none)
+	 */
+	private WriteOperation[] getPendingDeletes() {
+		if (pendingDeletes.isEmpty())
+			return null;
+		
+		return pendingDeletes.toArray(new WriteOperation[0]);
+	}
+	
+	/**
+	 * 
+	 * @param pendingDeletesSnapshot - tombstones taken before searcher is acquired
+	 * @param response - from index
+	 * @return true if response is invalidated by queued delete, which is not visible for readers yet
+	 */
+	private boolean isPendingDelete(WriteOperation[] pendingDeletesSnapshot, WebResponse response) {
+		if (null == pendingDeletesSnapshot)
+			return false;
+		
+		for (WriteOperation operation : pendingDeletesSnapshot)
+			if (operation.matches(response))
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * apply operation to index writer (no commit)
+	 *  
+	 * @param iWriter
+	 * @param operation
+	 */
+	private void apply(IndexWriter iWriter, WriteOperation operation) {
 		try {
-			iWriter.updateDocument(new Term(URL_FIELD, url), doc);
-		} catch (IOException e) {
+			if (null != operation.response)
+			{
+				iWriter.updateDocument(new Term(URL_FIELD, operation.response.getUrl()), toDocument(operation.response));
+			} else if (null != operation.deleteQuery) {
+				iWriter.deleteDocuments(operation.deleteQuery);
+				logger.debug("Removed documents for {}.", operation.deleteQuery);
+			}
+		} catch (Exception e) {
 			logger.error("Error while in Lucene index operation: {}", e.getMessage(), e);
+		}
+	}
+	
+	private void commit(IndexWriter iWriter, int batchSize) {
+		long start = System.currentTimeMillis();
+		try {
+			iWriter.commit();
+		} catch (IOException ioEx) {
+			logger.error("Error while commiting changes to Lucene index: {}", ioEx.getMessage(), ioEx);
+		}
+		lastCommitDuration = System.currentTimeMillis() - start;
+		lastCommitBatchSize = batchSize;
+		commitCount.incrementAndGet();
+	}
+	
+	/**
+	 * Background writer - applies queued operations and commits
+	 * when commitBatchSize operations are applied or commitInterval is passed  
+	 */
+	private void startWriter() {
+		
+		writerRunning = true;
+		writerThread = new Thread(new Runnable() {
 
-		} finally {
-			try {
-				iWriter.commit();
-			} catch (IOException ioEx) {
-				logger.error("Error while commiting changes to Lucene index: {}", ioEx.getMessage(), ioEx);
+			@Override
+			public void run() {
+				
+				List<WriteOperation> batch = new ArrayList<WriteOperation>();
+				int uncommitted = 0;
+				long lastCommitTime = System.currentTimeMillis();
+				
+				while (writerRunning || !writeQueue.isEmpty())
+				{
+					try {
+						long waitMillis = Math.max(1, commitInterval - (System.currentTimeMillis() - lastCommitTime));
+						WriteOperation operation = writeQueue.poll(waitMillis, TimeUnit.MILLISECONDS);
+						if (null != operation)
+						{
+							batch.add(operation);
+							writeQueue.drainTo(batch, commitBatchSize);
+						}
+						
+						if (batch.isEmpty() && 0 == uncommitted)
+						{
+							lastCommitTime = System.currentTimeMillis(); // nothing to commit
+							continue;
+						}
+						
+						IndexWriter iWriter = getIndexWriter();
+						
+						List<CountDownLatch> flushRequests = null;
+						List<WebResponse> appliedPuts = null;
+						List<WriteOperation> appliedDeletes = null; // invalidations
+						for (WriteOperation op : batch)
+						{
+							if (null != op.flushLatch)
+							{
+								if (null == flushRequests)
+									flushRequests = new ArrayList<CountDownLatch>();
+								flushRequests.add(op.flushLatch);
+							} else {
+								apply(iWriter, op);
+								uncommitted++;
+								
+								if (null != op.response)
+								{
+									if (null == appliedPuts)
+										appliedPuts = new ArrayList<WebResponse>();
+									appliedPuts.add(op.response);
+								} else if (op.isInvalidation()) {
+									if (null == appliedDeletes)
+										appliedDeletes = new ArrayList<WriteOperation>();
+									appliedDeletes.add(op);
+								}
+							}
+						}
+						batch.clear();
+						
+						if (0 < uncommitted && (uncommitted >= commitBatchSize || System.currentTimeMillis() - lastCommitTime >= commitInterval || null != flushRequests))
+						{
+							commit(iWriter, uncommitted);
+							uncommitted = 0;
+						}
+						
+						if (null != appliedPuts || null != appliedDeletes)
+						{
+							// NRT - make applied (even not committed) changes visible for readers
+							SearcherManager sm = searcherManager;
+							if (null != sm)
+								sm.maybeRefreshBlocking();
+							
+							if (null != appliedPuts)
+								for (WebResponse applied : appliedPuts)
+									pendingPuts.remove(applied.getUrl(), applied);
+							
+							if (null != appliedDeletes)
+								pendingDeletes.removeAll(appliedDeletes); // invalidations are visible - remove tombstones
+						} else {
+							refreshSearcher();
+						}
+						
+						if (0 == uncommitted)
+							lastCommitTime = System.currentTimeMillis();
+						
+						if (null != flushRequests)
+							for (CountDownLatch flushLatch : flushRequests)
+								flushLatch.countDown();
+						
+					} catch (InterruptedException e) {
+						logger.error("L2 background writer is interrupted");
+						writerRunning = false;
+					} catch (Throwable e) {
+						logger.error("Error in L2 background writer", e);
+						batch.clear();
+					}
+				}
+				logger.info("L2 background writer is stopped");
 			}
+		}, "LuceneIndexManager.writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	/**
+	 * Waits until queued changes are applied and committed 
+	 * 
+	 * @param timeoutMillis
+	 * @return true if all changes (queued before the call) are committed 
+	 */
+	public boolean flush(long timeoutMillis) {
+		if (!writerRunning)
+			return true;
+		
+		WriteOperation flushOperation = new WriteOperation(new CountDownLatch(1));
+		try {
+			if (!writeQueue.offer(flushOperation, timeoutMillis, TimeUnit.MILLISECONDS))
+				return false;
+			
+			return flushOperation.flushLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
-
 	}
 	
+	private void stopWriter() {
+		if (!writerRunning)
+			return;
+		
+		flush(commitInterval + 10000);
+		writerRunning = false;
+		writeQueue.offer(new WriteOperation(new CountDownLatch(1))); // wake up writer (don't interrupt - lucene doesn't like interrupts during IO)
+		try {
+			writerThread.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public String getDurability() {
+		return durability;
+	}
+	
+	public int getWriteQueueDepth() {
+		return (null == writeQueue) ? 0 : writeQueue.size();
+	}
+	
+	public long getDroppedWrites() {
+		return droppedWrites.get();
+	}
+	
+	public long getCommitCount() {
+		return commitCount.get();
+	}
+	
+	public long getLastCommitDuration() {
+		return lastCommitDuration;
+	}
+	
+	public int getLastCommitBatchSize() {
+		return lastCommitBatchSize;
+	}
+	
+	@Override
+	public Map<String, String> getStatus() {
+		Map<String, String> status = new HashMap<String, String>();
+		status.put("searcher-staleness-ms", "" + getSearcherStaleness());
+		status.put("durability", getDurability());
+		status.put("write-queue-depth", "" + getWriteQueueDepth());
+		status.put("write-queue-dropped", "" + getDroppedWrites());
+		status.put("commits", "" + getCommitCount());
+		status.put("last-commit-ms", "" + getLastCommitDuration());
+		status.put("last-commit-batch-size", "" + getLastCommitBatchSize());
+		expirySweeper.addStatus(status);
+		return status;
+	}
+	
+	@Override
 	public void close() {
+		expirySweeper.stop();
+		
+		stopWriter();
+		
+		closeSearcherManager();
+		
 		if (indexWriter != null && indexWriter.isOpen()) {
 			try {
 				indexWriter.close();
@@ -229,26 +821,22 @@ public class LuceneIndexManager {
 	/**
 	 * Returns document based on url
 	 */
-	private Document getDocByURL(String url) throws IOException, ParseException {
+	private Document getDocByURL(String url, Set<String> fieldsToLoad) throws IOException, ParseException {
 
-		IndexWriter iWriter = null;
+		SearcherManager sm = null;
 		try {
-			iWriter = getIndexWriter();
-			if (iWriter == null){
+			sm = getSearcherManager();
+			if (sm == null){
 				return null;
 			}
 		} catch (Exception e1) {
-			logger.debug("Error during getting indexWriter. " + e1.getMessage());
+			logger.debug("Error during getting searcherManager. " + e1.getMessage());
 			return null;
 		}
 		
 		Document doc = null;
-		IndexReader reader = null;
+		IndexSearcher searcher = sm.acquire();
 		try {
-			reader = DirectoryReader.open(iWriter);
-
-			IndexSearcher searcher = new IndexSearcher(reader);
-
 			Term term = new Term(URL_FIELD, url);
 			Query query = new TermQuery(term);
 			
@@ -256,50 +844,47 @@ public class LuceneIndexManager {
 
 			if (results.scoreDocs != null) {
 				if (results.scoreDocs.length == 1) {
-					doc = searcher.doc(results.scoreDocs[0].doc);
+					doc = (null == fieldsToLoad) ? searcher.doc(results.scoreDocs[0].doc) : searcher.doc(results.scoreDocs[0].doc, fieldsToLoad);
 				}
 			}
 		} finally {
-			if (reader != null) {
-				reader.close();
-			}
+			sm.release(searcher);
 		}
 
 		return doc;
 	}
 	
 
+	@Override
 	public long getDocumentsCount(String domain) {
 
 		long count = -1;
 		
-		IndexWriter iWriter = null;
+		SearcherManager sm = null;
 		try {
-			iWriter = getIndexWriter();
-			if (iWriter == null){
+			sm = getSearcherManager();
+			if (sm == null){
 				return count;
 			}
 		} catch (Exception e1) {
-			logger.debug("Error during getting indexWriter. " + e1.getMessage());
+			logger.debug("Error during getting searcherManager. " + e1.getMessage());
 			return count;
 		}
 		
-		IndexReader reader = null;
+		IndexSearcher searcher = null;
 		try {
-			reader = DirectoryReader.open(iWriter);
+			searcher = sm.acquire();
 			Term domainTerm = new Term(DOMAIN_FIELD, domain);
-			IndexSearcher searcher = new IndexSearcher(reader);
 			TermStatistics termStat = searcher.termStatistics(domainTerm, TermContext.build(searcher.getIndexReader().getContext(), domainTerm));
 			count = termStat.docFreq();
 		} catch (Exception e1) {
 			logger.debug("Error during reader.totalTermFreq(domainTerm). " + e1.getMessage());
 		} finally {
-			if (reader != null) {
+			if (searcher != null) {
 				try {
-					reader.close();
+					sm.release(searcher);
 				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					logger.error(e.getMessage(), e);
 				}
 			}
 		}
@@ -311,83 +896,56 @@ public class LuceneIndexManager {
 	 * Removes documents by url or tags
 	 * @param urlOrTag
 	 */
+	@Override
 	public void delete(String domain, String urlOrTag) {
 		
-		IndexWriter iWriter = null;
-		try {
-			iWriter = getIndexWriter();
-			if (iWriter == null){
-				return ;
-			}
-		} catch (Exception e1) {
-			logger.debug("Error during getting indexWriter. " + e1.getMessage());
-			return;
-		}
-
+//		Query domainQuery = new TermQuery(new Term(DOMAIN_FIELD, domain));
+		Query urlQuery = new TermQuery(new Term(URL_FIELD, urlOrTag));
+		Query tagsQuery = new TermQuery(new Term(TAGS_FIELD, urlOrTag));
 		
-		try {
-//			Query domainQuery = new TermQuery(new Term(DOMAIN_FIELD, domain));
-			Query urlQuery = new TermQuery(new Term(URL_FIELD, urlOrTag));
-			Query tagsQuery = new TermQuery(new Term(TAGS_FIELD, urlOrTag));
-			
-			BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
-			
-//			booleanQuery.add(domainQuery, Occur.MUST);
-			booleanQuery.add(urlQuery, Occur.SHOULD);
-			booleanQuery.add(tagsQuery, Occur.SHOULD);
-			
-			long count = iWriter.deleteDocuments(booleanQuery.build());
-			logger.debug("Removed  {} documents for {}.", count, urlOrTag);
-		} catch (IOException e) {
-			logger.error(e.getMessage(), e);
-		} finally {
-			try {
-				iWriter.commit();
-			} catch (IOException e) {
-				logger.error(e.getMessage(), e);
-			}
-		}
+		BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
+		
+//		booleanQuery.add(domainQuery, Occur.MUST);
+		booleanQuery.add(urlQuery, Occur.SHOULD);
+		booleanQuery.add(tagsQuery, Occur.SHOULD);
+		
+		write(new WriteOperation(booleanQuery.build(), urlOrTag, null));
 	}
 
+	@Override
 	public void delete(String urlOrTag) {
 		
-		IndexWriter iWriter = null;
-		try {
-			iWriter = getIndexWriter();
-			if (iWriter == null){
-				return ;
-			}
-		} catch (Exception e1) {
-			logger.debug("Error during getting indexWriter. " + e1.getMessage());
-			return;
-		}
+		Query urlQuery = new TermQuery(new Term(URL_FIELD, urlOrTag));
+		Query tagsQuery = new TermQuery(new Term(TAGS_FIELD, urlOrTag));
 		
-		try {
-			Query urlQuery = new TermQuery(new Term(URL_FIELD, urlOrTag));
-			Query tagsQuery = new TermQuery(new Term(TAGS_FIELD, urlOrTag));
-			
-			BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
-			
-			booleanQuery.add(urlQuery, Occur.SHOULD);
-			booleanQuery.add(tagsQuery, Occur.SHOULD);
-			
-			long count = iWriter.deleteDocuments(booleanQuery.build());
-			logger.debug("Removed  {} documents for {}.", count, urlOrTag);
-		} catch (IOException e) {
-			logger.error(e.getMessage(), e);
-		} finally {
-			try {
-				iWriter.commit();
-			} catch (IOException e) {
-				logger.error(e.getMessage(), e);
-			}
-		}
+		BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
+		
+		booleanQuery.add(urlQuery, Occur.SHOULD);
+		booleanQuery.add(tagsQuery, Occur.SHOULD);
+		
+		write(new WriteOperation(booleanQuery.build(), urlOrTag, null));
 	}
 	
 	/**
-	 * Removes documents by url or tags
-	 * @param urlOrTag
+	 * Removes documents under URL prefix.
+	 * Prefix can be path (e.g. /en/catalog/) or full URL
+	 * 
+	 * @param prefix
+	 */
+	@Override
+	public void deleteByPrefix(String prefix) {
+		
+		// PrefixQuery is resolved against term dictionary - no full scan
+		Query prefixQuery = (-1 < prefix.indexOf("://")) ? new PrefixQuery(new Term(URL_FIELD, prefix)) : new PrefixQuery(new Term(PATH_FIELD, prefix));
+		
+		write(new WriteOperation(prefixQuery, null, null, prefix));
+	}
+	
+	/**
+	 * Removes all documents for domain
+	 * @param domain
 	 */
+	@Override
 	public void deleteAll(String domain) {
 		
 		if (null == domain)
@@ -396,63 +954,122 @@ public class LuceneIndexManager {
 			return;
 		}
 			
-		IndexWriter iWriter = null;
+		logger.debug("Removing all documents for {}.", domain);
+		
+		Query domainQuery = new TermQuery(new Term(DOMAIN_FIELD, domain));
+		
+		write(new WriteOperation(domainQuery, null, domain));
+	}
+	
+	/**
+	 * Removes expired (for all client types) entries in batches - the oldest first.
+	 * Soft refresh entries and entries indexed without EXPIRE_DATE_FIELD are not removed
+	 */
+	@Override
+	public void deleteExpired() {
+		
+		long start = System.currentTimeMillis();
+		long swept = 0;
+		
+		SearcherManager sm = null;
 		try {
-			iWriter = getIndexWriter();
-			if (iWriter == null){
-				return ;
+			sm = getSearcherManager();
+			if (sm == null){
+				return;
 			}
 		} catch (Exception e1) {
-			logger.debug("Error during getting indexWriter. " + e1.getMessage());
+			logger.debug("Error during getting searcherManager. " + e1.getMessage());
 			return;
 		}
-
+		
+		// entries with validators are kept for revalidation retention period
+		BooleanQuery.Builder notRevalidatable = new BooleanQuery.Builder();
+		notRevalidatable.add(LongPoint.newRangeQuery(EXPIRE_DATE_FIELD, Long.MIN_VALUE, expirySweeper.getExpiredBefore(start) - 1), Occur.MUST);
+		notRevalidatable.add(new TermQuery(new Term(REVALIDATABLE_FIELD, "true")), Occur.MUST_NOT);
+		
+		BooleanQuery.Builder expired = new BooleanQuery.Builder();
+		expired.add(notRevalidatable.build(), Occur.SHOULD);
+		expired.add(LongPoint.newRangeQuery(EXPIRE_DATE_FIELD, Long.MIN_VALUE, expirySweeper.getRevalidatableExpiredBefore(start) - 1), Occur.SHOULD);
+		Query expiredQuery = expired.build();
+		Sort oldestFirst = new Sort(new SortField(EXPIRE_DATE_FIELD, SortField.Type.LONG));
+		int batchSize = Math.min(expirySweeper.getBatchSize(), BooleanQuery.getMaxClauseCount());
 		
 		try {
-			logger.debug("Removing all documents for {}.", domain);
-			
-			Query domainQuery = new TermQuery(new Term(DOMAIN_FIELD, domain));
-			
-			long count = iWriter.deleteDocuments(domainQuery);
-			logger.debug("Removed  {} documents for {}.", count, domain);
-		} catch (IOException e) {
-			logger.error(e.getMessage(), e);
-		} finally {
-			try {
-				iWriter.commit();
-			} catch (IOException e) {
-				logger.error(e.getMessage(), e);
+			while (true)
+			{
+				long batchStart = System.currentTimeMillis();
+				
+				List<String> urls = new ArrayList<String>();
+				IndexSearcher searcher = sm.acquire();
+				try {
+					TopDocs results = searcher.search(expiredQuery, batchSize, oldestFirst);
+					for (ScoreDoc scoreDoc : results.scoreDocs)
+					{
+						String url = searcher.doc(scoreDoc.doc, Collections.singleton(URL_FIELD)).get(URL_FIELD);
+						if (null != url)
+							urls.add(url);
+					}
+				} finally {
+					sm.release(searcher);
+				}
+				
+				if (urls.isEmpty())
+					break;
+				
+				BooleanQuery.Builder urlsQuery = new BooleanQuery.Builder();
+				for (String url : urls)
+					urlsQuery.add(new TermQuery(new Term(URL_FIELD, url)), Occur.SHOULD);
+				
+				// entry can be updated (fresh) since it was found
+				BooleanQuery.Builder deleteQuery = new BooleanQuery.Builder();
+				deleteQuery.add(expiredQuery, Occur.MUST);
+				deleteQuery.add(urlsQuery.build(), Occur.MUST);
+				
+				write(new WriteOperation(deleteQuery.build(), null, null));
+				swept += urls.size();
+				
+				if (urls.size() < batchSize)
+					break;
+				
+				// next batch should not see removed entries
+				flush(commitInterval + 10000);
+				sm.maybeRefreshBlocking();
+				
+				if (!expirySweeper.throttle(urls.size(), batchStart))
+					break;
 			}
+		} catch (Exception e) {
+			logger.error("Error during removing expired entries from L2 index", e);
 		}
-	}
-	
-	public void deleteExpired() {
-		// TODO: implement me : query EXPIRE_DATE_FIELD and delete
+		
+		expirySweeper.sweepFinished(swept, System.currentTimeMillis() - start);
 	}
 	
 	/**
 	 * 
 	 * @return
 	 */
+	@Override
 	public List<String> getKeys() 
 	{
 		
-		IndexWriter iWriter = null;
+		SearcherManager sm = null;
 		try {
-			iWriter = getIndexWriter();
-			if (iWriter == null){
+			sm = getSearcherManager();
+			if (sm == null){
 				return Collections.emptyList();
 			}
 		} catch (Exception e1) {
-			logger.debug("Error during getting indexWriter. " + e1.getMessage());
+			logger.debug("Error during getting searcherManager. " + e1.getMessage());
 			return Collections.emptyList();
 		}
 		
 		List<String> keys = new ArrayList<String>();
 
-		IndexReader reader = null;
+		IndexSearcher searcher = null;
 		try {
-			reader = DirectoryReader.open(iWriter);
+			searcher = sm.acquire();
+			IndexReader reader = searcher.getIndexReader();
 			
 			for (int i=0; i<reader.numDocs(); i++) {
 			    Document doc = reader.document(i);
@@ -469,11 +1086,11 @@ public class LuceneIndexManager {
 		} catch (Exception e) {
 			logger.error("Error during loading urls/keys from index", e);
 		} finally {
-			if (reader != null) {
+			if (searcher != null) {
 				try {
-					reader.close();
+					sm.release(searcher);
 				} catch (IOException e) {
-					e.printStackTrace();
+					logger.error(e.getMessage(), e);
 				}
 			}
 		}
@@ -486,15 +1103,52 @@ public class LuceneIndexManager {
 	 * @param url request url
 	 * @return WebResponse from index
 	 */
+	@Override
 	public WebResponse getResponse(String url) {
-		WebResponse response = null;
+		return getResponse(url, null);
+	}
+	
+	@Override
+	public WebResponse getResponseMetadata(String url) {
+		return getResponse(url, METADATA_FIELDS);
+	}
+	
+	/**
+	 * 
+	 * @param url
+	 * @param fieldsToLoad - null for all fields
+	 * @return
+	 */
+	private WebResponse getResponse(String url, Set<String> fieldsToLoad) {
+		WebResponse response = pendingPuts.get(url); // queued, but not applied to index yet
+		if (null != response)
+			return response;
+		
+		WriteOperation[] pendingDeletesSnapshot = getPendingDeletes(); // before searcher is acquired (see getPendingDeletes)
 		try {
-			Document doc = getDocByURL(url);
+			Document doc = getDocByURL(url, fieldsToLoad);
 			if (doc != null) {
-				response = gson.fromJson(doc.get(JSON_FIELD), WebResponse.class);
+				BytesRef metaRef = doc.getBinaryValue(META_FIELD);
+				boolean gzipped = false;
+				if (null != metaRef)
+				{
+					response = WebResponseCodec.decode(metaRef.bytes, metaRef.offset, metaRef.length);
+					gzipped = WebResponseCodec.isContentGzipped(metaRef.bytes, metaRef.offset, metaRef.length);
+				} else {
+					response = gson.fromJson(doc.get(JSON_FIELD), WebResponse.class); // entries written before META_FIELD
+				}
+				
+				if (isPendingDelete(pendingDeletesSnapshot, response))
+					return null; // invalidated, delete is not applied yet
+				
 				BytesRef bin1ref = doc.getBinaryValue(BIN_FIELD);
 				if (null != bin1ref)
-					response.setContent(bin1ref.bytes);
+				{
+					if (gzipped)
+						response.setGzippedContent(bin1ref.bytes);
+					else
+						response.setContent(bin1ref.bytes);
+				}
 			}
 
 			return response;
@@ -508,24 +1162,35 @@ public class LuceneIndexManager {
 	 * Returns index size
 	 * @return
 	 */
+	@Override
 	public int getIndexSize(){
 		int n = -1;
-		IndexReader reader = null;
+		
+		SearcherManager sm = null;
 		try {
-			
-			Directory dir = FSDirectory.open(Paths.get(INDEX_PATH));
-			reader = DirectoryReader.open(dir);
-			n = reader.numDocs();
+			sm = getSearcherManager();
+			if (sm == null){
+				return n;
+			}
+		} catch (Exception e1) {
+			logger.debug("Error during getting searcherManager. " + e1.getMessage());
+			return n;
+		}
+		
+		IndexSearcher searcher = null;
+		try {
+			searcher = sm.acquire();
+			n = searcher.getIndexReader().numDocs();
 
 		} catch (IOException e) {
 			
 			logger.error(e.getMessage(), e);
 		} finally {
 			
-			if (null != reader)
+			if (null != searcher)
 			{
 				try {
-					reader.close();
+					sm.release(searcher);
 				} catch (IOException e) {
 					logger.error(e.getMessage(), e);
 				}
@@ -536,4 +1201,65 @@ public class LuceneIndexManager {
 	}
 	
 
+	/**
+	 * Change for L2 index: put (response), delete (deleteQuery) or flush request (flushLatch) 
+	 */
+	private static class WriteOperation {
+		final WebResponse response;
+		final Query deleteQuery;
+		final String deleteUrlOrTag; // to match queued puts
+		final String deleteDomain; // to match queued puts
+		final String deletePrefix; // to match queued puts
+		final CountDownLatch flushLatch;
+		
+		WriteOperation(WebResponse response) {
+			this(response, null, null, null, null, null);
+		}
+		
+		WriteOperation(Query deleteQuery, String deleteUrlOrTag, String deleteDomain) {
+			this(null, deleteQuery, deleteUrlOrTag, deleteDomain, null, null);
+		}
+		
+		WriteOperation(Query deleteQuery, String deleteUrlOrTag, String deleteDomain, String deletePrefix) {
+			this(null, deleteQuery, deleteUrlOrTag, deleteDomain, deletePrefix, null);
+		}
+		
+		WriteOperation(CountDownLatch flushLatch) {
+			this(null, null, null, null, null, flushLatch);
+		}
+		
+		private WriteOperation(WebResponse response, Query deleteQuery, String deleteUrlOrTag, String deleteDomain, String deletePrefix, CountDownLatch flushLatch) {
+			this.response = response;
+			this.deleteQuery = deleteQuery;
+			this.deleteUrlOrTag = deleteUrlOrTag;
+			this.deleteDomain = deleteDomain;
+			this.deletePrefix = deletePrefix;
+			this.flushLatch = flushLatch;
+		}
+		
+		/**
+		 * @return true for explicit invalidation (by URL, tag, domain or prefix), false for put / flush / expired entries removal
+		 */
+		boolean isInvalidation() {
+			return null != deleteUrlOrTag || null != deleteDomain || null != deletePrefix;
+		}
+		
+		/**
+		 * @param response
+		 * @return true if response is removed by this (invalidation) operation
+		 */
+		boolean matches(WebResponse response) {
+			if (null != deleteUrlOrTag)
+				return deleteUrlOrTag.equals(response.getUrl()) || response.getTags().contains(deleteUrlOrTag);
+			
+			if (null != deleteDomain)
+				return deleteDomain.equals(response.getDomain());
+			
+			if (null != deletePrefix)
+				return KeyPrefixIndex.matches(deletePrefix, response.getUrl());
+			
+			return false;
+		}
+	}
+	
 }
@@ -0,0 +1,521 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.frontcache.cache.CacheProcessor;
+import org.frontcache.cache.CacheProcessorBase;
+import org.frontcache.core.FCUtils;
+import org.frontcache.core.WebResponse;
+import org.frontcache.core.WebResponseCodec;
+
+/**
+ *
+ * Keeps content and metadata (WebResponseCodec format) off-heap in direct buffers (slabs).
+ * Only small index (url -> chunks) is kept on heap - so big caches don't affect GC pauses.
+ *
+ * Slabs are split into fixed size chunks, entry takes as many chunks as needed (not contiguous).
+ * Slabs are allocated on demand until max size is reached, after that entries are evicted (CLOCK - approximated LRU).
+ *
+ */
+public class OffHeapCacheProcessor extends CacheProcessorBase implements CacheProcessor {
+
+	private static final String MAX_SIZE_KEY = "front-cache.cache-processor.impl.off-heap.maxsize";
+
+	private static final String SLAB_SIZE_KEY = "front-cache.cache-processor.impl.off-heap.slab-size";
+
+	private static final String CHUNK_SIZE_KEY = "front-cache.cache-processor.impl.off-heap.chunk-size";
+
+	private static final long MAX_SIZE_DEFAULT = 256L * 1024 * 1024; // 256M
+
+	private static final long SLAB_SIZE_DEFAULT = 16L * 1024 * 1024; // 16M
+
+	private static final long CHUNK_SIZE_DEFAULT = 4 * 1024; // 4K
+
+	private int chunkSize;
+
+	private int chunksPerSlab;
+
+	private int maxSlabs;
+
+	private long maxSize;
+
+	private ByteBuffer[] slabs = new ByteBuffer[0]; // preallocated (maxSlabs) - copy() reads it without lock 
+
+	private int slabsCount = 0;
+
+	private int[] freeChunks; // stack of free chunk ids
+
+	private int freeChunksCount = 0;
+
+	private Map<String, Entry> index = new HashMap<String, Entry>();
+
+	private KeyPrefixIndex prefixIndex = new KeyPrefixIndex();
+
+	private ArrayDeque<Entry> clockQueue = new ArrayDeque<Entry>(); // in insertion order - for eviction
+
+	// index, prefixIndex, clockQueue, slabs and free chunks are guarded by lock
+	// slabs array is never resized - slot is set under write lock before its chunks are reserved, so put can copy outside of lock
+	// reads copy data out of slabs under read lock (so chunks can't be reused meanwhile)
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final AtomicLong usedBytes = new AtomicLong(); // payload (meta + content)
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong(); // too big to be cached
+
+
+	@Override
+	public void init(Properties properties) {
+		Objects.requireNonNull(properties, "Properties should not be null");
+		super.init(properties);
+
+		long chunkSizeLong = FCUtils.sizeStr2Long(properties.getProperty(CHUNK_SIZE_KEY), CHUNK_SIZE_DEFAULT);
+		long slabSize = FCUtils.sizeStr2Long(properties.getProperty(SLAB_SIZE_KEY), SLAB_SIZE_DEFAULT);
+		maxSize = FCUtils.sizeStr2Long(properties.getProperty(MAX_SIZE_KEY), MAX_SIZE_DEFAULT);
+
+		if (chunkSizeLong < 64 || chunkSizeLong > slabSize || slabSize > Integer.MAX_VALUE)
+		{
+			logger.info("wrong off-heap chunk size " + chunkSizeLong + " / slab size " + slabSize + " - defaults are used");
+			chunkSizeLong = CHUNK_SIZE_DEFAULT;
+			slabSize = SLAB_SIZE_DEFAULT;
+		}
+
+		if (slabSize > maxSize)
+			slabSize = Math.max(maxSize, chunkSizeLong); // max size is hard limit
+
+		chunkSize = (int) chunkSizeLong;
+		chunksPerSlab = (int) (slabSize / chunkSize);
+		maxSlabs = (int) Math.max(1, maxSize / ((long) chunksPerSlab * chunkSize));
+
+		long maxChunks = (long) maxSlabs * chunksPerSlab;
+		if (maxChunks > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many off-heap chunks (" + maxChunks + ") - increase " + CHUNK_SIZE_KEY);
+
+		maxSize = maxChunks * chunkSize;
+		freeChunks = new int[(int) maxChunks];
+		slabs = new ByteBuffer[maxSlabs];
+
+		logger.info("off-heap cache max size is " + maxSize + " (" + maxSlabs + " slabs x " + chunksPerSlab + " chunks x " + chunkSize + " bytes)");
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+
+		lock.writeLock().lock();
+		try {
+			index.clear();
+			prefixIndex.clear();
+			clockQueue.clear();
+			Arrays.fill(slabs, null); // direct buffers are released by GC
+			slabsCount = 0;
+			freeChunksCount = 0;
+			usedBytes.set(0);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		return;
+	}
+
+	@Override
+	public void putToCache(String domain, String url, WebResponse component) {
+
+		if (component.getStatusCode() >= 500)
+		{
+			logger.error("Can't cache responses with statusCode 5XX: statusCode:" + component.getStatusCode() + ", url " + component.getUrl());
+			return;
+		}
+
+		component.setDomain(domain);
+
+		byte[] meta = WebResponseCodec.encode(component);
+		byte[] content = component.isContentGzipped() ? component.getGzippedContent() : component.getContent(); // as is
+		int contentLength = (null == content) ? -1 : content.length;
+
+		long length = (long) meta.length + Math.max(0, contentLength);
+		int chunksNeeded = (int) ((length + chunkSize - 1) / chunkSize);
+
+		if (chunksNeeded > freeChunks.length / 4) // don't let one entry flush the whole cache
+		{
+			rejected.incrementAndGet();
+			logger.info("web component is not cached - size " + length + " is too big for off-heap cache with max size " + maxSize);
+			return;
+		}
+
+		Entry entry = new Entry(url, domain, meta.length, contentLength, new int[chunksNeeded]);
+
+		// reserve chunks
+		lock.writeLock().lock();
+		try {
+			removeEntry(index.remove(url));
+
+			if (!reserveChunks(entry.chunks))
+			{
+				rejected.incrementAndGet();
+				return;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		// chunks are owned by entry and not visible for readers yet - write without lock
+		write(entry, meta, content);
+
+		// publish
+		lock.writeLock().lock();
+		try {
+			removeEntry(index.put(url, entry));
+			prefixIndex.put(url);
+			clockQueue.add(entry);
+			usedBytes.addAndGet(length);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		return;
+	}
+
+	@Override
+	public WebResponse getFromCacheImpl(String url) {
+		return get(url, true);
+	}
+
+	@Override
+	public WebResponse getMetadataFromCacheImpl(String url) {
+		return get(url, false);
+	}
+
+	private WebResponse get(String url, boolean withContent) {
+
+		byte[] meta;
+		byte[] content = null;
+
+		lock.readLock().lock();
+		try {
+			Entry entry = index.get(url);
+			if (null == entry)
+				return null;
+
+			entry.referenced = true;
+
+			meta = new byte[entry.metaLength];
+			if (-1 < entry.contentLength && withContent)
+				content = new byte[entry.contentLength];
+
+			read(entry, meta, content);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		WebResponse webResponse = WebResponseCodec.decode(meta);
+		if (WebResponseCodec.isContentGzipped(meta, 0, meta.length))
+			webResponse.setGzippedContent(content);
+		else
+			webResponse.setContent(content);
+
+		return webResponse;
+	}
+
+	@Override
+	public void removeFromCache(String domain, String filter) {
+
+		lock.writeLock().lock();
+		try {
+			List<String> removeList = new ArrayList<String>();
+
+			for(String key : index.keySet())
+			{
+				if (-1 < key.indexOf(filter))
+					removeList.add(key);
+			}
+
+			for(String key : removeList)
+				removeEntry(index.remove(key));
+
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		return;
+	}
+
+	@Override
+	public void removeFromCacheByPrefix(String domain, String prefix) {
+
+		lock.writeLock().lock();
+		try {
+			for(String key : prefixIndex.getKeysByPrefix(prefix))
+				removeEntry(index.remove(key));
+
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		return;
+	}
+
+	@Override
+	public void removeFromCacheAll(String domain) {
+
+		lock.writeLock().lock();
+		try {
+			List<String> removeList = new ArrayList<String>();
+
+			for(Entry entry : index.values())
+			{
+				if (null != domain && domain.equals(entry.domain))
+					removeList.add(entry.url);
+			}
+
+			for(String key : removeList)
+				removeEntry(index.remove(key));
+
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		return;
+	}
+
+	@Override
+	public Map<String, String> getCacheStatus() {
+		Map<String, String> status = super.getCacheStatus();
+
+		status.put("impl", this.getClass().getName());
+
+		lock.readLock().lock();
+		try {
+			status.put(CacheProcessor.CACHED_ENTRIES, "" + index.size());
+			status.put("off-heap.allocated-size", "" + ((long) slabsCount * chunksPerSlab * chunkSize));
+			status.put("off-heap.reserved-size", "" + (((long) slabsCount * chunksPerSlab - freeChunksCount) * chunkSize));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		status.put("off-heap.max-size", "" + maxSize);
+		status.put("off-heap.used-size", "" + usedBytes.get());
+		status.put("off-heap.chunk-size", "" + chunkSize);
+		status.put("off-heap.evictions", "" + evictions.get());
+		status.put("off-heap.rejected", "" + rejected.get());
+
+		return status;
+	}
+
+	@Override
+	public List<String> getCachedKeys() {
+		List<String> keys = new ArrayList<String>();
+
+		lock.readLock().lock();
+		try {
+			keys.addAll(index.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return keys;
+	}
+
+	@Override
+	public void patch() {
+	}
+
+	/**
+	 * Takes free chunks, allocates new slabs or evicts entries when needed
+	 * should be called under write lock
+	 *
+	 * @param chunks - ids to be filled
+	 * @return false if there is no enough space (e.g. everything is reserved by concurrent puts)
+	 */
+	private boolean reserveChunks(int[] chunks)
+	{
+		while (freeChunksCount < chunks.length)
+		{
+			if (slabsCount < maxSlabs)
+			{
+				allocateSlab();
+			} else if (!evict()) {
+				return false;
+			}
+		}
+
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i] = freeChunks[--freeChunksCount];
+
+		return true;
+	}
+
+	/**
+	 * should be called under write lock
+	 */
+	private void allocateSlab()
+	{
+		int slabId = slabsCount++;
+		slabs[slabId] = ByteBuffer.allocateDirect(chunksPerSlab * chunkSize);
+
+		// push in reverse order - so chunks are taken from the slab beginning
+		for (int i = chunksPerSlab - 1; i >= 0; i--)
+			freeChunks[freeChunksCount++] = slabId * chunksPerSlab + i;
+
+		return;
+	}
+
+	/**
+	 * CLOCK (second chance) eviction of one entry
+	 * should be called under write lock
+	 *
+	 * @return false if there is nothing to evict
+	 */
+	private boolean evict()
+	{
+		Entry entry;
+		while (null != (entry = clockQueue.poll()))
+		{
+			if (entry.removed)
+				continue;
+
+			if (entry.referenced)
+			{
+				entry.referenced = false;
+				clockQueue.add(entry);
+				continue;
+			}
+
+			index.remove(entry.url);
+			removeEntry(entry);
+			evictions.incrementAndGet();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * returns entry chunks to free list
+	 * should be called under write lock
+	 *
+	 * @param entry
+	 */
+	private void removeEntry(Entry entry)
+	{
+		if (null == entry || entry.removed)
+			return;
+
+		entry.removed = true; // it's removed from clockQueue lazily (in evict())
+		prefixIndex.remove(entry.url);
+		for (int chunk : entry.chunks)
+			freeChunks[freeChunksCount++] = chunk;
+
+		usedBytes.addAndGet(-(entry.metaLength + Math.max(0, entry.contentLength)));
+		return;
+	}
+
+	private void write(Entry entry, byte[] meta, byte[] content)
+	{
+		int pos = copy(entry, 0, meta, true);
+		if (null != content)
+			copy(entry, pos, content, true);
+
+		return;
+	}
+
+	private void read(Entry entry, byte[] meta, byte[] content)
+	{
+		int pos = copy(entry, 0, meta, false);
+		if (null != content)
+			copy(entry, pos, content, false);
+
+		return;
+	}
+
+	/**
+	 * Copies data between array and entry chunks
+	 *
+	 * @param entry
+	 * @param pos - position inside entry
+	 * @param data
+	 * @param toSlab - direction
+	 * @return position inside entry after copying
+	 */
+	private int copy(Entry entry, int pos, byte[] data, boolean toSlab)
+	{
+		int dataPos = 0;
+		while (dataPos < data.length)
+		{
+			int chunk = entry.chunks[pos / chunkSize];
+			int chunkOffset = pos % chunkSize;
+			int length = Math.min(chunkSize - chunkOffset, data.length - dataPos);
+
+			// duplicate() - buffer position is not shared between threads
+			ByteBuffer buffer = slabs[chunk / chunksPerSlab].duplicate();
+			buffer.position((chunk % chunksPerSlab) * chunkSize + chunkOffset);
+			if (toSlab)
+				buffer.put(data, dataPos, length);
+			else
+				buffer.get(data, dataPos, length);
+
+			dataPos += length;
+			pos += length;
+		}
+
+		return pos;
+	}
+
+	/**
+	 *
+	 * On heap part of cached entry
+	 *
+	 */
+	private static class Entry {
+
+		private final String url;
+
+		private final String domain;
+
+		private final int metaLength;
+
+		private final int contentLength; // -1 - content is null
+
+		private final int[] chunks;
+
+		private volatile boolean referenced = false; // for CLOCK eviction
+
+		private boolean removed = false; // guarded by write lock
+
+		Entry(String url, String domain, int metaLength, int contentLength, int[] chunks) {
+			this.url = url;
+			this.domain = domain;
+			this.metaLength = metaLength;
+			this.contentLength = contentLength;
+			this.chunks = chunks;
+		}
+	}
+
+}
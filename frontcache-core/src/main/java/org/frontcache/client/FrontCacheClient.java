@@ -158,6 +158,27 @@ public class FrontCacheClient {
 		}
 	}
 	
+	/**
+	 * Invalidates everything under URL prefix
+	 * 
+	 * @param prefix - path (e.g. /en/catalog/) or full URL prefix
+	 * @return
+	 */
+	public String removeFromCacheByPrefix(String prefix)
+	{
+		List<NameValuePair> urlParameters = new ArrayList<NameValuePair>();
+		urlParameters.add(new BasicNameValuePair("action", FrontcacheAction.INVALIDATE));
+		urlParameters.add(new BasicNameValuePair("filter", prefix));
+		urlParameters.add(new BasicNameValuePair("mode", FrontcacheAction.INVALIDATE_MODE_PREFIX));
+		
+		try {
+			return requestFrontCache(urlParameters);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return "ERROR " + e.getMessage(); 
+		}
+	}
+	
 	/**
 	 * 
 	 * @return
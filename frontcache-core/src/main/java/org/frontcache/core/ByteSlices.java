@@ -0,0 +1,105 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Content assembled from parts of other arrays (e.g. page content between includes and include contents).
+ * Parts are referenced, not copied - data is copied once to result array or output stream.
+ *
+ */
+public class ByteSlices {
+
+	private final List<Slice> slices = new ArrayList<Slice>();
+
+	private int length = 0;
+
+	public ByteSlices add(byte[] data)
+	{
+		return add(data, 0, data.length);
+	}
+
+	/**
+	 *
+	 * @param data - referenced, should not be changed
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public ByteSlices add(byte[] data, int offset, int length)
+	{
+		if (0 < length)
+		{
+			slices.add(new Slice(data, offset, length));
+			this.length += length;
+		}
+		return this;
+	}
+
+	/**
+	 * removes all parts (e.g. after they are written to output stream)
+	 */
+	public void clear()
+	{
+		slices.clear();
+		length = 0;
+	}
+
+	public int length()
+	{
+		return length;
+	}
+
+	public byte[] toByteArray()
+	{
+		byte[] result = new byte[length];
+		int pos = 0;
+		for (Slice slice : slices)
+		{
+			System.arraycopy(slice.data, slice.offset, result, pos, slice.length);
+			pos += slice.length;
+		}
+		return result;
+	}
+
+	public void writeTo(OutputStream out) throws IOException
+	{
+		for (Slice slice : slices)
+			out.write(slice.data, slice.offset, slice.length);
+	}
+
+	private static class Slice {
+
+		private final byte[] data;
+
+		private final int offset;
+
+		private final int length;
+
+		Slice(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+}
@@ -21,6 +21,10 @@ public class FCHeaders {
     public static final String ACCEPT_ENCODING = "accept-encoding";
     public static final String ACCEPT = "Accept";
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
     
     public static final String REQUEST_CLIENT_TYPE_BOT = "bot";
     public static final String REQUEST_CLIENT_TYPE_BROWSER = "browser";
@@ -33,6 +37,7 @@ public class FCHeaders {
     public static final String X_FRONTCACHE_SITE_KEY = "X-frontcache.site-key"; // hardcoded in 'frontcache-agent' - remember to update when needed
 
     public static final String X_FRONTCACHE_FALLBACK_IS_USED = "X-frontcache.fallback-is-used";
+    public static final String X_FRONTCACHE_STALE_IF_ERROR = "X-frontcache.stale-if-error"; // response - expired cached copy is served because origin failed
 
     public static final String X_FRONTCACHE_DYNAMIC_REQUEST = "X-frontcache.dynamic-request";
     public static final String X_FRONTCACHE_SOFT_REFRESH = "X-frontcache.soft-refresh";
@@ -56,6 +61,8 @@ public class FCHeaders {
     public static final String X_FRONTCACHE_COMPONENT_MAX_AGE = "X-frontcache.component.maxage";
     public static final String X_FRONTCACHE_COMPONENT_REFRESH_TYPE = "X-frontcache.component.refresh";
     public static final String X_FRONTCACHE_COMPONENT_TAGS = "X-frontcache.component.tags"; // invalidation tags 
+    public static final String X_FRONTCACHE_COMPONENT_ETAG = "X-frontcache.component.etag"; // strong ETag computed at put to cache (include free content only), '-gzip' suffix if stored compressed
+    public static final String X_FRONTCACHE_COMPONENT_INCLUDES = "X-frontcache.component.includes"; // include template (tag positions) computed at put to cache, not sent to clients
     public static final String X_FRONTCACHE_REQUEST_ID = "X-frontcache.request-id";
     public static final String X_FRONTCACHE_CLIENT_IP = "X-frontcache.client-ip";
     
@@ -16,6 +16,7 @@
  */
 package org.frontcache.core;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -24,6 +25,8 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -33,6 +36,8 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -159,6 +164,21 @@ public class FCUtils {
 	 * @return
 	 */
 	public static WebResponse dynamicCall(String urlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context) throws FrontCacheException
+    {
+		return dynamicCall(urlStr, requestHeaders, client, context, null);
+    }
+
+	/**
+	 * 
+	 * @param urlStr
+	 * @param requestHeaders
+	 * @param client
+	 * @param context
+	 * @param expiredWebResponse - cached copy to revalidate (ETag / Last-Modified) - origin may respond with 304 (http client only), null - regular call
+	 * @return
+	 * @throws FrontCacheException
+	 */
+	public static WebResponse dynamicCall(String urlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, WebResponse expiredWebResponse) throws FrontCacheException
     {
 		// add include-level header - to trace include tree 
 		addHeader(requestHeaders, FCHeaders.X_FRONTCACHE_INCLUDE_LEVEL, "" + context.getIncludeLevel());
@@ -169,7 +189,7 @@ public class FCUtils {
 		if (context.isFilterMode())
 			 return new FC_ThroughCache_WebFilter(context).execute();
 		else
-			 return new FC_ThroughCache_HttpClient(urlStr, requestHeaders, client, context).execute();
+			 return new FC_ThroughCache_HttpClient(urlStr, requestHeaders, client, context, expiredWebResponse).execute();
     }
 
 	/**
@@ -284,16 +304,19 @@ public class FCUtils {
 		
 		byte[] respData = null;
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		InputStream is = response.getEntity().getContent();
-		try {
-			int bytesRead = 0;
-            int bufferSize = 4000;
-	         byte[] byteBuffer = new byte[bufferSize];				
-	         while ((bytesRead = is.read(byteBuffer)) != -1) {
-	             baos.write(byteBuffer, 0, bytesRead);
-	         }
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (null != response.getEntity()) // no entity for 304
+		{
+			InputStream is = response.getEntity().getContent();
+			try {
+				int bytesRead = 0;
+	            int bufferSize = 4000;
+		         byte[] byteBuffer = new byte[bufferSize];				
+		         while ((bytesRead = is.read(byteBuffer)) != -1) {
+		             baos.write(byteBuffer, 0, bytesRead);
+		         }
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
 		}
 		respData = baos.toByteArray();
 		
@@ -444,6 +467,142 @@ public class FCUtils {
     public static boolean isGzipped(String contentEncoding) {
         return contentEncoding.contains("gzip");
     }
+
+	/**
+	 *
+	 * @param data
+	 * @return gzip compressed data
+	 * @throws IOException
+	 */
+	public static byte[] gzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+		try (GZIPOutputStream zout = new GZIPOutputStream(out, 8192)) {
+			zout.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 *
+	 * @param data - gzip compressed data
+	 * @return uncompressed data
+	 * @throws IOException
+	 */
+	public static byte[] gunzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		try (GZIPInputStream zin = new GZIPInputStream(new ByteArrayInputStream(data), 8192)) {
+			byte[] buffer = new byte[8192];
+			int bytesRead;
+			while (-1 != (bytesRead = zin.read(buffer)))
+				out.write(buffer, 0, bytesRead);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 *
+	 * @param acceptEncoding - Accept-Encoding request header (e.g. "gzip, deflate" or "gzip;q=0, *")
+	 * @return true if gzip (or x-gzip) is acceptable - explicitly or by '*' with non zero q-value
+	 */
+	public static boolean isGzipAccepted(String acceptEncoding)
+	{
+		if (null == acceptEncoding)
+			return false;
+
+		Boolean gzip = null; // explicitly listed
+		boolean any = false; // '*'
+		for (String coding : acceptEncoding.split(","))
+		{
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			if (!"gzip".equals(name) && !"x-gzip".equals(name) && !"*".equals(name))
+				continue;
+
+			boolean accepted = true;
+			for (int i = 1; i < params.length; i++)
+			{
+				String param = params[i].trim();
+				if (param.toLowerCase().startsWith("q="))
+				{
+					try {
+						accepted = 0 < Double.parseDouble(param.substring(2).trim());
+					} catch (NumberFormatException e) {
+						accepted = false; // malformed q-value - not acceptable
+					}
+				}
+			}
+
+			if ("*".equals(name))
+				any = accepted;
+			else
+				gzip = (null == gzip) ? accepted : (gzip || accepted);
+		}
+
+		return (null != gzip) ? gzip : any;
+	}
+
+	private static final String ETAG_GZIP_SUFFIX = "-gzip\"";
+
+	/**
+	 *
+	 * @param content - uncompressed content
+	 * @param gzipped - true if content is stored gzip compressed
+	 * @return strong entity tag (quoted MD5 hex of content, '-gzip' suffix for compressed representation)
+	 */
+	public static String strongETag(byte[] content, boolean gzipped)
+	{
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+			StringBuilder sb = new StringBuilder(2 + 2 * digest.length + ETAG_GZIP_SUFFIX.length()).append('"');
+			for (byte b : digest)
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return gzipped ? sb.append(ETAG_GZIP_SUFFIX).toString() : sb.append('"').toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // MD5 is always available
+		}
+	}
+
+	/**
+	 *
+	 * @param eTag - from strongETag()
+	 * @param gzipServed - true if compressed content (if it's stored compressed) is sent to client
+	 * @return entity tag of representation sent to client
+	 */
+	public static String representationETag(String eTag, boolean gzipServed)
+	{
+		if (gzipServed || !eTag.endsWith(ETAG_GZIP_SUFFIX))
+			return eTag;
+
+		return eTag.substring(0, eTag.length() - ETAG_GZIP_SUFFIX.length()) + '"'; // content is decompressed for client
+	}
+
+	/**
+	 *
+	 * @param eTag - strong entity tag
+	 * @param ifNoneMatch - If-None-Match request header (e.g. "abc", W/"def" or *)
+	 * @return true if one of entity tags matches (weak comparison)
+	 */
+	public static boolean isETagMatched(String eTag, String ifNoneMatch)
+	{
+		if (null == eTag || null == ifNoneMatch)
+			return false;
+
+		for (String tag : ifNoneMatch.split(","))
+		{
+			tag = tag.trim();
+			if ("*".equals(tag))
+				return true;
+
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+
+			if (eTag.equals(tag))
+				return true;
+		}
+		return false;
+	}
     
 	/**
 	 * wrap String to WebResponse.
@@ -513,7 +672,40 @@ public class FCUtils {
 		} catch (Exception e) {
 			logger.info("can't parse component maxage - " + maxAgeStr + " defalut is used (NO_CACHE)");
 			return CacheProcessor.NO_CACHE;
-		}		
+		}
+	}
+
+	/**
+	 *
+	 * @param sizeStr - size in bytes e.g. 512, 64K, 10M, 2G
+	 * @param defaultSize - returned when sizeStr is null or can't be parsed
+	 * @return size in bytes
+	 */
+	public static long sizeStr2Long(String sizeStr, long defaultSize)
+	{
+		if (null == sizeStr)
+			return defaultSize;
+
+		try
+		{
+			sizeStr = sizeStr.trim();
+			long multiplyPrefix = 1;
+			if (sizeStr.endsWith("G")) {
+				sizeStr = sizeStr.substring(0, sizeStr.length() - 1);
+				multiplyPrefix = 1024L * 1024 * 1024;
+			} else if (sizeStr.endsWith("M")) {
+				sizeStr = sizeStr.substring(0, sizeStr.length() - 1);
+				multiplyPrefix = 1024L * 1024;
+			} else if (sizeStr.endsWith("K")) {
+				sizeStr = sizeStr.substring(0, sizeStr.length() - 1);
+				multiplyPrefix = 1024L;
+			}
+
+			return multiplyPrefix * Long.parseLong(sizeStr.trim());
+		} catch (Exception e) {
+			logger.info("can't parse size - " + sizeStr + " defalut is used (" + defaultSize + ")");
+			return defaultSize;
+		}
 	}
 
 	public static String buildRequestURI(HttpServletRequest request) {
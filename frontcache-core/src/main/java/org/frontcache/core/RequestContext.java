@@ -19,9 +19,11 @@ package org.frontcache.core;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -30,6 +32,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
 
 
 /**
@@ -44,6 +47,8 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
 
     private static final String FRONTCACHE_REQUEST_TYPE = "frontcacheRequestType"; // { toplevel | include }
     private static final String FRONTCACHE_REQUEST_ID = "frontcacheRequestID"; // 
+    private static final String DEADLINE = "deadline"; // ms
+    private static final String IN_FLIGHT_REQUESTS = "inFlightRequests"; // origin calls bound by deadline
 
     public RequestContext() {
         super();
@@ -398,11 +403,10 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
     }
 
     /**
-     * @return true is the client request can accept gzip encoding. Checks the "accept-encoding" header
+     * @return true is the client request can accept gzip encoding. Checks the "accept-encoding" header (q-values are respected, e.g. gzip;q=0)
      */
     public boolean isGzipRequested() {
-        final String requestEncoding = this.getRequest().getHeader(FCHeaders.ACCEPT_ENCODING);
-        return requestEncoding != null && requestEncoding.toLowerCase().contains("gzip");
+        return FCUtils.isGzipAccepted(this.getRequest().getHeader(FCHeaders.ACCEPT_ENCODING));
     }
 
     /**
@@ -430,6 +434,85 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
     	this.set("httpClientResponse", response);
     }
 
+    /**
+     * request level deadline - includes (all levels) and origin calls for them are not started after it
+     * 
+     * @param deadlineMillis
+     */
+    public void setDeadline(long deadlineMillis) {
+        set(DEADLINE, deadlineMillis);
+    }
+
+    /**
+     * 
+     * @return deadline (ms), 0 if there is no deadline
+     */
+    public long getDeadline() {
+        Long deadline = (Long) get(DEADLINE);
+        return (null == deadline) ? 0 : deadline;
+    }
+
+    /**
+     * 
+     * @return ms left till deadline (0 if it's reached), Long.MAX_VALUE if there is no deadline
+     */
+    public long getTimeLeft() {
+        long deadline = getDeadline();
+        if (0 == deadline)
+        	return Long.MAX_VALUE;
+        
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    public boolean isDeadlineReached() {
+        return 0 == getTimeLeft();
+    }
+
+    /**
+     * origin call which is aborted if deadline is reached (see abortInFlightRequests())
+     * 
+     * @param request
+     */
+    @SuppressWarnings("unchecked")
+    public void addInFlightRequest(HttpUriRequest request) {
+    	Set<HttpUriRequest> requests = (Set<HttpUriRequest>) get(IN_FLIGHT_REQUESTS);
+    	if (null == requests)
+    	{
+    		requests = Collections.newSetFromMap(new ConcurrentHashMap<HttpUriRequest, Boolean>());
+    		Set<HttpUriRequest> existing = (Set<HttpUriRequest>) putIfAbsent(IN_FLIGHT_REQUESTS, requests);
+    		if (null != existing)
+    			requests = existing;
+    	}
+    	requests.add(request);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void removeInFlightRequest(HttpUriRequest request) {
+    	Set<HttpUriRequest> requests = (Set<HttpUriRequest>) get(IN_FLIGHT_REQUESTS);
+    	if (null != requests)
+    		requests.remove(request);
+    }
+
+    /**
+     * 
+     * @return amount of aborted origin calls
+     */
+    @SuppressWarnings("unchecked")
+    public int abortInFlightRequests() {
+    	Set<HttpUriRequest> requests = (Set<HttpUriRequest>) get(IN_FLIGHT_REQUESTS);
+    	if (null == requests)
+    		return 0;
+    	
+    	int aborted = 0;
+    	for (HttpUriRequest request : requests)
+    	{
+    		request.abort();
+    		requests.remove(request);
+    		aborted++;
+    	}
+    	return aborted;
+    }
+
     public void setFrontCacheHttpPort(String frontCacheHttpPort) {
         set("frontCacheHttpPort", frontCacheHttpPort);
     }
@@ -541,6 +624,8 @@ public class RequestContext extends ConcurrentHashMap<String, Object> {
 		
 		copy.putAll(this);
 		copy.setRequestId(UUID.randomUUID().toString());
+		copy.remove(DEADLINE); // copies are used for background calls (e.g. soft refresh)
+		copy.remove(IN_FLIGHT_REQUESTS);
 		
 		return copy;
 	}
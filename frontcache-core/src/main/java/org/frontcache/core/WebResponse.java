@@ -16,9 +16,12 @@
  */
 package org.frontcache.core;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -27,12 +30,15 @@ import java.util.Set;
 
 import org.frontcache.cache.CacheProcessor;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 /**
  * 
  * Container for web response. Usually it's text response for GET method.  
  * 
+ * Instance saved to cache is frozen (headers, tags, expire times are immutable) and shared by requests - 
+ * each request gets lightweight overlay() which copies collections on first change only.
  *
  */
 
@@ -53,12 +59,14 @@ public class WebResponse implements Serializable {
 	
 	private byte[] content;
 	
+	private byte[] gzippedContent; // content compressed at put to cache (content is null then)
+	
 	/**
 	 * Some headers, such as Accept-Language can be sent by clients as several headers each with a different value rather than sending the header as a comma separated list
 	 */
 	private Map<String, List<String>> headers;
 	
-	private final Set<String> tags = new HashSet<String>();
+	private Set<String> tags = new HashSet<String>();
 	
 	// -1 cache forever
 	// 0 never cache
@@ -71,6 +79,10 @@ public class WebResponse implements Serializable {
 	
 	private String cacheLevel = null; // null is default (L2) [L1 | L2]
 	
+	private boolean frozen = false; // cached instance - collections are immutable
+	
+	private boolean shared = false; // overlay - collections are shared with frozen instance
+	
 	
 	public WebResponse() { // for JSON converter
 		this("dummy", null, null, null);
@@ -106,6 +118,26 @@ public class WebResponse implements Serializable {
 		this.refreshType = refreshType;
 	}	
 	
+	/**
+	 * overlay for frozen response
+	 * 
+	 * @param frozen
+	 */
+	private WebResponse(WebResponse frozen) {
+		super();
+		this.statusCode = frozen.statusCode;
+		this.url = frozen.url;
+		this.domain = frozen.domain;
+		this.content = frozen.content;
+		this.gzippedContent = frozen.gzippedContent;
+		this.headers = frozen.headers;
+		this.tags = frozen.tags;
+		this.expireTimeMap = frozen.expireTimeMap;
+		this.refreshType = frozen.refreshType;
+		this.cacheLevel = frozen.cacheLevel;
+		this.shared = true;
+	}
+	
 	public int getStatusCode() {
 		return statusCode;
 	}
@@ -144,6 +176,24 @@ public class WebResponse implements Serializable {
 		return null;
 	}
 	
+	/**
+	 * 
+	 * @param name - case insensitive (e.g. ETag from origin can be 'Etag')
+	 * @return first value or null
+	 */
+	public String getHeaderIgnoreCase(String name) {
+		
+		String value = getHeader(name);
+		if (null != value)
+			return value;
+		
+		for (Map.Entry<String, List<String>> entry : headers.entrySet())
+			if (name.equalsIgnoreCase(entry.getKey()) && null != entry.getValue() && !entry.getValue().isEmpty())
+				return entry.getValue().get(0);
+		
+		return null;
+	}
+	
 	public boolean isText()
 	{
 		String contentType = getHeader(FCHeaders.CONTENT_TYPE);
@@ -158,6 +208,7 @@ public class WebResponse implements Serializable {
 	 * @param headers
 	 */
 	public void setHeaders(Map<String, List<String>> headers) {
+		unshare();
 		this.headers = headers;
 		
 		return;
@@ -177,6 +228,7 @@ public class WebResponse implements Serializable {
 	 * @param tags
 	 */
 	public void setTags(Set<String> tags) {
+		unshare();
 		this.tags.addAll(tags);
 	}
 
@@ -185,14 +237,25 @@ public class WebResponse implements Serializable {
 	 * @param tags
 	 */
 	public void addTags(Collection<String> tags) {
+		unshare();
 		this.tags.addAll(tags);
 	}
 	
 	/**
+	 * Uncompressed content. Compressed content is decompressed on each call (cached instance is never modified)
 	 * 
 	 * @return
 	 */
 	public byte[] getContent() {
+		if (null == content && null != gzippedContent)
+		{
+			try {
+				return FCUtils.gunzip(gzippedContent);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Can't decompress content for " + url, e);
+			}
+		}
+		
 		return content;
 	}
 
@@ -202,6 +265,51 @@ public class WebResponse implements Serializable {
 	 */
 	public void setContent(byte[] content) {
 		this.content = content;
+		this.gzippedContent = null;
+	}
+	
+	/**
+	 * 
+	 * @return gzip compressed content or null if content is not compressed
+	 */
+	@JsonIgnore
+	public byte[] getGzippedContent() {
+		return gzippedContent;
+	}
+	
+	/**
+	 * for caches restoring compressed content
+	 * 
+	 * @param gzippedContent
+	 */
+	@JsonIgnore
+	public void setGzippedContent(byte[] gzippedContent) {
+		this.gzippedContent = gzippedContent;
+		this.content = null;
+	}
+	
+	@JsonIgnore
+	public boolean isContentGzipped() {
+		return null != gzippedContent;
+	}
+	
+	/**
+	 * Replaces content with gzip compressed one (if it's smaller)
+	 * 
+	 * @param minSize - content smaller than minSize is kept uncompressed
+	 */
+	public void compressContent(int minSize) {
+		if (null == content || content.length < minSize)
+			return;
+		
+		try {
+			byte[] compressed = FCUtils.gzip(content);
+			if (compressed.length < content.length)
+				setGzippedContent(compressed);
+			
+		} catch (IOException e) {
+			// keep uncompressed
+		}
 	}
 	
 	/**
@@ -217,9 +325,12 @@ public class WebResponse implements Serializable {
 		if (null == headers)  
 			return false; // no header
 		
-		if (null == content) 
+		if (null == content && null == gzippedContent) 
 			return false;  // no data
 		
+		if ((301 == statusCode || 302 == statusCode) && null != getHeader("Location"))
+			return true; // redirect - no text body (see NegativeCache)
+		
 		String contentType = getHeader(FCHeaders.CONTENT_TYPE);
 		if (null == contentType || -1 == contentType.indexOf("text")) 
 			return false;  // response data is not text
@@ -227,6 +338,17 @@ public class WebResponse implements Serializable {
 		return true; 
 	}
 
+	/**
+	 * expire time counted from now (e.g. origin confirmed that cached copy is not modified)
+	 * 
+	 * @param maxAgeStr - maxAge="[bot|browser:]30d"
+	 */
+	public void resetExpireTime(String maxAgeStr) {
+		unshare();
+		this.expireTimeMap = new HashMap<String, Long>();
+		setExpireTime(maxAgeStr);
+	}
+	
 	/**
 	 * 
 	 * 
@@ -291,7 +413,7 @@ public class WebResponse implements Serializable {
 
 
 	/**
-	 * content length in bytes
+	 * content length in bytes (compressed length if content is gzipped)
 	 * 
 	 * @return
 	 */
@@ -300,11 +422,15 @@ public class WebResponse implements Serializable {
 		if (null != content)
 			return content.length;
 		
+		if (null != gzippedContent)
+			return gzippedContent.length;
+		
 		return -1;
 	}
 	
 	public void addHeader(String name, String value)
 	{
+		unshare();
 		List<String> values = headers.get(name);
 		if(null == values)
 		{
@@ -314,12 +440,74 @@ public class WebResponse implements Serializable {
 		values.add(value);
 	}
 
+    /**
+     * Makes headers, tags and expire times immutable. Called before response is saved to cache
+     */
+    public void freeze() {
+    	if (frozen)
+    		return;
+    	
+    	if (null != headers)
+    	{
+    		for (Map.Entry<String, List<String>> entry : headers.entrySet())
+    			if (null != entry.getValue())
+    				entry.setValue(Collections.unmodifiableList(entry.getValue()));
+    		
+    		headers = Collections.unmodifiableMap(headers);
+    	}
+    	tags = Collections.unmodifiableSet(tags);
+    	expireTimeMap = Collections.unmodifiableMap(expireTimeMap);
+    	frozen = true;
+    }
+    
+    @JsonIgnore
+    public boolean isFrozen() {
+    	return frozen;
+    }
+    
+    /**
+     * Per request view of cached (frozen) response - nothing is copied until it's changed
+     * (content can be replaced, headers / tags are copied on first change).
+     * 
+     * @return overlay for frozen response or copy() otherwise
+     */
+    public WebResponse overlay() {
+    	if (!frozen)
+    		return copy();
+    	
+    	return new WebResponse(this);
+    }
+    
+    /**
+     * copy shared collections before change
+     */
+    private void unshare() {
+    	if (frozen)
+    		throw new IllegalStateException("Cached response can't be changed (use overlay()) - " + url);
+    	
+    	if (!shared)
+    		return;
+    	
+    	if (null != headers)
+    	{
+    		Map<String, List<String>> headersCopy = new HashMap<String, List<String>>();
+    		for (Map.Entry<String, List<String>> entry : headers.entrySet())
+    			headersCopy.put(entry.getKey(), (null == entry.getValue()) ? null : new ArrayList<String>(entry.getValue()));
+    		
+    		headers = headersCopy;
+    	}
+    	tags = new HashSet<String>(tags);
+    	expireTimeMap = new HashMap<String, Long>(expireTimeMap);
+    	shared = false;
+    }
+    
     /**
      * 
      * @return
      */
     public WebResponse copy() {
     	WebResponse copy = new WebResponse(this.url, this.content);
+    	copy.gzippedContent = this.gzippedContent; // immutable, shared
     	copy.expireTimeMap.putAll(this.getExpireTimeMap());
     	copy.statusCode = this.statusCode;
     	copy.refreshType = this.refreshType;
@@ -343,7 +531,29 @@ public class WebResponse implements Serializable {
 		return expireTimeMap;
 	}
 	
+	/**
+	 * time (ms) when response is expired for all client types (bot, browser)
+	 * 
+	 * @return Long.MAX_VALUE if cached forever for some client type, 0 (NO_CACHE) if not cached at all
+	 */
+	@JsonIgnore
+	public long getExpireTimeMillis() {
+		long expireTimeMillis = CacheProcessor.NO_CACHE;
+		for (Long clientExpireTimeMillis : expireTimeMap.values())
+		{
+			if (null == clientExpireTimeMillis)
+				continue;
+			
+			if (CacheProcessor.CACHE_FOREVER == clientExpireTimeMillis)
+				return Long.MAX_VALUE;
+			
+			expireTimeMillis = Math.max(expireTimeMillis, clientExpireTimeMillis);
+		}
+		return expireTimeMillis;
+	}
+	
 	public void setExpireTimeMap(Map<String, Long> expireTimeMap) {
+		unshare();
 		this.expireTimeMap = expireTimeMap;
 	}
 	
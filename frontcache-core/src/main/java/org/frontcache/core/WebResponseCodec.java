@@ -0,0 +1,359 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * Compact binary format for WebResponse metadata (everything except content).
+ * Used by serializing caches (e.g. L2) instead of JSON.
+ *
+ * Format (version 2):
+ *  version byte
+ *  flags byte (FLAG_CONTENT_GZIPPED) - absent in version 1
+ *  statusCode (zigzag varint)
+ *  url, domain, refreshType, cacheLevel (strings)
+ *  expireTimeMap: count, [clientType (name), expireTime (zigzag varlong)]
+ *  headers: count + 1 (0 - null), [name, values count, [value (string)]]
+ *  tags: count, [tag (string)]
+ *
+ *  string - varint (length + 1) (0 - null) + UTF-8 bytes
+ *  name - varint index + 1 in NAMES dictionary or 0 + string
+ *
+ */
+public class WebResponseCodec {
+
+	public static final byte VERSION_1 = 1;
+
+	public static final byte VERSION_2 = 2;
+
+	private static final byte CURRENT_VERSION = VERSION_2;
+
+	/**
+	 * content stored next to metadata is gzip compressed
+	 */
+	public static final int FLAG_CONTENT_GZIPPED = 1;
+
+	/**
+	 * Dictionary for header names / client types.
+	 * Index is stored in cache, so NEVER reorder or remove items - append only.
+	 */
+	private static final String[] NAMES = new String[] {
+			FCHeaders.REQUEST_CLIENT_TYPE_BOT,
+			FCHeaders.REQUEST_CLIENT_TYPE_BROWSER,
+			FCHeaders.CONTENT_TYPE,
+			"Content-Language",
+			"Content-Encoding",
+			"Cache-Control",
+			"Expires",
+			"Last-Modified",
+			"ETag",
+			"Vary",
+			"Location",
+			"Pragma",
+			"Server",
+			"X-Powered-By",
+			"Access-Control-Allow-Origin",
+			FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE,
+			FCHeaders.X_FRONTCACHE_COMPONENT_REFRESH_TYPE,
+			FCHeaders.X_FRONTCACHE_COMPONENT_TAGS,
+			FCHeaders.X_FRONTCACHE_COMPONENT_CACHE_LEVEL,
+			FCHeaders.X_FRONTCACHE_COMPONENT,
+			FCHeaders.X_FRONTCACHE_ID,
+			FCHeaders.X_FRONTCACHE_FALLBACK_IS_USED,
+			FCHeaders.X_FRONTCACHE_COMPONENT_INCLUDES,
+		};
+
+	private static final Map<String, Integer> NAME_INDEX = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < NAMES.length; i++)
+			NAME_INDEX.put(NAMES[i], i);
+	}
+
+	private WebResponseCodec() {
+	}
+
+	/**
+	 *
+	 * @param webResponse
+	 * @return metadata (no content)
+	 */
+	public static byte[] encode(WebResponse webResponse)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+		out.write(CURRENT_VERSION);
+		out.write(webResponse.isContentGzipped() ? FLAG_CONTENT_GZIPPED : 0);
+		writeVarLong(out, zigzag(webResponse.getStatusCode()));
+		writeString(out, webResponse.getUrl());
+		writeString(out, webResponse.getDomain());
+		writeString(out, webResponse.getRefreshType());
+		writeString(out, webResponse.getCacheLevel());
+
+		Map<String, Long> expireTimeMap = webResponse.getExpireTimeMap();
+		writeVarLong(out, expireTimeMap.size());
+		for (Map.Entry<String, Long> entry : expireTimeMap.entrySet())
+		{
+			writeName(out, entry.getKey());
+			writeVarLong(out, zigzag(entry.getValue()));
+		}
+
+		Map<String, List<String>> headers = webResponse.getHeaders();
+		if (null == headers)
+		{
+			writeVarLong(out, 0);
+		} else {
+			writeVarLong(out, headers.size() + 1);
+			for (Map.Entry<String, List<String>> entry : headers.entrySet())
+			{
+				writeName(out, entry.getKey());
+				List<String> values = entry.getValue();
+				if (null == values)
+				{
+					writeVarLong(out, 0);
+				} else {
+					writeVarLong(out, values.size());
+					for (String value : values)
+						writeString(out, value);
+				}
+			}
+		}
+
+		Set<String> tags = webResponse.getTags();
+		writeVarLong(out, tags.size());
+		for (String tag : tags)
+			writeString(out, tag);
+
+		return out.toByteArray();
+	}
+
+	public static WebResponse decode(byte[] data)
+	{
+		return decode(data, 0, data.length);
+	}
+
+	/**
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return true if content stored with the metadata is gzip compressed (see WebResponse.setGzippedContent())
+	 */
+	public static boolean isContentGzipped(byte[] data, int offset, int length)
+	{
+		Reader in = new Reader(data, offset, length);
+
+		byte version = in.readByte();
+		if (VERSION_1 == version)
+			return false;
+
+		return 0 != (in.readByte() & FLAG_CONTENT_GZIPPED);
+	}
+
+	/**
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return WebResponse without content
+	 */
+	public static WebResponse decode(byte[] data, int offset, int length)
+	{
+		Reader in = new Reader(data, offset, length);
+
+		byte version = in.readByte();
+		if (VERSION_1 != version && VERSION_2 != version)
+			throw new IllegalArgumentException("Unsupported WebResponse format version " + version);
+
+		if (VERSION_2 <= version)
+			in.readByte(); // flags - content is not part of metadata
+
+		int statusCode = (int) unzigzag(in.readVarLong());
+		String url = in.readString();
+
+		WebResponse webResponse = new WebResponse(url);
+		webResponse.setStatusCode(statusCode);
+		webResponse.setDomain(in.readString());
+		webResponse.setRefreshType(in.readString());
+		webResponse.setCacheLevel(in.readString());
+
+		int expireTimeMapSize = (int) in.readVarLong();
+		Map<String, Long> expireTimeMap = new HashMap<String, Long>();
+		for (int i = 0; i < expireTimeMapSize; i++)
+		{
+			String clientType = in.readName();
+			expireTimeMap.put(clientType, unzigzag(in.readVarLong()));
+		}
+		webResponse.setExpireTimeMap(expireTimeMap);
+
+		int headersSize = (int) in.readVarLong() - 1;
+		if (-1 == headersSize)
+		{
+			webResponse.setHeaders(null);
+		} else {
+			Map<String, List<String>> headers = new HashMap<String, List<String>>();
+			for (int i = 0; i < headersSize; i++)
+			{
+				String name = in.readName();
+				int valuesSize = (int) in.readVarLong();
+				List<String> values = new ArrayList<String>(valuesSize);
+				for (int j = 0; j < valuesSize; j++)
+					values.add(in.readString());
+
+				headers.put(name, values);
+			}
+			webResponse.setHeaders(headers);
+		}
+
+		int tagsSize = (int) in.readVarLong();
+		if (0 < tagsSize)
+		{
+			Set<String> tags = new HashSet<String>();
+			for (int i = 0; i < tagsSize; i++)
+				tags.add(in.readString());
+
+			webResponse.setTags(tags);
+		}
+
+		webResponse.freeze(); // the same as saved to cache
+		return webResponse;
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String str)
+	{
+		if (null == str)
+		{
+			writeVarLong(out, 0);
+			return;
+		}
+
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length + 1);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeName(ByteArrayOutputStream out, String name)
+	{
+		Integer idx = (null == name) ? null : NAME_INDEX.get(name);
+		if (null != idx)
+		{
+			writeVarLong(out, idx + 1);
+		} else {
+			writeVarLong(out, 0);
+			writeString(out, name);
+		}
+	}
+
+	/**
+	 *
+	 * Sequential reader over byte array
+	 *
+	 */
+	private static class Reader {
+
+		private final byte[] data;
+		private int pos;
+		private final int limit;
+
+		Reader(byte[] data, int offset, int length) {
+			this.data = data;
+			this.pos = offset;
+			this.limit = offset + length;
+		}
+
+		byte readByte()
+		{
+			if (pos >= limit)
+				throw new IllegalArgumentException("Unexpected end of WebResponse data");
+
+			return data[pos++];
+		}
+
+		long readVarLong()
+		{
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (shift > 63)
+					throw new IllegalArgumentException("Malformed varint in WebResponse data");
+
+				b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			return value;
+		}
+
+		String readString()
+		{
+			int length = (int) readVarLong() - 1;
+			if (-1 == length)
+				return null;
+
+			if (length < 0 || pos + length > limit)
+				throw new IllegalArgumentException("Malformed string in WebResponse data");
+
+			String str = new String(data, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return str;
+		}
+
+		String readName()
+		{
+			int idx = (int) readVarLong();
+			if (0 == idx)
+				return readString();
+
+			if (idx > NAMES.length)
+				throw new IllegalArgumentException("Unknown name index " + idx + " in WebResponse data");
+
+			return NAMES[idx - 1];
+		}
+	}
+
+}
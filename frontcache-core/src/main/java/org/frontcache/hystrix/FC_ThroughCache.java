@@ -37,10 +37,15 @@ public class FC_ThroughCache extends HystrixCommand<WebResponse> {
 	private final String originUrlStr;
 	private final CacheProcessorBase cacheProcessorBase;
 	private final RequestContext context;
+	private final boolean metadataOnly; // content is not needed (HEAD request)
 	
 	private Logger logger = LoggerFactory.getLogger(FC_ThroughCache.class);
 
     public FC_ThroughCache(CacheProcessorBase cacheProcessorBase, String originUrlStr, RequestContext context) {
+    	this(cacheProcessorBase, originUrlStr, context, false);
+    }
+    
+    public FC_ThroughCache(CacheProcessorBase cacheProcessorBase, String originUrlStr, RequestContext context, boolean metadataOnly) {
         //TODO: replace wit hdomainContext
         super(Setter
                 .withGroupKey(HystrixCommandGroupKey.Factory.asKey("coinshome.net"))
@@ -50,10 +55,14 @@ public class FC_ThroughCache extends HystrixCommand<WebResponse> {
         this.originUrlStr = originUrlStr;
         this.cacheProcessorBase = cacheProcessorBase;
         this.context = context;
+        this.metadataOnly = metadataOnly;
     }
 
     @Override
     protected WebResponse run() throws FrontCacheException {
+    	if (metadataOnly)
+    		return cacheProcessorBase.getMetadataFromCacheImpl(originUrlStr);
+    	
     	return cacheProcessorBase.getFromCacheImpl(originUrlStr);
     }
     
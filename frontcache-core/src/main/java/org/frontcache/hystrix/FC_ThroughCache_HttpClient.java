@@ -23,11 +23,13 @@ import java.util.Map;
 
 import org.apache.http.Header;
 import org.apache.http.HttpHost;
-import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.frontcache.core.FCHeaders;
 import org.frontcache.core.FCUtils;
 import org.frontcache.core.FrontCacheException;
 import org.frontcache.core.RequestContext;
@@ -48,9 +50,22 @@ public class FC_ThroughCache_HttpClient extends HystrixCommand<WebResponse> {
 	private final Map<String, List<String>> requestHeaders;
 	private final HttpClient client;
 	private final RequestContext context;
+	private final WebResponse expiredWebResponse; // cached copy to revalidate (null - regular call)
 	private Logger logger = LoggerFactory.getLogger(FC_ThroughCache_HttpClient.class);
 	
     public FC_ThroughCache_HttpClient(String urlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context) {
+    	this(urlStr, requestHeaders, client, context, null);
+    }
+    
+    /**
+     * 
+     * @param urlStr
+     * @param requestHeaders
+     * @param client
+     * @param context
+     * @param expiredWebResponse - cached copy - its ETag / Last-Modified are sent to origin (If-None-Match / If-Modified-Since), so origin may respond with 304
+     */
+    public FC_ThroughCache_HttpClient(String urlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, WebResponse expiredWebResponse) {
         
         super(Setter
                 .withGroupKey(HystrixCommandGroupKey.Factory.asKey(context.getDomainContext().getDomain()))
@@ -62,21 +77,45 @@ public class FC_ThroughCache_HttpClient extends HystrixCommand<WebResponse> {
         this.requestHeaders = requestHeaders;
         this.client = client;
         this.context = context;
+        this.expiredWebResponse = expiredWebResponse;
     }
 
     @Override
     protected WebResponse run() throws FrontCacheException {
 		HttpResponse response = null;
+		HttpGet httpRequest = null;
+		
+		boolean deadlineBound = isDeadlineBound(context, requestHeaders);
+		if (deadlineBound && context.isDeadlineReached())
+			throw new FrontCacheException("Request deadline is reached, origin is not called for " + originRequestURL);
 
 		try {
 			logger.debug("calling " + originRequestURL);
 			HttpHost httpHost = FCUtils.getHttpHost(new URL(originRequestURL));
-			HttpRequest httpRequest = new HttpGet(FCUtils.buildRequestURI(originRequestURL));
+			httpRequest = new HttpGet(FCUtils.buildRequestURI(originRequestURL));
+			
+			if (deadlineBound)
+			{
+				httpRequest.setConfig(getRequestConfig(client, context.getTimeLeft()));
+				context.addInFlightRequest(httpRequest); // aborted when deadline is reached
+			}
 
 			// translate headers
 			Header[] httpHeaders = FCUtils.convertHeaders(requestHeaders);
 			for (Header header : httpHeaders)
-				httpRequest.addHeader(header);
+				if (null == expiredWebResponse || !isConditionalHeader(header.getName())) // client's validators are for client's copy
+					httpRequest.addHeader(header);
+			
+			if (null != expiredWebResponse)
+			{
+				String eTag = expiredWebResponse.getHeaderIgnoreCase(FCHeaders.ETAG);
+				if (null != eTag)
+					httpRequest.addHeader(FCHeaders.IF_NONE_MATCH, eTag);
+				
+				String lastModified = expiredWebResponse.getHeaderIgnoreCase(FCHeaders.LAST_MODIFIED);
+				if (null != lastModified)
+					httpRequest.addHeader(FCHeaders.IF_MODIFIED_SINCE, lastModified);
+			}
 			
 			response = client.execute(httpHost, httpRequest);
 			WebResponse webResp = FCUtils.httpResponse2WebComponent(originRequestURL, response, context);
@@ -86,6 +125,9 @@ public class FC_ThroughCache_HttpClient extends HystrixCommand<WebResponse> {
 			logger.error("Can't read from " + originRequestURL, ioe);
 			throw new FrontCacheException("Can't read from " + originRequestURL, ioe);
 		} finally {
+			if (deadlineBound && null != httpRequest)
+				context.removeInFlightRequest(httpRequest);
+			
 			if (null != response)
 				try {
 					((CloseableHttpResponse) response).close();
@@ -112,6 +154,50 @@ public class FC_ThroughCache_HttpClient extends HystrixCommand<WebResponse> {
 		return webResponse;
     }
 
+    /**
+     * sync includes are bound by request deadline (async includes are not waited for)
+     * 
+     * @param context
+     * @param requestHeaders
+     * @return true if origin call is bound by request deadline
+     */
+    static boolean isDeadlineBound(RequestContext context, Map<String, List<String>> requestHeaders)
+    {
+    	return 0 < context.getDeadline() && !requestHeaders.containsKey(FCHeaders.X_FRONTCACHE_ASYNC_INCLUDE);
+    }
+    
+    /**
+     * 
+     * @param client
+     * @param timeLeft - ms till request deadline
+     * @return client's request config with timeouts not longer than time left
+     */
+    static RequestConfig getRequestConfig(HttpClient client, long timeLeft)
+    {
+    	RequestConfig clientConfig = (client instanceof Configurable) ? ((Configurable) client).getConfig() : null;
+    	RequestConfig.Builder builder = (null == clientConfig) ? RequestConfig.custom() : RequestConfig.copy(clientConfig);
+    	int timeout = (int) Math.max(1, Math.min(Integer.MAX_VALUE, timeLeft));
+    	
+    	return builder
+    			.setSocketTimeout(getTimeout(null == clientConfig ? -1 : clientConfig.getSocketTimeout(), timeout))
+    			.setConnectTimeout(getTimeout(null == clientConfig ? -1 : clientConfig.getConnectTimeout(), timeout))
+    			.setConnectionRequestTimeout(getTimeout(null == clientConfig ? -1 : clientConfig.getConnectionRequestTimeout(), timeout))
+    			.build();
+    }
+    
+    /**
+     * @param configured - 0 or negative - infinite
+     */
+    private static int getTimeout(int configured, int timeLeft)
+    {
+    	return (0 < configured) ? Math.min(configured, timeLeft) : timeLeft;
+    }
+    
+    private static boolean isConditionalHeader(String name)
+    {
+    	return FCHeaders.IF_NONE_MATCH.equalsIgnoreCase(name) || FCHeaders.IF_MODIFIED_SINCE.equalsIgnoreCase(name);
+    }
+    
     /**
      * 
      * @param currentRequestURL
@@ -16,6 +16,8 @@
  */
 package org.frontcache.include;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -41,6 +43,31 @@ public interface IncludeProcessor {
 
 	public boolean hasIncludes(WebResponse webResponse, int recursionLevel);
 
+	/**
+	 * 
+	 * @param parentWebResponse
+	 * @param appOriginBaseURL
+	 * @param requestHeaders
+	 * @param client
+	 * @param context
+	 * @param recursionLevel - level of includes in parentWebResponse (1 for page)
+	 * @return content with includes resolved for all levels (up to MAX_RECURSION_LEVEL)
+	 */
 	public WebResponse processIncludes(WebResponse parentWebResponse, String appOriginBaseURL, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, int recursionLevel);
+
+	/**
+	 * 
+	 * @return true if pages with includes are streamed to client (see writeIncludes())
+	 */
+	public boolean isStreaming();
+	
+	/**
+	 * Writes content with resolved includes (all levels) to output stream
+	 * 
+	 * @param parentWebResponse - content from cache or origin (headers are sent already)
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeIncludes(WebResponse parentWebResponse, String appOriginBaseURL, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, OutputStream out) throws IOException;
 	
 }
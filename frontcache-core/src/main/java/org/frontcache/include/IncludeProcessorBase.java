@@ -16,13 +16,19 @@
  */
 package org.frontcache.include;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.http.client.HttpClient;
+import org.frontcache.cache.CacheKeyNormalizer;
 import org.frontcache.cache.CacheManager;
 import org.frontcache.cache.CacheProcessor;
 import org.frontcache.core.FCHeaders;
@@ -30,6 +36,7 @@ import org.frontcache.core.FCUtils;
 import org.frontcache.core.FrontCacheException;
 import org.frontcache.core.RequestContext;
 import org.frontcache.core.WebResponse;
+import org.frontcache.include.IncludeScanner.IncludeTag;
 import org.frontcache.reqlog.RequestLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,16 +51,14 @@ public abstract class IncludeProcessorBase implements IncludeProcessor {
 	
 	protected Logger logger = LoggerFactory.getLogger(getClass());
 	
-	protected static final String START_MARKER = "<fc:include";
-	protected static final String END_MARKER = "/>";
-
 	protected static final String INCLUDE_TYPE_SYNC = "sync"; // default
 	protected static final String INCLUDE_TYPE_ASYNC = "async";
 	
 	
-	private static final String[] NON_MERGEABLE_RESPONSE_HEADERS = new String[]{
-			FCHeaders.X_FRONTCACHE_TRACE_REQUEST
-		};
+	private static final Set<String> NON_MERGEABLE_RESPONSE_HEADERS = new HashSet<String>(Arrays.asList(new String[]{
+			FCHeaders.X_FRONTCACHE_TRACE_REQUEST,
+			FCHeaders.X_FRONTCACHE_COMPONENT_INCLUDES
+		}));
 	
 	public IncludeProcessorBase() {
 	}
@@ -61,40 +66,72 @@ public abstract class IncludeProcessorBase implements IncludeProcessor {
 
 	public boolean hasIncludes(WebResponse webResponse, int recursionLevel) 
 	{
-		byte[] content = webResponse.getContent();
-
-		if (null == content)
-			return false;
-		
 		if (recursionLevel >= MAX_RECURSION_LEVEL)
 			return false;
 		
 		if (!webResponse.isText()) // includes for text only
 			return false;
 
-		String contentStr = new String(content);
-		
-		int startIdx = contentStr.indexOf(START_MARKER);
-		if (-1 < startIdx)
+		if (0 == recursionLevel)
 		{
-			int endIdx = contentStr.indexOf(END_MARKER, startIdx);
-			if (-1 < endIdx && (endIdx - startIdx) < MAX_INCLUDE_LENGHT)
-			{
-				return true;
-			}
+			// content from cache - include template is stored with it (no need to decompress and scan content)
+			List<IncludeTag> template = getIncludeTemplate(webResponse);
+			if (null != template)
+				return !template.isEmpty();
 		}
 		
-		return false;
+		byte[] content = webResponse.getContent();
+
+		if (null == content)
+			return false;
+		
+		if (!IncludeScanner.isScannable(IncludeScanner.getCharset(webResponse)))
+			return false;
+		
+		return IncludeScanner.hasIncludes(content, MAX_INCLUDE_LENGHT);
+	}
+	
+	/**
+	 * Include template is computed at put to cache and describes stored content only 
+	 * (not valid once includes are resolved and content is replaced)
+	 * 
+	 * @param webResponse
+	 * @return include tags (empty list if content is include free), null if there is no template
+	 */
+	protected List<IncludeTag> getIncludeTemplate(WebResponse webResponse)
+	{
+		if (null == webResponse.getHeaders())
+			return null;
 		
+		return IncludeScanner.fromTemplate(webResponse.getHeaders().get(FCHeaders.X_FRONTCACHE_COMPONENT_INCLUDES));
+	}
+	
+	/**
+	 * 
+	 * @param parentCharset
+	 * @param includeWebResponse
+	 * @return include content encoded with parent's charset
+	 */
+	protected byte[] getIncludeContent(Charset parentCharset, WebResponse includeWebResponse)
+	{
+		byte[] content = includeWebResponse.getContent();
+		if (null == content)
+			return null;
+		
+		Charset charset = IncludeScanner.getCharset(includeWebResponse, parentCharset); // the same as parent's if not declared
+		if (charset.equals(parentCharset))
+			return content;
+		
+		return new String(content, charset).getBytes(parentCharset); // e.g. ISO-8859-1 include in UTF-8 page
 	}
 	
 	protected void mergeIncludeResponseHeaders(Map<String, List<String>> outHeaders, Map<String, List<String>> includeResponseHeaders) 
 	{
-		for (String removeKey : NON_MERGEABLE_RESPONSE_HEADERS)
-			includeResponseHeaders.remove(removeKey);
-
 		synchronized (outHeaders) {
 			for (String name : includeResponseHeaders.keySet()) {
+				if (NON_MERGEABLE_RESPONSE_HEADERS.contains(name))
+					continue; // include response can be shared (from cache) - skip, don't remove
+				
 				for (String value : includeResponseHeaders.get(name)) {
 					
 					List<String> outHeadersValues = outHeaders.get(name);
@@ -112,104 +149,6 @@ public abstract class IncludeProcessorBase implements IncludeProcessor {
 	}
 	
 
-	/**
-	 * 
-	 * @param content
-	 * @return
-	 */
-	protected String getIncludeURL(String content)
-	{
-		logger.debug("include tag - " + content);
-		final String START_MARKER = "url=\"";
-		int startIdx = content.indexOf(START_MARKER);
-		if (-1 < startIdx)
-		{
-			int endIdx = content.indexOf("\"", startIdx + START_MARKER.length());
-			if (-1 < endIdx)
-			{
-				String urlValue = content.substring(startIdx + START_MARKER.length(), endIdx);
-				logger.debug("include URL - " + urlValue);
-				return urlValue;
-			} else {
-				// can't find closing 
-				return null;
-			}
-			
-			
-		} else {
-			// no url attribute
-			return null;
-		}
-
-	}
-
-	/**
-	 * 
-	 * @param content
-	 * @return
-	 */
-	protected String getIncludeType(String content)
-	{
-		logger.debug("include tag - " + content);
-		final String START_MARKER = "call=\"";
-		int startIdx = content.indexOf(START_MARKER);
-		if (-1 < startIdx)
-		{
-			int endIdx = content.indexOf("\"", startIdx + START_MARKER.length());
-			if (-1 < endIdx)
-			{
-				String typeValue = content.substring(startIdx + START_MARKER.length(), endIdx);
-				
-				if (INCLUDE_TYPE_ASYNC.equalsIgnoreCase(typeValue))
-				{
-					logger.debug("include call-type - " + INCLUDE_TYPE_ASYNC);
-					return INCLUDE_TYPE_ASYNC;
-				}
-					
-			} else {
-				// can't find closing 
-			}
-		} else {
-			// no type attribute
-		}
-		
-		logger.debug("include call-type - " + INCLUDE_TYPE_SYNC);
-		return INCLUDE_TYPE_SYNC; // default
-	}
-
-	protected String getIncludeClientType(String content)
-	{
-		logger.debug("include tag - " + content);
-		final String START_MARKER = "client=\"";
-		int startIdx = content.indexOf(START_MARKER);
-		if (-1 < startIdx)
-		{
-			int endIdx = content.indexOf("\"", startIdx + START_MARKER.length());
-			if (-1 < endIdx)
-			{
-				String typeValue = content.substring(startIdx + START_MARKER.length(), endIdx);
-				
-				if (FCHeaders.REQUEST_CLIENT_TYPE_BOT.equalsIgnoreCase(typeValue))
-				{
-					logger.debug("include client-type - " + FCHeaders.REQUEST_CLIENT_TYPE_BOT);
-					return FCHeaders.REQUEST_CLIENT_TYPE_BOT;
-				}
-				if (FCHeaders.REQUEST_CLIENT_TYPE_BROWSER.equalsIgnoreCase(typeValue))
-				{
-					logger.debug("include client-type - " + FCHeaders.REQUEST_CLIENT_TYPE_BROWSER);
-					return FCHeaders.REQUEST_CLIENT_TYPE_BROWSER;
-				}
-					
-			} else {
-				// can't find closing 
-			}
-		} else {
-			// no type attribute
-		}
-		
-		return null; // default
-	}
-	
 	/**
 	 * 
 	 * @param urlStr
@@ -226,7 +165,8 @@ public abstract class IncludeProcessorBase implements IncludeProcessor {
 		long start = System.currentTimeMillis();
 		
 		CacheProcessor cacheProcessor = CacheManager.getInstance();
-		WebResponse webResponse = cacheProcessor.getFromCache(urlStr);
+		String cacheKey = CacheKeyNormalizer.getInstance().normalize(context.getDomainContext().getDomain(), urlStr); // origin is called with urlStr
+		WebResponse webResponse = cacheProcessor.getFromCache(cacheKey);
 		
 		boolean isCacheableForClientType = true;
 		
@@ -248,11 +188,16 @@ public abstract class IncludeProcessorBase implements IncludeProcessor {
 				if (FCHeaders.COMPONENT_REFRESH_TYPE_SOFT.equalsIgnoreCase(refreshType))
 				{
 					// soft expiration
-					cacheProcessor.doSoftInvalidation(urlStr, urlStr, requestHeaders, client, context);
+					Long expireTimeMillis = expireTimeMap.get(clientType);
+					cacheProcessor.doSoftInvalidation(cacheKey, urlStr, requestHeaders, client, context, (null == expireTimeMillis) ? 0 : expireTimeMillis);
 					softRefresh = true;
 				} else {
 					// regular expiration
-					cacheProcessor.removeFromCache(context.getDomainContext().getDomain(), urlStr);
+					Long expireTimeMillis = expireTimeMap.get(clientType);
+					if ((null == expireTimeMillis || !cacheProcessor.isStaleIfError(expireTimeMillis)) && !cacheProcessor.isRevalidatable(webResponse))
+						cacheProcessor.removeFromCache(context.getDomainContext().getDomain(), cacheKey);
+					// else - stale-if-error / revalidation, expired copy is kept in cache for include request (removed when origin responds)
+					
 					webResponse = null; // refresh from origin
 				}
 			}
@@ -305,6 +250,25 @@ public abstract class IncludeProcessorBase implements IncludeProcessor {
  		return outWebResponse;
     }
 
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+	
+	/**
+	 * buffered - content is written when all includes are resolved
+	 */
+	@Override
+	public void writeIncludes(WebResponse parentWebResponse, String appOriginBaseURL, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, OutputStream out) throws IOException
+	{
+		WebResponse webResponse = parentWebResponse;
+		if (hasIncludes(webResponse, 0))
+			webResponse = processIncludes(webResponse, appOriginBaseURL, requestHeaders, client, context, 1); // all levels
+		
+		out.write(webResponse.getContent());
+		return;
+	}
+	
 	@Override
 	public void init(Properties properties) {
 	}
@@ -0,0 +1,372 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.include;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+
+/**
+ *
+ * Include tags parser working on content bytes - page is not decoded to String (tags only).
+ * Markers are ASCII, so content in ASCII compatible charset (UTF-8, ISO-8859-x, windows-125x) is scanned as is,
+ * other charsets (e.g. UTF-16) are not processed.
+ *
+ * Processing URL example <fc:include url="/some/url/here" />
+ *
+ */
+public class IncludeScanner {
+
+	public static final String START_MARKER = "<fc:include";
+
+	public static final String END_MARKER = "/>";
+
+	private static final BytePattern START_PATTERN = new BytePattern(START_MARKER);
+
+	private static final BytePattern END_PATTERN = new BytePattern(END_MARKER);
+
+	private static final String CHARSET_PARAM = "charset=";
+
+	private static final String TEMPLATE_INCLUDE_FREE = "none"; // template of content without includes
+
+	private static final String TEMPLATE_ALL_CLIENTS = "*";
+
+	private IncludeScanner() {
+	}
+
+	/**
+	 *
+	 * @param content
+	 * @param maxTagLength - longer tags are not includes
+	 * @return true if content has include tag
+	 */
+	public static boolean hasIncludes(byte[] content, int maxTagLength)
+	{
+		int startIdx = indexOf(content, 0, content.length, START_PATTERN);
+		if (-1 == startIdx)
+			return false;
+
+		int endIdx = indexOf(content, startIdx, Math.min(content.length, startIdx + maxTagLength + END_MARKER.length()), END_PATTERN);
+		return -1 < endIdx && (endIdx - startIdx) < maxTagLength;
+	}
+
+	/**
+	 *
+	 * @param content
+	 * @param charset - charset of content (tags are decoded with it)
+	 * @return include tags in order of appearance, null if there are no includes
+	 */
+	public static List<IncludeTag> scan(byte[] content, Charset charset)
+	{
+		List<IncludeTag> includes = null;
+
+		int scanIdx = 0;
+		while (scanIdx < content.length)
+		{
+			int startIdx = indexOf(content, scanIdx, content.length, START_PATTERN);
+			if (-1 == startIdx)
+				break; // scan complete
+
+			int endIdx = indexOf(content, startIdx, content.length, END_PATTERN);
+			if (-1 == endIdx)
+				break; // can't find closing
+
+			endIdx += END_MARKER.length();
+			String tag = new String(content, startIdx, endIdx - startIdx, charset);
+
+			if (null == includes)
+				includes = new ArrayList<IncludeTag>();
+
+			includes.add(new IncludeTag(startIdx, endIdx, getAttribute(tag, "url"), getIncludeType(tag), getIncludeClientType(tag)));
+			scanIdx = endIdx;
+		}
+
+		return includes;
+	}
+
+	/**
+	 * The same checks as include processor does for stored content (text, ASCII compatible charset, first tag length)
+	 *
+	 * @param webResponse
+	 * @param content - uncompressed content of webResponse
+	 * @return include tags in order of appearance, null if include processor won't find includes in content
+	 */
+	public static List<IncludeTag> scan(WebResponse webResponse, byte[] content)
+	{
+		if (null == content || !webResponse.isText())
+			return null;
+
+		Charset charset = getCharset(webResponse);
+		if (!isScannable(charset) || !hasIncludes(content, IncludeProcessor.MAX_INCLUDE_LENGHT))
+			return null;
+
+		return scan(content, charset);
+	}
+
+	/**
+	 * Include template - header values stored with cached content, so cache hit doesn't scan content again.
+	 * Value per include: 'startIdx endIdx type clientType url' (clientType '*' - all clients), 'none' - no includes
+	 *
+	 * @param includes - null if there are no includes
+	 * @return header values
+	 */
+	public static List<String> toTemplate(List<IncludeTag> includes)
+	{
+		List<String> template = new ArrayList<String>();
+		if (null == includes || includes.isEmpty())
+		{
+			template.add(TEMPLATE_INCLUDE_FREE);
+			return template;
+		}
+
+		for (IncludeTag tag : includes)
+			template.add(tag.getStartIdx() + " " + tag.getEndIdx() + " " + tag.getType() + " "
+					+ ((null == tag.getClientType()) ? TEMPLATE_ALL_CLIENTS : tag.getClientType()) + " " + tag.getUrl());
+
+		return template;
+	}
+
+	/**
+	 *
+	 * @param template - header values (see toTemplate())
+	 * @return include tags (empty list for include free content), null if template is malformed
+	 */
+	public static List<IncludeTag> fromTemplate(List<String> template)
+	{
+		if (null == template || template.isEmpty())
+			return null;
+
+		if (1 == template.size() && TEMPLATE_INCLUDE_FREE.equals(template.get(0)))
+			return Collections.emptyList();
+
+		List<IncludeTag> includes = new ArrayList<IncludeTag>(template.size());
+		int prevEndIdx = 0;
+		for (String value : template)
+		{
+			String[] parts = (null == value) ? new String[0] : value.split(" ", 5); // URL is the last
+			if (5 != parts.length)
+				return null;
+
+			try {
+				int startIdx = Integer.parseInt(parts[0]);
+				int endIdx = Integer.parseInt(parts[1]);
+				if (startIdx < prevEndIdx || endIdx <= startIdx)
+					return null;
+
+				String type = IncludeProcessorBase.INCLUDE_TYPE_ASYNC.equals(parts[2]) ? IncludeProcessorBase.INCLUDE_TYPE_ASYNC : IncludeProcessorBase.INCLUDE_TYPE_SYNC;
+				String clientType = TEMPLATE_ALL_CLIENTS.equals(parts[3]) ? null : parts[3];
+				includes.add(new IncludeTag(startIdx, endIdx, parts[4], type, clientType));
+				prevEndIdx = endIdx;
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		return includes;
+	}
+
+	/**
+	 *
+	 * @param webResponse
+	 * @return charset from Content-Type header, UTF-8 if it's not there (or not supported)
+	 */
+	public static Charset getCharset(WebResponse webResponse)
+	{
+		return getCharset(webResponse, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 *
+	 * @param webResponse
+	 * @param defaultCharset
+	 * @return charset from Content-Type header, default if it's not there (or not supported)
+	 */
+	public static Charset getCharset(WebResponse webResponse, Charset defaultCharset)
+	{
+		String contentType = webResponse.getHeader(FCHeaders.CONTENT_TYPE);
+		if (null == contentType)
+			return defaultCharset;
+
+		int idx = contentType.toLowerCase().indexOf(CHARSET_PARAM);
+		if (-1 == idx)
+			return defaultCharset;
+
+		String name = contentType.substring(idx + CHARSET_PARAM.length());
+		int endIdx = name.indexOf(';');
+		if (-1 < endIdx)
+			name = name.substring(0, endIdx);
+
+		name = name.trim().replace("\"", "");
+		try {
+			return Charset.forName(name);
+		} catch (Exception e) {
+			return defaultCharset;
+		}
+	}
+
+	/**
+	 *
+	 * @param charset
+	 * @return true if include markers are encoded as ASCII in the charset (content can be scanned as bytes)
+	 */
+	public static boolean isScannable(Charset charset)
+	{
+		return Arrays.equals(START_PATTERN.bytes, START_MARKER.getBytes(charset));
+	}
+
+	/**
+	 *
+	 * @param tag - e.g. <fc:include url="/some/url/here" call="async" />
+	 * @param name
+	 * @return attribute value or null
+	 */
+	private static String getAttribute(String tag, String name)
+	{
+		String marker = name + "=\"";
+		int startIdx = tag.indexOf(marker);
+		if (-1 == startIdx)
+			return null; // no attribute
+
+		int endIdx = tag.indexOf("\"", startIdx + marker.length());
+		if (-1 == endIdx)
+			return null; // can't find closing
+
+		return tag.substring(startIdx + marker.length(), endIdx);
+	}
+
+	/**
+	 * @return async or sync (default)
+	 */
+	private static String getIncludeType(String tag)
+	{
+		if (IncludeProcessorBase.INCLUDE_TYPE_ASYNC.equalsIgnoreCase(getAttribute(tag, "call")))
+			return IncludeProcessorBase.INCLUDE_TYPE_ASYNC;
+
+		return IncludeProcessorBase.INCLUDE_TYPE_SYNC; // default
+	}
+
+	/**
+	 * @return bot, browser or null (include for all clients)
+	 */
+	private static String getIncludeClientType(String tag)
+	{
+		String clientType = getAttribute(tag, "client");
+		if (FCHeaders.REQUEST_CLIENT_TYPE_BOT.equalsIgnoreCase(clientType))
+			return FCHeaders.REQUEST_CLIENT_TYPE_BOT;
+
+		if (FCHeaders.REQUEST_CLIENT_TYPE_BROWSER.equalsIgnoreCase(clientType))
+			return FCHeaders.REQUEST_CLIENT_TYPE_BROWSER;
+
+		return null; // default
+	}
+
+	/**
+	 * Boyer-Moore-Horspool search
+	 *
+	 * @param data
+	 * @param fromIdx
+	 * @param toIdx - exclusive
+	 * @param pattern
+	 * @return index of pattern or -1
+	 */
+	static int indexOf(byte[] data, int fromIdx, int toIdx, BytePattern pattern)
+	{
+		byte[] bytes = pattern.bytes;
+		int last = bytes.length - 1;
+		int idx = fromIdx;
+		while (idx + last < toIdx)
+		{
+			int i = last;
+			while (data[idx + i] == bytes[i])
+			{
+				if (0 == i)
+					return idx;
+				i--;
+			}
+			idx += pattern.skip[data[idx + last] & 0xFF];
+		}
+		return -1;
+	}
+
+	/**
+	 * ASCII pattern with skip table
+	 */
+	static class BytePattern {
+
+		private final byte[] bytes;
+
+		private final int[] skip = new int[256]; // shift by last byte of window
+
+		BytePattern(String pattern) {
+			bytes = pattern.getBytes(StandardCharsets.US_ASCII);
+			Arrays.fill(skip, bytes.length);
+			for (int i = 0; i < bytes.length - 1; i++)
+				skip[bytes[i] & 0xFF] = bytes.length - 1 - i;
+		}
+	}
+
+	/**
+	 * Parsed include tag - position in content and attributes
+	 */
+	public static class IncludeTag {
+
+		private final int startIdx;
+
+		private final int endIdx; // exclusive
+
+		private final String url;
+
+		private final String type; // sync | async
+
+		private final String clientType; // bot | browser | null
+
+		public IncludeTag(int startIdx, int endIdx, String url, String type, String clientType) {
+			this.startIdx = startIdx;
+			this.endIdx = endIdx;
+			this.url = url;
+			this.type = type;
+			this.clientType = clientType;
+		}
+
+		public int getStartIdx() {
+			return startIdx;
+		}
+
+		public int getEndIdx() {
+			return endIdx;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getClientType() {
+			return clientType;
+		}
+	}
+
+}
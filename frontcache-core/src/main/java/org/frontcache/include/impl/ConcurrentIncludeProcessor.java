@@ -16,6 +16,9 @@
  */
 package org.frontcache.include.impl;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -32,6 +35,7 @@ import java.util.concurrent.TimeoutException;
 
 import org.apache.http.client.HttpClient;
 import org.frontcache.FrontCacheEngine;
+import org.frontcache.core.ByteSlices;
 import org.frontcache.core.FCHeaders;
 import org.frontcache.core.FrontCacheException;
 import org.frontcache.core.RequestContext;
@@ -39,6 +43,8 @@ import org.frontcache.core.WebResponse;
 import org.frontcache.hystrix.fr.FallbackResolverFactory;
 import org.frontcache.include.IncludeProcessor;
 import org.frontcache.include.IncludeProcessorBase;
+import org.frontcache.include.IncludeScanner;
+import org.frontcache.include.IncludeScanner.IncludeTag;
 
 import com.netflix.hystrix.exception.HystrixRuntimeException;
 
@@ -51,6 +57,7 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 
 	private int threadAmount = 10; // default 10 thread
 	private long timeout = 6*1000; // default 6 second
+	private boolean streaming = false; // default - page with includes is sent when all includes are resolved
 	
     ExecutorService executor = null;
 
@@ -79,6 +86,11 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 		}
 		logger.info("timeout: " + timeout);
 		
+		String streamingStr = properties.getProperty("front-cache.include-processor.impl.concurrent.streaming");
+		if (null != streamingStr && streamingStr.trim().length() > 0)
+			streaming = Boolean.parseBoolean(streamingStr.trim()); 
+		logger.info("streaming: " + streaming);
+		
 	    executor = Executors.newFixedThreadPool(threadAmount); 
 	}
 
@@ -89,6 +101,8 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 	}	
 		
 	/**
+	 * Includes are resolved as a tree - include's own includes are submitted as soon as include is resolved (concurrently with its siblings),
+	 * page is assembled once when all levels are resolved.
 	 * 
 	 * @param content
 	 * @param hostURL
@@ -96,18 +110,121 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 	 */
 	public WebResponse processIncludes(WebResponse parentWebResponse, String hostURL, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, int recursionLevel)
 	{
-		String contentStr = new String(parentWebResponse.getContent());
-		List<IncludeResolutionPlaceholder> includes = parseIncludes(contentStr, hostURL, requestHeaders, client, context);
+		byte[] content = parentWebResponse.getContent();
+		Charset charset = IncludeScanner.getCharset(parentWebResponse);
+		List<IncludeResolutionPlaceholder> includes = parseIncludes(getIncludeTags(parentWebResponse, content, charset, recursionLevel), charset, hostURL, requestHeaders, client, context, recursionLevel);
 		
 		if (null == includes)
 			return parentWebResponse;
 
-        List<Future<IncludeResolutionPlaceholder>> futureList = new ArrayList<Future<IncludeResolutionPlaceholder>>(includes.size()); // for sync includes
+		setDeadline(context);
+		submitIncludes(includes, context, "" + recursionLevel);
+      
+		// paste content from includes to output doc
+		WebResponse agregatedWebResponse = new WebResponse("aggregation in " + this.getClass().getName());
+		
+		IncludeAssembly assembly = new IncludeAssembly(charset, context, null, agregatedWebResponse.getHeaders());
+		try {
+			assembly.append(content, includes);
+		} catch (IOException e) {
+			// not expected - there is no output stream
+			logger.error("unexpected error assembling includes", e);
+		} finally {
+			assembly.complete();
+		}
+		
+		agregatedWebResponse.setContent(assembly.out.toByteArray());
+		return agregatedWebResponse;
+	}	
+
+	@Override
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Static parts of page and includes are written in document order as soon as they are ready - 
+	 * output is flushed before waiting for include which is not resolved yet.
+	 * 
+	 * Response headers are sent with the first flush, so headers from includes are not merged (the same as for buffered output - page headers only). 
+	 * 
+	 */
+	@Override
+	public void writeIncludes(WebResponse parentWebResponse, String hostURL, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, OutputStream out) throws IOException
+	{
+		int recursionLevel = 1;
+		byte[] content = parentWebResponse.getContent();
+		Charset charset = IncludeScanner.getCharset(parentWebResponse);
+		List<IncludeResolutionPlaceholder> includes = parseIncludes(getIncludeTags(parentWebResponse, content, charset, recursionLevel), charset, hostURL, requestHeaders, client, context, recursionLevel);
+		
+		if (null == includes)
+		{
+			out.write(content);
+			return;
+		}
+		
+		setDeadline(context);
+		submitIncludes(includes, context, "" + recursionLevel);
+		
+		IncludeAssembly assembly = new IncludeAssembly(charset, context, out, null);
+		try {
+			assembly.append(content, includes);
+		} finally {
+			assembly.complete();
+		}
+		assembly.out.writeTo(out); // the rest
+		return;
+	}
 
+	/**
+	 * One deadline for all includes of request (all levels) - timeout is counted from start of include resolution
+	 * 
+	 * @param context
+	 */
+	private void setDeadline(RequestContext context)
+	{
+		if (0 == context.getDeadline())
+			context.setDeadline(System.currentTimeMillis() + timeout);
+		
+		return;
+	}
+	
+	/**
+	 * 
+	 * @param webResponse
+	 * @param content
+	 * @param charset
+	 * @param recursionLevel
+	 * @return include tags from stored template (content from cache) or content scan
+	 */
+	private List<IncludeTag> getIncludeTags(WebResponse webResponse, byte[] content, Charset charset, int recursionLevel)
+	{
+		List<IncludeTag> tags = null;
+		if (1 == recursionLevel) // content from cache - use stored include template
+			tags = getIncludeTemplate(webResponse);
+		
+		if (null != tags && !tags.isEmpty() && tags.get(tags.size() - 1).getEndIdx() > content.length)
+			tags = null; // template doesn't match content
+		
+		if (null == tags)
+			tags = IncludeScanner.scan(content, charset);
+		
+		return tags;
+	}
+	
+	/**
+	 * Runs concurrent include resolution (futures of sync includes are saved to placeholders) 
+	 * 
+	 * @param includes
+	 * @param context
+	 * @param parentIncludeLevel - e.g. '1' for page includes ('1.0', '1.1', ...), '1.0' for includes of the first include
+	 */
+	private void submitIncludes(List<IncludeResolutionPlaceholder> includes, RequestContext context, String parentIncludeLevel)
+	{
         for (int i=0; i < includes.size(); i++)
 		{
         	IncludeResolutionPlaceholder inc = includes.get(i);
-        	inc.includeLevel = "" + recursionLevel + "." + i;
+        	inc.includeLevel = parentIncludeLevel + "." + i;
         	
 			boolean performInclude = false; // check for client specific include
 			if (null == inc.includeClientType)
@@ -135,87 +252,53 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 					// response from Origin is NOT included to response to client
 					// useful for counters - e.g. response totally from cache (fast) and async call to origin 
 					executor.submit(inc);
+				} else if (context.isDeadlineReached()) {
+					// deadline is reached - include is not resolved (fallback is used) 
+					logger.debug("deadline is reached, include is not resolved " + inc.includeURL);
 				} else {
 					// run concurrent include resolution
-					// for Sync includes - wait for response from Origin (until timeout)
+					// for Sync includes - wait for response from Origin (until deadline)
 					// origin responses are sent to client
-		            futureList.add(executor.submit(inc));
+		            inc.future = executor.submit(inc);
 				}
 			} // if (performInclude)
 		}
-      
-		// processing timeouts for Sync includes 
-        boolean timeoutReached = false;
-        for (Future<IncludeResolutionPlaceholder> f : futureList)
-        {
-            try {
-            	if (timeoutReached)
-            		f.get(1, TimeUnit.MILLISECONDS);
-            	else
-            		f.get(timeout, TimeUnit.MILLISECONDS);
-            		
-            } catch (TimeoutException | InterruptedException | ExecutionException e) { 
-                f.cancel(true);
-                timeoutReached =  true;
-                logger.debug("timeout (" + timeout + ") reached for resolving includes. Some includes may not be resolved ");
-            }
-        }
-		
-        // replace placeholders with content
-		WebResponse agregatedWebResponse = replaceIncludePlaceholders(contentStr, includes);
-
-		return agregatedWebResponse;
-	}	
-
+        return;
+	}
+	
 	/**
 	 * 
-	 * @param content
+	 * @param tags - from include template or content scan
+	 * @param charset - of page
 	 * @param hostURL
+	 * @param recursionLevel - of includes
 	 * @return
 	 */
-	private List<IncludeResolutionPlaceholder> parseIncludes(String content, String hostURL, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context)
+	private List<IncludeResolutionPlaceholder> parseIncludes(List<IncludeTag> tags, Charset charset, String hostURL, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, int recursionLevel)
 	{
-		List<IncludeResolutionPlaceholder> includes = null;
+		if (null == tags || tags.isEmpty())
+			return null;
 		
-		int scanIdx = 0;
-		while(scanIdx < content.length())
+		List<IncludeResolutionPlaceholder> includes = new ArrayList<IncludeResolutionPlaceholder>(tags.size());
+		for (IncludeTag tag : tags)
 		{
-			int startIdx = content.indexOf(START_MARKER, scanIdx);
-			if (-1 < startIdx)
+			logger.debug("include URL - " + tag.getUrl() + ", call-type - " + tag.getType());
+			
+			Map<String, List<String>> includeRequestHeaders = requestHeaders;
+			if (INCLUDE_TYPE_ASYNC.equals(tag.getType()))
 			{
-				int endIdx = content.indexOf(END_MARKER, startIdx);
-				if (-1 < endIdx)
-				{
-					endIdx = endIdx + END_MARKER.length();
-					String includeTagStr = content.substring(startIdx, endIdx);
-					String includeURL = getIncludeURL(includeTagStr);
-					String includeType = getIncludeType(includeTagStr);
-					
-					Map<String, List<String>> includeRequestHeaders = requestHeaders;
-					if (INCLUDE_TYPE_ASYNC.equals(includeType))
-					{
-						// create a copy and extend it
-						includeRequestHeaders = new HashMap<String, List<String>>();
-						includeRequestHeaders.putAll(requestHeaders);
-						includeRequestHeaders.put(FCHeaders.X_FRONTCACHE_ASYNC_INCLUDE, Arrays.asList(new String[]{"true"}));
-					}
-					
-					String includeClientType = getIncludeClientType(includeTagStr);
-					
-					if (null == includes)
-						includes = new ArrayList<IncludeResolutionPlaceholder>();
-					
-					// save placeholder
-					includes.add(new IncludeResolutionPlaceholder(startIdx, endIdx, hostURL + includeURL, includeType, includeClientType, includeRequestHeaders, client, context));
-					
-					scanIdx = endIdx;
-				} else {
-					// can't find closing 
-					scanIdx = content.length(); // scan complete
-				}
-			} else {
-				scanIdx = content.length(); // scan complete
+				// create a copy and extend it
+				includeRequestHeaders = new HashMap<String, List<String>>();
+				includeRequestHeaders.putAll(requestHeaders);
+				includeRequestHeaders.put(FCHeaders.X_FRONTCACHE_ASYNC_INCLUDE, Arrays.asList(new String[]{"true"}));
 			}
+			
+			// save placeholder
+			IncludeResolutionPlaceholder inc = new IncludeResolutionPlaceholder(tag.getStartIdx(), tag.getEndIdx(), hostURL + tag.getUrl(), tag.getType(), tag.getClientType(), includeRequestHeaders, client, context);
+			inc.hostURL = hostURL;
+			inc.charset = charset;
+			inc.recursionLevel = recursionLevel;
+			includes.add(inc);
 		}
 		
 		return includes;
@@ -223,23 +306,107 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 	
 	/**
 	 * 
-	 * @param content
-	 * @param includes
-	 * @return
+	 * @param f - sync include
+	 * @param context - with request deadline
+	 * @return false if include is not resolved before deadline (it's cancelled)
 	 */
-	private WebResponse replaceIncludePlaceholders(String content, List<IncludeResolutionPlaceholder> includes)
+	private boolean waitForInclude(Future<IncludeResolutionPlaceholder> f, RequestContext context)
 	{
-		int scanIdx = 0;
+        try {
+        	f.get(Math.max(1, context.getTimeLeft()), TimeUnit.MILLISECONDS);
+        	return true;
+        } catch (TimeoutException | InterruptedException | ExecutionException e) { 
+            f.cancel(true);
+            logger.debug("deadline (timeout " + timeout + ") reached for resolving includes. Some includes may not be resolved ");
+            return false;
+        }
+	}
+
+	/**
+	 * 
+	 * @param context
+	 * @param fallbackSource
+	 * @param includeURL
+	 * @return fallback for sync include which is not resolved (error / timeout)
+	 */
+	protected WebResponse getFallback(RequestContext context, String fallbackSource, String includeURL)
+	{
+		return FallbackResolverFactory.getInstance().getFallback(context.getDomainContext(), fallbackSource, includeURL);
+	}
+
+	/**
+	 * 
+	 * Page assembly - waits for includes in document order and replaces placeholders with content (all levels, single pass).
+	 * Streaming - content is written to output stream before waiting for include which is not resolved yet.
+	 *
+	 */
+	class IncludeAssembly {
+		final Charset charset; // of page (include contents and debug comments are encoded with it)
+		final RequestContext context; // with request deadline
+		final ByteSlices out = new ByteSlices(); // parts of page and includes - copied once
+		final OutputStream stream; // null - buffered
+		final Map<String, List<String>> headers; // merged include headers, null - not merged
+		boolean timeoutReached = false;
 		
-		// paste content from includes to output doc
-		WebResponse webResponse = new WebResponse("aggregation in " + this.getClass().getName());
+		IncludeAssembly(Charset charset, RequestContext context, OutputStream stream, Map<String, List<String>> headers) {
+			this.charset = charset;
+			this.context = context;
+			this.stream = stream;
+			this.headers = headers;
+		}
 		
-		StringBuffer outSb = new StringBuffer();
-		for (int i = 0; i < includes.size(); i++)
+		/**
+		 * origin calls for includes which are not resolved before deadline (e.g. nested includes of cancelled include) are aborted
+		 */
+		void complete()
 		{
-			IncludeResolutionPlaceholder inc = includes.get(i);
-
-	        if (null != inc.webResponse) {
+			if (timeoutReached || context.isDeadlineReached())
+			{
+				int aborted = context.abortInFlightRequests();
+				if (0 < aborted)
+					logger.debug("deadline is reached, " + aborted + " origin calls are aborted");
+			}
+			return;
+		}
+		
+		void append(byte[] content, List<IncludeResolutionPlaceholder> includes) throws IOException
+		{
+			int scanIdx = 0;
+			for (IncludeResolutionPlaceholder inc : includes)
+			{
+				out.add(content, scanIdx, inc.startIdx - scanIdx);
+				
+				if (null != inc.future)
+				{
+					if (null != stream && !inc.future.isDone())
+					{
+						// send what is ready while include is resolved
+						out.writeTo(stream);
+						out.clear();
+						stream.flush();
+					}
+					
+					if (!waitForInclude(inc.future, context))
+					{
+						timeoutReached = true;
+						inc.timedOut = true; // content / includes of include are not used
+					}
+				}
+				
+				append(inc);
+				scanIdx = inc.endIdx;
+			}
+			out.add(content, scanIdx, content.length - scanIdx); // data after the last include
+		}
+		
+		/**
+		 * 
+		 * @param inc - resolved or timed out include
+		 */
+		private void append(IncludeResolutionPlaceholder inc) throws IOException
+		{
+			WebResponse webResponse = (inc.timedOut) ? null : inc.webResponse;
+	        if (null != webResponse) {
 	        	logger.debug("include "  + inc.includeURL + " has content");
 	        	
 	        } else if (!inc.performInclude) {
@@ -251,33 +418,34 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 				if (!INCLUDE_TYPE_ASYNC.equals(inc.includeType))
 				{
 		        	logger.debug("include detais "  + inc.includeURL + " content is not resolved due to timeout (" + timeout + ")  getting defaults");
-		        	inc.webResponse = FallbackResolverFactory.getInstance().getFallback(inc.context.getDomainContext(), this.getClass().getName(), inc.includeURL);
+		        	webResponse = getFallback(inc.context, ConcurrentIncludeProcessor.this.getClass().getName(), inc.includeURL);
 				}
 	        }
-	        	
 			
-			outSb.append(content.substring(scanIdx, inc.startIdx));
-
 			if (INCLUDE_TYPE_SYNC.equals(inc.includeType))
 			{
 				if (FrontCacheEngine.debugComments)
-					outSb.append("<!-- start fc:include ").append(inc.includeURL).append(" -->");
+					out.add(("<!-- start fc:include " + inc.includeURL + " -->").getBytes(charset));
 				
-				if (null != inc.webResponse)
-					outSb.append(new String(inc.webResponse.getContent()));
+				if (!inc.timedOut && null != inc.includes)
+				{
+					append(inc.content, inc.includes); // nested includes
+				} else if (!inc.timedOut && null != inc.content) {
+					out.add(inc.content);
+				} else if (null != webResponse) {
+					byte[] includeContent = getIncludeContent(charset, webResponse);
+					if (null != includeContent)
+						out.add(includeContent);
+				}
 				
 				if (FrontCacheEngine.debugComments)
-					outSb.append("<!-- end fc:include ").append(inc.includeURL).append(" -->");
+					out.add(("<!-- end fc:include " + inc.includeURL + " -->").getBytes(charset));
 				
-				if (null != inc.webResponse)
-					mergeIncludeResponseHeaders(webResponse.getHeaders(), inc.webResponse.getHeaders());
+				if (null != headers && null != webResponse)
+					mergeIncludeResponseHeaders(headers, webResponse.getHeaders());
 			}
-
-			scanIdx = inc.endIdx;
+			return;
 		}
-		outSb.append(content.substring(scanIdx)); // data after the last include
-		webResponse.setContent(outSb.toString().getBytes());
-		return webResponse;
 	}
 	
 	/**
@@ -297,6 +465,13 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 		RequestContext context;
 		boolean performInclude = true;
 		String includeLevel = null;
+		String hostURL;
+		Charset charset; // of page
+		int recursionLevel;
+		Future<IncludeResolutionPlaceholder> future; // sync includes
+		byte[] content; // include content in page's charset
+		List<IncludeResolutionPlaceholder> includes; // nested includes (submitted when include is resolved)
+		boolean timedOut = false;
 		
 		public IncludeResolutionPlaceholder(int startIdx, int endIdx, String includeURL, String includeType, String includeClientType, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context) {
 			super();
@@ -331,14 +506,50 @@ public class ConcurrentIncludeProcessor extends IncludeProcessorBase implements
 					// when async call -> webResponse is null because we don't wait for response
 					// get fallback for SYNC includes only 
 					if (!INCLUDE_TYPE_ASYNC.equals(includeType))
-						this.webResponse = FallbackResolverFactory.getInstance().getFallback(this.context.getDomainContext(), this.getClass().getName(), includeURL);
+						this.webResponse = getFallback(this.context, this.getClass().getName(), includeURL);
 				}
 			}
+			
+			if (null != this.webResponse && INCLUDE_TYPE_SYNC.equals(includeType))
+				submitNestedIncludes();
 	    	
 	        return this;
 	    }
+	    
+	    /**
+	     * include content is converted to page's charset and scanned (or stored include template is used), 
+	     * nested includes are submitted right away - siblings of this include can be not resolved yet
+	     */
+	    private void submitNestedIncludes()
+	    {
+	    	if (recursionLevel >= MAX_RECURSION_LEVEL || !webResponse.isText())
+	    		return;
+	    	
+	    	List<IncludeTag> tags = null;
+	    	if (charset.equals(IncludeScanner.getCharset(webResponse, charset)))
+	    		tags = getIncludeTemplate(webResponse); // stored with include from cache
+	    	
+	    	if (null != tags && tags.isEmpty())
+	    		return; // include free
+	    	
+	    	byte[] includeContent = getIncludeContent(charset, webResponse);
+	    	if (null == includeContent)
+	    		return;
+	    	
+			if (null != tags && tags.get(tags.size() - 1).getEndIdx() > includeContent.length)
+				tags = null; // template doesn't match content
+			
+			if (null == tags && IncludeScanner.hasIncludes(includeContent, MAX_INCLUDE_LENGHT))
+				tags = IncludeScanner.scan(includeContent, charset);
+			
+	    	List<IncludeResolutionPlaceholder> nested = parseIncludes(tags, charset, hostURL, requestHeaders, client, context, recursionLevel + 1);
+	    	this.content = includeContent;
+	    	if (null != nested)
+	    	{
+	    		submitIncludes(nested, context, includeLevel);
+	    		this.includes = nested;
+	    	}
+	    }
 		
 	}	
 }
-
-
@@ -35,7 +35,9 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.frontcache.FCConfig;
 import org.frontcache.FrontCacheEngine;
+import org.frontcache.cache.CacheKeyNormalizer;
 import org.frontcache.cache.CacheManager;
+import org.frontcache.cache.CacheVariants;
 import org.frontcache.core.DomainContext;
 import org.frontcache.core.FCHeaders;
 import org.frontcache.core.WebResponse;
@@ -187,12 +189,21 @@ public class FrontCacheIOServlet extends HttpServlet {
 		if (null != domainContext)
 			domain = domainContext.getDomain();
 		
+		String mode = req.getParameter("mode");
+		
 		if ("*".equals(filter))
 			CacheManager.getInstance().removeFromCacheAll(domain);
+		else if (FrontcacheAction.INVALIDATE_MODE_PREFIX.equals(mode))
+			CacheManager.getInstance().removeFromCacheByPrefix(domain, CacheKeyNormalizer.getInstance().normalizePrefix(domain, filter));
 		else
-			CacheManager.getInstance().removeFromCache(domain, filter);
+		{
+			String key = CacheKeyNormalizer.getInstance().normalizeFilter(domain, filter); // URL or tag (variants have the same tags)
+			CacheManager.getInstance().removeFromCache(domain, key);
+			if (-1 < key.indexOf("://"))
+				CacheManager.getInstance().removeFromCacheByPrefix(domain, CacheVariants.getVariantPrefix(key)); // variants of URL
+		}
 			
-		logger.info("Invalidation for filter: " + filter);
+		logger.info("Invalidation for filter: " + filter + ((null != mode) ? ", mode: " + mode : ""));
 		return aResponse;
 	}
 
@@ -203,7 +214,8 @@ public class FrontCacheIOServlet extends HttpServlet {
 	 */
 	private ActionResponse getCacheStatus(HttpServletRequest req)
 	{
-		Map<String, String> state = CacheManager.getInstance().getCacheStatus();
+		Map<String, String> state = new HashMap<String, String>(CacheManager.getInstance().getCacheStatus());
+		CacheKeyNormalizer.getInstance().addStatus(state);
 		ActionResponse aResponse = new CacheStatusActionResponse(state);
 			
 		return aResponse;
@@ -249,7 +261,12 @@ public class FrontCacheIOServlet extends HttpServlet {
 		if (null == key)
 			return new GetFromCacheActionResponse(key);
 		
-		WebResponse webResponse = CacheManager.getInstance().getFromCache(key);
+		String domain = null;
+		DomainContext domainContext = FrontCacheEngine.getFrontCache().getDomainContexBySiteKey(req.getHeader(FCHeaders.X_FRONTCACHE_SITE_KEY));
+		if (null != domainContext)
+			domain = domainContext.getDomain();
+		
+		WebResponse webResponse = CacheManager.getInstance().getFromCache(CacheKeyNormalizer.getInstance().normalize(domain, key));
 		GetFromCacheActionResponse actionResponse = new GetFromCacheActionResponse(key, webResponse);
 		
 		return actionResponse;
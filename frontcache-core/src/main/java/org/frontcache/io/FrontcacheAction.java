@@ -24,6 +24,8 @@ public abstract class FrontcacheAction {
 	
 	public static final String INVALIDATE = "invalidate";
 	
+	public static final String INVALIDATE_MODE_PREFIX = "prefix"; // value for 'mode' param of INVALIDATE - invalidate everything under URL prefix 
+	
 	public static final String DUMP_KEYS = "dump-keys";
 	
 	public static final String GET_FALLBACK_CONFIGS = "get-fallback-configs";
@@ -48,7 +50,7 @@ public abstract class FrontcacheAction {
 		actionsDescriptionMap.put(FrontcacheAction.GET_CACHE_STATE, "get cache state: cache processor, amount cached items");
 		actionsDescriptionMap.put(FrontcacheAction.GET_FALLBACK_CONFIGS, "get fallback configs from ./conf/fallbacks.conf");
 		actionsDescriptionMap.put(FrontcacheAction.RELOAD_FALLBACKS, "reload fallback configs from ./conf/fallbacks.conf");
-		actionsDescriptionMap.put(FrontcacheAction.INVALIDATE, "Invalidate chache, accept 'filter' param with regexp for invalidation");
+		actionsDescriptionMap.put(FrontcacheAction.INVALIDATE, "Invalidate chache, accept 'filter' param with regexp for invalidation and optional 'mode' param ('prefix' - invalidate everything under URL prefix e.g. /en/catalog/)");
 		actionsDescriptionMap.put(FrontcacheAction.DUMP_KEYS, "dump keys to a file at the edge - keys are saved to ./warmer dir");
 		actionsDescriptionMap.put(FrontcacheAction.GET_CACHED_KEYS, "get cached keys");
 		actionsDescriptionMap.put(FrontcacheAction.GET_FROM_CACHE, "get content from cache, accept 'key' parameter");
@@ -0,0 +1,101 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.RequestContext;
+import org.frontcache.core.WebResponse;
+import org.frontcache.include.impl.ConcurrentIncludeProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrontCacheEngineTests {
+
+	private static final String PAGE = "A<fc:include url=\"/a\" />B";
+
+	private ConcurrentIncludeProcessor streaming;
+
+	private ConcurrentIncludeProcessor buffered;
+
+	@Before
+	public void setUp() {
+		Properties properties = new Properties();
+		buffered = new ConcurrentIncludeProcessor();
+		buffered.init(properties);
+
+		properties.setProperty("front-cache.include-processor.impl.concurrent.streaming", "true");
+		streaming = new ConcurrentIncludeProcessor();
+		streaming.init(properties);
+	}
+
+	@After
+	public void cleanUp() {
+		streaming.destroy();
+		buffered.destroy();
+	}
+
+	private static RequestContext createContext(String method) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn(method);
+
+		RequestContext context = new RequestContext();
+		context.setRequest(request);
+		return context;
+	}
+
+	private static WebResponse page(String content) {
+		WebResponse webResponse = new WebResponse("http://localhost/", content.getBytes());
+		webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html");
+		return webResponse;
+	}
+
+	@Test
+	public void streamingTest() throws Exception {
+		assertTrue(FrontCacheEngine.isStreamed(page(PAGE), createContext("GET"), streaming));
+
+		// nothing to stream
+		assertFalse(FrontCacheEngine.isStreamed(page("AB"), createContext("GET"), streaming));
+		assertFalse(FrontCacheEngine.isStreamed(page(PAGE), createContext("GET"), buffered));
+	}
+
+	@Test
+	public void bufferedFallbackTest() throws Exception {
+		// HEAD - headers only
+		assertFalse(FrontCacheEngine.isStreamed(page(PAGE), createContext("HEAD"), streaming));
+
+		// include trace is sent in headers - headers are sent when includes are resolved
+		RequestContext context = createContext("GET");
+		context.setLogToHTTPHeaders();
+		assertFalse(FrontCacheEngine.isStreamed(page(PAGE), context, streaming));
+
+		// request from frontcache - includes are resolved by calling frontcache
+		context = createContext("GET");
+		context.setRequestFromFrontcache();
+		assertFalse(FrontCacheEngine.isStreamed(page(PAGE), context, streaming));
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class CacheKeyNormalizerTests {
+
+	@Test
+	public void normalizeTest() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-key.sort-params", "true");
+		properties.setProperty("front-cache.cache-key.drop-params", "utm_*,gclid");
+		properties.setProperty("front-cache.domain.example_com.cache-key.lowercase-path", "true");
+		CacheKeyNormalizer normalizer = new CacheKeyNormalizer(properties);
+		
+		String key = "http://www.coinshome.net/En/coins.htm?a=1&b=2";
+		assertEquals(key, normalizer.normalize("coinshome.net", key));
+		assertEquals(key, normalizer.normalize("coinshome.net", "http://WWW.coinshome.net/En/coins.htm?b=2&utm_source=mail&a=1"));
+		assertEquals(key, normalizer.normalize("coinshome.net", "http://www.coinshome.net/En/coins.htm?gclid=123&b=2&a=1"));
+		assertEquals("http://www.coinshome.net/En/coins.htm", normalizer.normalize("coinshome.net", "http://www.coinshome.net/En/coins.htm?utm_medium=cpc"));
+		
+		// domain override
+		assertEquals("http://www.example.com/en/coins.htm?a=1&b=2", normalizer.normalize("example.com", "http://www.example.com/En/Coins.htm?b=2&a=1"));
+		assertEquals("/en/catalog/", normalizer.normalizePrefix("example.com", "/En/Catalog/"));
+		
+		// tags are not changed
+		assertEquals("Coins", normalizer.normalizeFilter("example.com", "Coins"));
+		
+		// canonical raw key is counted as well
+		assertEquals(Integer.valueOf(3), normalizer.getCollapseStats().get(key));
+		assertEquals(Integer.valueOf(1), normalizer.getCollapseStats().get("http://www.coinshome.net/En/coins.htm"));
+		
+		Map<String, String> status = new HashMap<String, String>();
+		normalizer.addStatus(status);
+		assertEquals("1", status.get("cache-key.collapsed-keys"));
+		return;
+	}
+	
+	@Test
+	public void boundedCollapseStatsTest() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-key.sort-params", "true");
+		properties.setProperty("front-cache.cache-key.drop-params", "utm_*");
+		CacheKeyNormalizer normalizer = new CacheKeyNormalizer(properties);
+		
+		String hot = "http://www.coinshome.net/en/welcome.htm?a=1&b=2";
+		normalizer.normalize(null, hot);
+		normalizer.normalize(null, "http://www.coinshome.net/en/welcome.htm?b=2&a=1");
+		
+		// up to 1000 recently used keys are tracked
+		for (int i = 0; i < 1500; i++)
+		{
+			normalizer.normalize(null, "http://www.coinshome.net/en/coin-" + i + ".htm");
+			if (0 == i % 100)
+				normalizer.normalize(null, hot); // recently used - is kept
+		}
+		
+		Map<String, Integer> stats = normalizer.getCollapseStats();
+		assertEquals(1000, stats.size());
+		assertEquals(Integer.valueOf(2), stats.get(hot));
+		assertNull(stats.get("http://www.coinshome.net/en/coin-0.htm"));
+		assertEquals(Integer.valueOf(1), stats.get("http://www.coinshome.net/en/coin-1499.htm"));
+		
+		// distinct raw keys are counted up to 100
+		for (int i = 0; i < 150; i++)
+			normalizer.normalize(null, "http://www.coinshome.net/en/catalog.htm?utm_source=" + i);
+		
+		assertEquals(Integer.valueOf(100), normalizer.getCollapseStats().get("http://www.coinshome.net/en/catalog.htm"));
+		return;
+	}
+	
+}
@@ -0,0 +1,388 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.client.HttpClient;
+import org.frontcache.cache.impl.InMemoryCacheProcessor;
+import org.frontcache.core.DomainContext;
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.FrontCacheException;
+import org.frontcache.core.RequestContext;
+import org.frontcache.core.WebResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheProcessorBaseTests {
+
+	private static final String DOMAIN = "localhost";
+
+	private static final String URL = "http://localhost/en/welcome.htm";
+
+	private TestCacheProcessor processor;
+
+	private ExecutorService pool = Executors.newFixedThreadPool(8);
+
+	@Before
+	public void setUp() {
+		processor = createProcessor(new Properties());
+	}
+
+	private static TestCacheProcessor createProcessor(Properties properties) {
+		properties.setProperty("front-cache.cache-processor.miss-coalescing-timeout", "1000");
+		properties.setProperty("front-cache.cache-processor.vary-headers", "X-Device");
+		properties.setProperty(CacheProcessorBase.STALE_IF_ERROR_KEY, "1h");
+		TestCacheProcessor processor = new TestCacheProcessor();
+		processor.init(properties);
+		return processor;
+	}
+
+	@After
+	public void cleanUp() {
+		pool.shutdownNow();
+		processor.destroy();
+	}
+
+	private static RequestContext createContext(String url) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getMethod()).thenReturn("GET");
+
+		RequestContext context = new RequestContext();
+		context.setRequest(request);
+		context.setCurrentRequestURL(url);
+		context.setClientType(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER);
+		context.setDomainContext(new DomainContext(DOMAIN, "", DOMAIN, "80", "443"));
+		return context;
+	}
+
+	private Future<WebResponse> request(String device) {
+		return request(device, createContext(URL));
+	}
+
+	private Future<WebResponse> request(final String device, final RequestContext context) {
+		return pool.submit(new Callable<WebResponse>() {
+			@Override
+			public WebResponse call() throws Exception {
+				Map<String, List<String>> requestHeaders = new HashMap<String, List<String>>();
+				requestHeaders.put("X-Device", Arrays.asList(device));
+				return processor.processRequest(URL, requestHeaders, null, context);
+			}
+		});
+	}
+
+	private static String content(Future<WebResponse> response) throws Exception {
+		return new String(response.get(5, TimeUnit.SECONDS).getContent());
+	}
+
+	private static void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (counter.get() < value && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		assertEquals(value, counter.get());
+	}
+
+	@Test
+	public void coalescedMissTest() throws Exception {
+		CountDownLatch origin = new CountDownLatch(1);
+		processor.blockFirstCall = origin;
+
+		Future<WebResponse> leader = request("mobile");
+		waitFor(processor.originCalls, 1);
+
+		List<Future<WebResponse>> waiters = new ArrayList<Future<WebResponse>>();
+		for (int i = 0; i < 4; i++)
+			waiters.add(request("mobile"));
+
+		Thread.sleep(200); // waiters are blocked on in-flight miss
+		origin.countDown();
+
+		assertEquals("data-1", content(leader));
+		for (Future<WebResponse> waiter : waiters)
+			assertEquals("data-1", content(waiter));
+
+		assertEquals(1, processor.originCalls.get());
+		Map<String, String> status = processor.getCacheStatus();
+		assertEquals("4", status.get("miss-coalescing.coalesced"));
+		assertEquals("0", status.get("miss-coalescing.in-flight"));
+	}
+
+	@Test
+	public void uncacheableMissTest() throws Exception {
+		CountDownLatch origin = new CountDownLatch(1);
+		processor.blockFirstCall = origin;
+		processor.maxAge = null; // dynamic - is not shared
+
+		Future<WebResponse> leader = request("mobile");
+		waitFor(processor.originCalls, 1);
+		List<Future<WebResponse>> waiters = new ArrayList<Future<WebResponse>>();
+		for (int i = 0; i < 3; i++)
+			waiters.add(request("mobile"));
+
+		Thread.sleep(200);
+		origin.countDown();
+
+		assertEquals("data-1", content(leader));
+		for (Future<WebResponse> waiter : waiters)
+			assertTrue(content(waiter).startsWith("data-"));
+
+		// waiters call origin by themselves
+		assertEquals(4, processor.originCalls.get());
+		assertEquals("0", processor.getCacheStatus().get("miss-coalescing.coalesced"));
+	}
+
+	@Test
+	public void coalescingTimeoutTest() throws Exception {
+		CountDownLatch origin = new CountDownLatch(1);
+		processor.blockFirstCall = origin;
+
+		Future<WebResponse> leader = request("mobile");
+		waitFor(processor.originCalls, 1);
+
+		// miss-coalescing-timeout is 1 sec
+		long start = System.currentTimeMillis();
+		Future<WebResponse> waiter = request("mobile");
+		assertEquals("data-2", content(waiter));
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		assertEquals("1", processor.getCacheStatus().get("miss-coalescing.timeouts"));
+
+		origin.countDown();
+		assertEquals("data-1", content(leader));
+		assertEquals(2, processor.originCalls.get());
+	}
+
+	@Test
+	public void variantsAreNotSharedTest() throws Exception {
+		CountDownLatch origin = new CountDownLatch(1);
+		processor.blockFirstCall = origin;
+
+		Future<WebResponse> mobile = request("mobile");
+		waitFor(processor.originCalls, 1);
+
+		// other variant key - is not blocked by in-flight miss
+		assertEquals("data-2", content(request("desktop")));
+
+		origin.countDown();
+		assertEquals("data-1", content(mobile));
+		assertEquals(2, processor.originCalls.get());
+		assertEquals("0", processor.getCacheStatus().get("miss-coalescing.coalesced"));
+
+		// both variants are cached
+		assertEquals("data-1", content(request("mobile")));
+		assertEquals("data-2", content(request("desktop")));
+		assertEquals(2, processor.originCalls.get());
+	}
+
+	/**
+	 * puts cached copy back with expire time in the past
+	 *
+	 * @return cache key
+	 */
+	private String expire(long expiredAgoMillis) {
+		List<String> keys = processor.getCachedKeys();
+		assertEquals(1, keys.size());
+
+		String key = keys.get(0);
+		WebResponse expired = processor.getFromCacheImpl(key).copy();
+		Map<String, Long> expireTimeMap = new HashMap<String, Long>();
+		expireTimeMap.put(FCHeaders.REQUEST_CLIENT_TYPE_BOT, System.currentTimeMillis() - expiredAgoMillis);
+		expireTimeMap.put(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER, System.currentTimeMillis() - expiredAgoMillis);
+		expired.setExpireTimeMap(expireTimeMap);
+		processor.putToCache(DOMAIN, key, expired);
+		return key;
+	}
+
+	@Test
+	public void staleOnHystrixFallbackTest() throws Exception {
+		assertEquals("data-1", content(request("mobile")));
+		String key = expire(60000);
+
+		processor.fallback = true;
+		RequestContext context = createContext(URL);
+		WebResponse response = request("mobile", context).get(5, TimeUnit.SECONDS);
+		assertEquals("data-1", new String(response.getContent()));
+		assertEquals("true", response.getHeader(FCHeaders.X_FRONTCACHE_STALE_IF_ERROR));
+		assertTrue(context.isHystrixFallback());
+		assertEquals(2, processor.originCalls.get());
+		assertEquals("1", processor.getCacheStatus().get("stale-if-error.served"));
+
+		// expired copy is kept in cache (fallback is not cached)
+		assertEquals(Arrays.asList(key), processor.getCachedKeys());
+		assertEquals("data-1", new String(processor.getFromCacheImpl(key).getContent()));
+		assertNull(processor.getFromCacheImpl(key).getHeader(FCHeaders.X_FRONTCACHE_STALE_IF_ERROR));
+
+		// origin is back - expired copy is replaced
+		processor.fallback = false;
+		response = request("mobile").get(5, TimeUnit.SECONDS);
+		assertEquals("data-3", new String(response.getContent()));
+		assertNull(response.getHeader(FCHeaders.X_FRONTCACHE_STALE_IF_ERROR));
+		assertEquals("data-3", content(request("mobile")));
+		assertEquals(3, processor.originCalls.get());
+		assertEquals("1", processor.getCacheStatus().get("stale-if-error.served"));
+	}
+
+	@Test
+	public void staleOnOriginExceptionTest() throws Exception {
+		assertEquals("data-1", content(request("mobile")));
+		String key = expire(60000);
+
+		processor.exception = true;
+		for (int i = 0; i < 2; i++)
+		{
+			RequestContext context = createContext(URL);
+			WebResponse response = request("mobile", context).get(5, TimeUnit.SECONDS);
+			assertEquals("data-1", new String(response.getContent()));
+			assertEquals("true", response.getHeader(FCHeaders.X_FRONTCACHE_STALE_IF_ERROR));
+			assertTrue(context.isHystrixFallback()); // is not cached by upstream
+		}
+
+		assertEquals(3, processor.originCalls.get());
+		assertEquals("2", processor.getCacheStatus().get("stale-if-error.served"));
+		assertEquals(Arrays.asList(key), processor.getCachedKeys());
+	}
+
+	@Test
+	public void staleGraceIsOverTest() throws Exception {
+		assertEquals("data-1", content(request("mobile")));
+		expire(2 * 3600 * 1000); // stale-if-error is 1h
+
+		processor.fallback = true;
+		WebResponse response = request("mobile").get(5, TimeUnit.SECONDS);
+		assertEquals("fallback", new String(response.getContent()));
+		assertNull(response.getHeader(FCHeaders.X_FRONTCACHE_STALE_IF_ERROR));
+		assertEquals("0", processor.getCacheStatus().get("stale-if-error.served"));
+		assertTrue(processor.getCachedKeys().isEmpty());
+
+		processor.fallback = false;
+		processor.exception = true;
+		try {
+			request("mobile").get(5, TimeUnit.SECONDS);
+			fail("origin exception is expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof FrontCacheException);
+		}
+	}
+
+	private void waitForStatus(String key, String value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!value.equals(processor.getCacheStatus().get(key)) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		assertEquals(key, value, processor.getCacheStatus().get(key));
+	}
+
+	@Test
+	public void refreshAheadTest() throws Exception {
+		processor.destroy();
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.refresh-ahead", "true");
+		properties.setProperty("front-cache.cache-processor.refresh-ahead.min-hit-rate", "2");
+		properties.setProperty("front-cache.cache-processor.refresh-ahead.ttl-fraction", "1");
+		processor = createProcessor(properties);
+
+		assertEquals("data-1", content(request("mobile")));
+		String key = processor.getCachedKeys().get(0);
+		assertEquals("data-1", content(request("mobile"))); // 1 hit per minute
+
+		// origin response is not cacheable - cached copy is kept
+		processor.maxAge = null;
+		assertEquals("data-1", content(request("mobile"))); // 2 hits - refresh
+		waitForStatus("soft-refresh.completed", "1");
+		assertEquals(2, processor.originCalls.get());
+		assertEquals("data-1", new String(processor.getFromCacheImpl(key).getContent()));
+
+		// cached copy is replaced
+		processor.maxAge = "10m";
+		assertEquals("data-1", content(request("mobile")));
+		waitForStatus("soft-refresh.completed", "2");
+		assertEquals(3, processor.originCalls.get());
+		assertEquals("data-3", new String(processor.getFromCacheImpl(key).getContent()));
+		assertEquals("2", processor.getCacheStatus().get("refresh-ahead.triggered"));
+	}
+
+	/**
+	 *
+	 * Heap cache with stub origin (no hystrix / http calls)
+	 *
+	 */
+	static class TestCacheProcessor extends InMemoryCacheProcessor {
+
+		final AtomicInteger originCalls = new AtomicInteger();
+
+		volatile CountDownLatch blockFirstCall = null; // first origin call waits for latch
+
+		volatile String maxAge = "10m"; // of origin responses, null - not cacheable
+
+		volatile boolean fallback = false; // origin failed - hystrix fallback is returned
+
+		volatile boolean exception = false; // origin failed - exception is thrown
+
+		@Override
+		protected WebResponse callOrigin(String originUrlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, WebResponse expiredWebResponse) throws FrontCacheException {
+			int call = originCalls.incrementAndGet();
+			if (1 == call && null != blockFirstCall)
+			{
+				try {
+					blockFirstCall.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new FrontCacheException(e);
+				}
+			}
+
+			if (exception)
+				throw new FrontCacheException("origin is down");
+
+			if (fallback)
+			{
+				context.setHystrixFallback();
+				return new WebResponse(originUrlStr, "fallback".getBytes());
+			}
+
+			WebResponse webResponse = new WebResponse(originUrlStr, ("data-" + call).getBytes(), maxAge, null);
+			webResponse.setStatusCode(200);
+			webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html");
+			if (null != maxAge)
+				webResponse.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, maxAge);
+			return webResponse;
+		}
+	}
+
+}
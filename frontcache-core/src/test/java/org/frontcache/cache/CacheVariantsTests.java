@@ -0,0 +1,124 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.frontcache.core.WebResponse;
+import org.junit.Test;
+
+public class CacheVariantsTests {
+
+	private static final String URL = "http://www.coinshome.net/en/welcome.htm";
+
+	@Test
+	public void keyTest() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.vary-headers", "X-Device, Accept-Language, Accept-Encoding");
+		properties.setProperty("front-cache.domains", "coinshome.net,example.com");
+		properties.setProperty("front-cache.domain.example_com.vary-headers", "X-Device");
+		CacheVariants variants = new CacheVariants();
+		variants.init(properties);
+
+		// lowercased, sorted, accept-encoding is ignored
+		List<String> varyHeaders = variants.getVaryHeaders("coinshome.net", URL);
+		assertEquals(Arrays.asList("accept-language", "x-device"), varyHeaders);
+		assertEquals(Arrays.asList("x-device"), variants.getVaryHeaders("example.com", URL));
+
+		Map<String, List<String>> requestHeaders = new HashMap<String, List<String>>();
+		requestHeaders.put("ACCEPT-LANGUAGE", Arrays.asList("De, en;q=0.8"));
+		requestHeaders.put("x-device", Arrays.asList("Mobile"));
+		assertEquals(URL + "#vary:accept-language=de,en;q=0.8|x-device=mobile", variants.getKey(URL, varyHeaders, requestHeaders));
+
+		// missing header -> empty value
+		requestHeaders.remove("x-device");
+		assertEquals(URL + "#vary:accept-language=de,en;q=0.8|x-device=", variants.getKey(URL, varyHeaders, requestHeaders));
+
+		// no vary headers -> URL
+		assertEquals(URL, variants.getKey(URL, Collections.<String>emptyList(), requestHeaders));
+
+		assertTrue(variants.getKey(URL, varyHeaders, requestHeaders).startsWith(CacheVariants.getVariantPrefix(URL)));
+		assertEquals(URL + CacheVariants.VARIANT_SEPARATOR, CacheVariants.getVariantPrefix(URL));
+		return;
+	}
+
+	@Test
+	public void responseVaryHeadersTest() throws Exception {
+		CacheVariants variants = new CacheVariants();
+		variants.init(new Properties());
+
+		WebResponse response = new WebResponse(URL, "data".getBytes());
+		assertEquals(Collections.emptyList(), variants.getResponseVaryHeaders(response));
+
+		response.addHeader("Vary", "Accept-Encoding, X-Device");
+		response.addHeader("vary", "Accept-Language");
+		List<String> headers = variants.getResponseVaryHeaders(response);
+		assertEquals(Arrays.asList("accept-language", "x-device"), headers);
+
+		// learned headers are added to configured
+		variants.learn(URL, headers);
+		assertEquals(headers, variants.getVaryHeaders("coinshome.net", URL));
+		variants.learn(URL, Collections.<String>emptyList());
+		assertEquals(Collections.emptyList(), variants.getVaryHeaders("coinshome.net", URL));
+
+		WebResponse varyAll = new WebResponse(URL, "data".getBytes());
+		varyAll.addHeader("Vary", "*");
+		assertNull(variants.getResponseVaryHeaders(varyAll));
+
+		WebResponse varyCookie = new WebResponse(URL, "data".getBytes());
+		varyCookie.addHeader("Vary", "Accept-Language, Cookie");
+		assertNull(variants.getResponseVaryHeaders(varyCookie));
+
+		Map<String, String> status = new HashMap<String, String>();
+		variants.addStatus(status);
+		assertEquals("2", status.get("vary.uncacheable"));
+		return;
+	}
+
+	@Test
+	public void learnLimitTest() throws Exception {
+		CacheVariants variants = new CacheVariants();
+		variants.init(new Properties());
+
+		List<String> headers = Arrays.asList("x-device");
+		for (int i = 0; i < 100000; i++)
+			variants.learn(URL + "?id=" + i, headers);
+
+		// over the limit - not learned
+		variants.learn(URL, headers);
+		assertEquals(Collections.emptyList(), variants.getVaryHeaders("coinshome.net", URL));
+
+		// already learned URLs are updated
+		variants.learn(URL + "?id=1", Arrays.asList("accept-language"));
+		assertEquals(Arrays.asList("accept-language"), variants.getVaryHeaders("coinshome.net", URL + "?id=1"));
+
+		Map<String, String> status = new HashMap<String, String>();
+		variants.addStatus(status);
+		assertEquals("100000", status.get("vary.learned-urls"));
+		return;
+	}
+
+}
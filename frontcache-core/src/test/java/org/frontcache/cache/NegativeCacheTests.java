@@ -0,0 +1,132 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+import org.junit.Test;
+
+public class NegativeCacheTests {
+
+	private static final String URL = "http://www.coinshome.net/en/dead.htm";
+
+	private static NegativeCache getNegativeCache() {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.negative-cache.ttl-404", "1m");
+		properties.setProperty("front-cache.cache-processor.negative-cache.ttl-redirect", "5m");
+		properties.setProperty("front-cache.domains", "coinshome.net,example.com");
+		properties.setProperty("front-cache.domain.example_com.negative-cache.ttl-404", "0");
+		properties.setProperty("front-cache.domain.example_com.negative-cache.ttl-redirect", "30s");
+		NegativeCache negativeCache = new NegativeCache();
+		negativeCache.init(properties);
+		return negativeCache;
+	}
+
+	private static WebResponse getResponse(int statusCode) {
+		WebResponse response = new WebResponse(URL, "not found".getBytes());
+		response.setStatusCode(statusCode);
+		return response;
+	}
+
+	private static long getTtl(WebResponse response, long start) {
+		long expireTime = response.getExpireTimeMap().get(FCHeaders.REQUEST_CLIENT_TYPE_BOT);
+		assertEquals(expireTime, (long) response.getExpireTimeMap().get(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+		return expireTime - start;
+	}
+
+	@Test
+	public void ttlTest() throws Exception {
+		NegativeCache negativeCache = getNegativeCache();
+
+		long start = System.currentTimeMillis();
+		WebResponse response = getResponse(404);
+		assertTrue(negativeCache.prepare("coinshome.net", response));
+		long ttl = getTtl(response, start);
+		assertTrue(60 * 1000 <= ttl && ttl < 61 * 1000);
+		assertEquals(9, response.getContentLenth()); // body is kept by default
+
+		// domain override - disabled for 404
+		assertFalse(negativeCache.prepare("example.com", getResponse(404)));
+
+		// domain override - redirect TTL
+		start = System.currentTimeMillis();
+		response = getResponse(301);
+		response.addHeader("Location", "http://www.example.com/en/new.htm");
+		assertTrue(negativeCache.prepare("example.com", response));
+		ttl = getTtl(response, start);
+		assertTrue(30 * 1000 <= ttl && ttl < 31 * 1000);
+
+		// other status codes are not prepared
+		assertFalse(negativeCache.prepare("coinshome.net", getResponse(500)));
+		assertFalse(negativeCache.prepare("coinshome.net", getResponse(200)));
+		return;
+	}
+
+	@Test
+	public void originMaxAgeTest() throws Exception {
+		NegativeCache negativeCache = getNegativeCache();
+
+		WebResponse response = getResponse(404);
+		response.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, "0");
+		assertFalse(negativeCache.prepare("coinshome.net", response));
+		assertEquals(9, response.getContentLenth());
+		return;
+	}
+
+	@Test
+	public void redirectTest() throws Exception {
+		NegativeCache negativeCache = getNegativeCache();
+
+		// no Location - not cached
+		WebResponse response = getResponse(302);
+		assertFalse(negativeCache.prepare("coinshome.net", response));
+		assertEquals(9, response.getContentLenth());
+
+		response.addHeader("Location", "http://www.coinshome.net/en/new.htm");
+		assertTrue(negativeCache.prepare("coinshome.net", response));
+		assertEquals(0, response.getContentLenth()); // stored without body
+		return;
+	}
+
+	@Test
+	public void keep404BodyTest() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.negative-cache.ttl-404", "1m");
+		properties.setProperty("front-cache.cache-processor.negative-cache.404-body", "false");
+		properties.setProperty("front-cache.domains", "coinshome.net,example.com");
+		properties.setProperty("front-cache.domain.example_com.negative-cache.404-body", "true");
+		NegativeCache negativeCache = new NegativeCache();
+		negativeCache.init(properties);
+
+		WebResponse response = getResponse(404);
+		assertTrue(negativeCache.prepare("coinshome.net", response));
+		assertEquals(0, response.getContentLenth());
+
+		// domain override
+		response = getResponse(404);
+		assertTrue(negativeCache.prepare("example.com", response));
+		assertEquals(9, response.getContentLenth());
+		return;
+	}
+
+}
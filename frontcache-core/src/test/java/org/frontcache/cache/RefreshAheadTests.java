@@ -0,0 +1,137 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+import org.junit.Test;
+
+public class RefreshAheadTests {
+
+	private static final long WINDOW = 60000;
+
+	private static final long T0 = 1500000000000L;
+
+	private static final WebResponse RESPONSE = response("10m");
+
+	private static WebResponse response(String maxAge) {
+		WebResponse webResponse = new WebResponse("http://localhost/en/welcome.htm", "data".getBytes(), maxAge, null);
+		if (null != maxAge)
+			webResponse.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, maxAge);
+		return webResponse;
+	}
+
+	private static RefreshAhead create(String minHitRate, String ttlFraction, String maxKeys) {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.refresh-ahead", "true");
+		properties.setProperty("front-cache.cache-processor.refresh-ahead.min-hit-rate", minHitRate);
+		properties.setProperty("front-cache.cache-processor.refresh-ahead.ttl-fraction", ttlFraction);
+		properties.setProperty("front-cache.cache-processor.refresh-ahead.max-keys", maxKeys);
+
+		RefreshAhead refreshAhead = new RefreshAhead();
+		refreshAhead.init(properties);
+		return refreshAhead;
+	}
+
+	private static Map<String, String> getStatus(RefreshAhead refreshAhead) {
+		Map<String, String> status = new HashMap<String, String>();
+		refreshAhead.addStatus(status);
+		return status;
+	}
+
+	@Test
+	public void hitRateWindowTest() throws Exception {
+		RefreshAhead refreshAhead = create("3", "1", "100");
+		long expire = T0 + 5 * WINDOW;
+
+		assertFalse(refreshAhead.onHit("a", RESPONSE, expire, T0));
+		assertFalse(refreshAhead.onHit("a", RESPONSE, expire, T0 + 1000));
+		assertTrue(refreshAhead.onHit("a", RESPONSE, expire, T0 + 2000));
+
+		// hits of previous window are counted (weighted by overlap)
+		assertFalse(refreshAhead.onHit("b", RESPONSE, expire, T0));
+		assertFalse(refreshAhead.onHit("b", RESPONSE, expire, T0));
+		assertTrue(refreshAhead.onHit("b", RESPONSE, expire, T0 + WINDOW)); // 1 + 2 * 100%
+		assertFalse(refreshAhead.onHit("b", RESPONSE, expire, T0 + WINDOW + WINDOW * 3 / 4)); // 2 + 2 * 25%
+
+		// window before previous is not counted
+		assertFalse(refreshAhead.onHit("c", RESPONSE, expire, T0));
+		assertFalse(refreshAhead.onHit("c", RESPONSE, expire, T0));
+		assertFalse(refreshAhead.onHit("c", RESPONSE, expire, T0 + 2 * WINDOW + 1));
+
+		assertEquals("2", getStatus(refreshAhead).get("refresh-ahead.triggered"));
+		assertEquals("3", getStatus(refreshAhead).get("refresh-ahead.tracked-keys"));
+	}
+
+	@Test
+	public void ttlFractionTest() throws Exception {
+		RefreshAhead refreshAhead = create("1", "0.1", "100"); // last minute of 10m
+
+		assertFalse(refreshAhead.onHit("a", RESPONSE, T0 + 5 * WINDOW, T0));
+		assertFalse(refreshAhead.onHit("a", RESPONSE, T0 + WINDOW + 1, T0));
+		assertTrue(refreshAhead.onHit("a", RESPONSE, T0 + WINDOW, T0));
+		assertTrue(refreshAhead.onHit("a", RESPONSE, T0 + 1000, T0));
+
+		// no max age / cached forever / dynamic
+		assertFalse(refreshAhead.onHit("b", response(null), T0 + 1000, T0));
+		assertFalse(refreshAhead.onHit("c", RESPONSE, CacheProcessor.CACHE_FOREVER, T0));
+		assertFalse(refreshAhead.onHit("d", RESPONSE, CacheProcessor.NO_CACHE, T0));
+
+		// bot:1m - client type prefix is skipped
+		WebResponse botOnly = response("bot:1m");
+		assertTrue(refreshAhead.onHit("e", botOnly, T0 + 5000, T0));
+		assertFalse(refreshAhead.onHit("e", botOnly, T0 + 30000, T0));
+
+		assertEquals("3", getStatus(refreshAhead).get("refresh-ahead.triggered"));
+
+		// disabled by default
+		RefreshAhead disabled = new RefreshAhead();
+		disabled.init(new Properties());
+		assertFalse(disabled.isEnabled());
+		assertFalse(disabled.onHit("a", RESPONSE, T0 + 1000, T0));
+	}
+
+	@Test
+	public void maxKeysTest() throws Exception {
+		RefreshAhead refreshAhead = create("1", "1", "2"); // every hit of tracked key triggers refresh
+		long expire = T0 + 5 * WINDOW;
+
+		assertTrue(refreshAhead.onHit("a", RESPONSE, expire, T0));
+		assertTrue(refreshAhead.onHit("b", RESPONSE, expire, T0 + WINDOW));
+
+		// "a" is idle - removed by scan
+		assertTrue(refreshAhead.onHit("c", RESPONSE, expire, T0 + 3 * WINDOW));
+		assertEquals("2", getStatus(refreshAhead).get("refresh-ahead.tracked-keys"));
+
+		// "b" is idle, but counters were scanned 5 sec ago - "d" is not tracked
+		assertFalse(refreshAhead.onHit("d", RESPONSE, expire, T0 + 3 * WINDOW + 5000));
+
+		// next scan removes "b"
+		assertTrue(refreshAhead.onHit("d", RESPONSE, expire, T0 + 3 * WINDOW + 11000));
+		assertFalse(refreshAhead.onHit("e", RESPONSE, expire, T0 + 3 * WINDOW + 11000));
+		assertEquals("2", getStatus(refreshAhead).get("refresh-ahead.tracked-keys"));
+	}
+
+}
@@ -0,0 +1,230 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RefreshSchedulerTests {
+
+	private RefreshScheduler scheduler = null;
+
+	private final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+
+	@After
+	public void tearDown() throws Exception {
+		if (null != scheduler)
+			scheduler.destroy();
+	}
+
+	private void init(String... keyValues) {
+		Properties properties = new Properties();
+		for (int i = 0; i < keyValues.length; i += 2)
+			properties.setProperty(keyValues[i], keyValues[i + 1]);
+
+		scheduler = new RefreshScheduler();
+		scheduler.init(properties);
+	}
+
+	private Map<String, String> getStatus() {
+		Map<String, String> status = new HashMap<String, String>();
+		scheduler.addStatus(status);
+		return status;
+	}
+
+	private void waitForStatus(String key, String value) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!value.equals(getStatus().get(key)) && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		assertEquals(key, value, getStatus().get(key));
+	}
+
+	/**
+	 * records key when done
+	 */
+	private Runnable refresh(final String key, final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (null != latch)
+						latch.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				done.add(key);
+			}
+		};
+	}
+
+	@Test
+	public void oneRefreshPerKeyTest() throws Exception {
+		init("front-cache.cache-processor.soft-refresh.threads", "1");
+		CountDownLatch latch = new CountDownLatch(1);
+		long expired = System.currentTimeMillis();
+
+		assertTrue(scheduler.schedule("a", "domain", expired, refresh("a", latch)));
+		waitForStatus("soft-refresh.running", "1");
+
+		// running and queued keys are not scheduled twice
+		assertTrue(scheduler.schedule("a", "domain", expired, refresh("a-2", null)));
+		assertTrue(scheduler.schedule("b", "domain", expired, refresh("b", null)));
+		assertTrue(scheduler.schedule("b", "domain", expired, refresh("b-2", null)));
+		assertEquals("2", getStatus().get("soft-refresh.deduplicated"));
+		assertEquals("1", getStatus().get("soft-refresh.queue-depth"));
+
+		latch.countDown();
+		waitForStatus("soft-refresh.completed", "2");
+		assertEquals(Arrays.asList("a", "b"), done);
+
+		// finished key can be refreshed again
+		assertTrue(scheduler.schedule("a", "domain", expired, refresh("a-3", null)));
+		waitForStatus("soft-refresh.completed", "3");
+		assertEquals(Arrays.asList("a", "b", "a-3"), done);
+		assertEquals("3", getStatus().get("soft-refresh.scheduled"));
+	}
+
+	@Test
+	public void lowestPriorityIsDroppedTest() throws Exception {
+		init("front-cache.cache-processor.soft-refresh.threads", "1",
+				"front-cache.cache-processor.soft-refresh.queue-size", "2");
+		CountDownLatch latch = new CountDownLatch(1);
+		long expired = System.currentTimeMillis() - 10000; // 10 sec stale
+
+		scheduler.schedule("blocker", "domain", expired, refresh("blocker", latch));
+		waitForStatus("soft-refresh.running", "1");
+
+		scheduler.schedule("hot", "domain", expired, refresh("hot", null));
+		scheduler.schedule("hot", "domain", expired, refresh("hot", null)); // 2 hits
+		scheduler.schedule("hot", "domain", expired, refresh("hot", null)); // 3 hits
+		scheduler.schedule("cold", "domain", expired, refresh("cold", null));
+
+		// queue is full, the same priority as "cold" but newer - new one is dropped
+		assertFalse(scheduler.schedule("new", "domain", expired, refresh("new", null)));
+
+		// stale for 1 hour - "cold" is dropped
+		assertTrue(scheduler.schedule("stale", "domain", System.currentTimeMillis() - 3600000, refresh("stale", null)));
+		assertEquals("2", getStatus().get("soft-refresh.dropped"));
+		assertEquals("2", getStatus().get("soft-refresh.queue-depth"));
+
+		latch.countDown();
+		waitForStatus("soft-refresh.completed", "3");
+		assertEquals(Arrays.asList("blocker", "stale", "hot"), done);
+
+		// dropped key can be scheduled again
+		assertTrue(scheduler.schedule("cold", "domain", expired, refresh("cold", null)));
+		waitForStatus("soft-refresh.completed", "4");
+	}
+
+	@Test
+	public void domainConcurrencyTest() throws Exception {
+		init("front-cache.cache-processor.soft-refresh.threads", "3",
+				"front-cache.cache-processor.soft-refresh.domain-concurrency", "2",
+				"front-cache.domains", "slow.com,fast.com",
+				"front-cache.domain.slow_com.soft-refresh-concurrency", "1");
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+		final Map<String, AtomicInteger> maxRunning = new HashMap<String, AtomicInteger>();
+		for (String domain : Arrays.asList("slow.com", "fast.com"))
+		{
+			running.put(domain, new AtomicInteger());
+			maxRunning.put(domain, new AtomicInteger());
+		}
+
+		long expired = System.currentTimeMillis();
+		for (int i = 0; i < 6; i++)
+		{
+			final String domain = (0 == i % 2) ? "slow.com" : "fast.com";
+			scheduler.schedule("key-" + i, domain, expired, new Runnable() {
+				@Override
+				public void run() {
+					maxRunning.get(domain).accumulateAndGet(running.get(domain).incrementAndGet(), Math::max);
+					try {
+						latch.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+					}
+					running.get(domain).decrementAndGet();
+				}
+			});
+		}
+
+		// 1 thread for slow.com, 2 threads for fast.com
+		waitForStatus("soft-refresh.running", "3");
+		Thread.sleep(100);
+		assertEquals(1, running.get("slow.com").get());
+		assertEquals(2, running.get("fast.com").get());
+		assertEquals("3", getStatus().get("soft-refresh.queue-depth"));
+
+		latch.countDown();
+		waitForStatus("soft-refresh.completed", "6");
+		assertEquals(1, maxRunning.get("slow.com").get());
+		assertEquals(2, maxRunning.get("fast.com").get());
+	}
+
+	@Test
+	public void metricsTest() throws Exception {
+		// invalid values - defaults are used
+		init("front-cache.cache-processor.soft-refresh.threads", "two",
+				"front-cache.cache-processor.soft-refresh.queue-size", "-1");
+
+		long expired = System.currentTimeMillis();
+		scheduler.schedule("slow", "domain", expired, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		scheduler.schedule("failing", "domain", expired, new Runnable() {
+			@Override
+			public void run() {
+				throw new RuntimeException("origin is down");
+			}
+		});
+
+		waitForStatus("soft-refresh.failed", "1");
+		waitForStatus("soft-refresh.completed", "1");
+		waitForStatus("soft-refresh.running", "0");
+
+		Map<String, String> status = getStatus();
+		assertEquals("2", status.get("soft-refresh.scheduled"));
+		assertEquals("0", status.get("soft-refresh.queue-depth"));
+		assertEquals("0", status.get("soft-refresh.dropped"));
+		assertTrue(100 <= Long.parseLong(status.get("soft-refresh.latency-max-ms")));
+		assertTrue(50 <= Long.parseLong(status.get("soft-refresh.latency-avg-ms")));
+	}
+
+}
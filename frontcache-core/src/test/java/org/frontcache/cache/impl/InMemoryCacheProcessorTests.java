@@ -0,0 +1,175 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.frontcache.cache.CacheProcessor;
+import org.frontcache.core.WebResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryCacheProcessorTests {
+
+	private final static String DOMAIN = "test-domain";
+
+	private final static String URL_PREFIX = "http://localhost/p-"; // + one digit -> url length is 20
+
+	private final static int ENTRY_SIZE = 200; // content + url
+
+	InMemoryCacheProcessor cacheProcessor = null;
+
+	@Before
+	public void setUp() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.impl.in-memory.maxsize", "" + (5 * ENTRY_SIZE));
+		cacheProcessor = new InMemoryCacheProcessor();
+		cacheProcessor.init(properties);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cacheProcessor.destroy();
+	}
+
+	private void put(int i, int contentLength) {
+		String url = URL_PREFIX + i;
+		cacheProcessor.putToCache(DOMAIN, url, new WebResponse(url, new byte[contentLength], "30d", null));
+	}
+
+	private long getStatus(String key) {
+		return Long.parseLong(cacheProcessor.getCacheStatus().get(key));
+	}
+
+	@Test
+	public void evictionOrderTest() throws Exception {
+		for (int i = 0; i < 5; i++)
+			put(i, ENTRY_SIZE - 20);
+
+		assertEquals(5 * ENTRY_SIZE, getStatus("current size"));
+		assertEquals(0, getStatus("evictions"));
+
+		// referenced entry gets second chance, the eldest not referenced one is evicted
+		assertNotNull(cacheProcessor.getFromCacheImpl(URL_PREFIX + 0));
+		put(5, ENTRY_SIZE - 20);
+
+		// getCachedKeys() - don't mark entries as referenced
+		List<String> keys = cacheProcessor.getCachedKeys();
+		assertTrue(keys.contains(URL_PREFIX + 0));
+		assertFalse(keys.contains(URL_PREFIX + 1));
+		assertEquals(1, getStatus("evictions"));
+
+		// second chance is used - entry 0 is behind 2, 3, 4, 5
+		put(6, ENTRY_SIZE - 20);
+		put(7, ENTRY_SIZE - 20);
+		keys = cacheProcessor.getCachedKeys();
+		assertFalse(keys.contains(URL_PREFIX + 2));
+		assertFalse(keys.contains(URL_PREFIX + 3));
+		assertTrue(keys.contains(URL_PREFIX + 0));
+
+		put(8, ENTRY_SIZE - 20);
+		put(9, ENTRY_SIZE - 20);
+		keys = cacheProcessor.getCachedKeys();
+		assertFalse(keys.contains(URL_PREFIX + 4));
+		assertFalse(keys.contains(URL_PREFIX + 5));
+		assertTrue(keys.contains(URL_PREFIX + 0));
+
+		put(1, ENTRY_SIZE - 20);
+		assertNull(cacheProcessor.getFromCacheImpl(URL_PREFIX + 0)); // not referenced since the last pass
+		assertEquals(6, getStatus("evictions"));
+		assertEquals(5 * ENTRY_SIZE, getStatus("current size"));
+	}
+
+	@Test
+	public void sizeLimitTest() throws Exception {
+		put(0, 5 * ENTRY_SIZE); // bigger than max size (url is counted as well)
+		assertNull(cacheProcessor.getFromCacheImpl(URL_PREFIX + 0));
+		assertEquals(1, getStatus("rejections"));
+		assertEquals(0, getStatus("admissions"));
+		assertEquals(0, getStatus("current size"));
+
+		// one big entry evicts several small ones
+		for (int i = 1; i < 6; i++)
+			put(i, ENTRY_SIZE - 20);
+
+		put(0, 3 * ENTRY_SIZE - 20);
+		assertEquals(3, getStatus("evictions"));
+		assertEquals(3, getStatus(CacheProcessor.CACHED_ENTRIES));
+		assertEquals(5 * ENTRY_SIZE, getStatus("current size"));
+		assertTrue(getStatus("current size") <= getStatus("max size"));
+	}
+
+	@Test
+	public void countersTest() throws Exception {
+		put(0, ENTRY_SIZE - 20);
+		put(1, ENTRY_SIZE - 20);
+		assertEquals(2 * ENTRY_SIZE, getStatus("current size"));
+		assertEquals(2, getStatus(CacheProcessor.CACHED_ENTRIES));
+
+		// overwrite - previous size is replaced
+		put(0, 80);
+		assertEquals(ENTRY_SIZE + 100, getStatus("current size"));
+		assertEquals(2, getStatus(CacheProcessor.CACHED_ENTRIES));
+		assertEquals(3, getStatus("admissions"));
+
+		cacheProcessor.removeFromCache(DOMAIN, URL_PREFIX + 1);
+		assertEquals(100, getStatus("current size"));
+		assertEquals(1, getStatus(CacheProcessor.CACHED_ENTRIES));
+
+		put(1, ENTRY_SIZE - 20);
+		cacheProcessor.removeFromCacheByPrefix(DOMAIN, URL_PREFIX);
+		assertEquals(0, getStatus("current size"));
+		assertEquals(0, getStatus(CacheProcessor.CACHED_ENTRIES));
+
+		put(2, ENTRY_SIZE - 20);
+		cacheProcessor.removeFromCacheAll(DOMAIN);
+		assertEquals(0, getStatus("current size"));
+
+		assertNull(cacheProcessor.getFromCacheImpl(URL_PREFIX + 2));
+		assertEquals(1, getStatus("misses"));
+		assertEquals(0, getStatus("hits"));
+		assertEquals(0, getStatus("evictions"));
+	}
+
+	@Test
+	public void compressedSizeTest() throws Exception {
+		String url = URL_PREFIX + 0;
+		WebResponse response = new WebResponse(url, null, "30d", null);
+		response.setGzippedContent(new byte[100]);
+		response.addHeader("Content-Type", "text/html"); // 12 + 9
+		cacheProcessor.putToCache(DOMAIN, url, response);
+
+		// compressed length is counted (content is kept compressed)
+		assertEquals(100 + 20 + 21, getStatus("current size"));
+
+		WebResponse cached = cacheProcessor.getFromCacheImpl(url);
+		assertTrue(cached.isContentGzipped());
+
+		Map<String, String> status = cacheProcessor.getCacheStatus();
+		assertEquals("1", status.get("hits"));
+	}
+
+}
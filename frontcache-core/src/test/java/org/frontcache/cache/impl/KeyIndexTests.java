@@ -0,0 +1,147 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.frontcache.core.WebResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+public class KeyIndexTests {
+
+	private final static String DOMAIN = "test-domain";
+
+	private final static String URL1 = "http://localhost:9080/en/catalog/coin-1.htm";
+
+	private final static String URL2 = "http://localhost:9080/en/catalog/coin-2.htm";
+
+	private final static String URL3 = "http://localhost:9080/en/welcome.htm";
+
+	KeyIndex keyIndex = new KeyIndex();
+
+	CacheManager cacheManager = null;
+
+	@Before
+	public void setUp() throws Exception {
+		cacheManager = new CacheManager(new Configuration().name("key-index-tests"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cacheManager.shutdown();
+	}
+
+	@Test
+	public void putRemoveTest() throws Exception {
+		keyIndex.put(URL1, DOMAIN, Arrays.asList("coin", "catalog"));
+		keyIndex.put(URL2, DOMAIN, Arrays.asList("catalog"));
+		keyIndex.put(URL3, "other-domain", null);
+
+		assertEquals(3, keyIndex.size());
+		assertEquals(2, keyIndex.getTagsCount());
+		assertEquals(new HashSet<String>(Arrays.asList(URL1, URL2)), new HashSet<String>(keyIndex.getKeysByTag("catalog")));
+		assertEquals(Arrays.asList(URL1), keyIndex.getKeysByTag("coin"));
+		assertEquals(new HashSet<String>(Arrays.asList(URL1, URL2)), new HashSet<String>(keyIndex.getKeysByDomain(DOMAIN)));
+		assertEquals(new HashSet<String>(Arrays.asList(URL1, URL2)), new HashSet<String>(keyIndex.getKeysByPrefix("/en/catalog/")));
+		assertEquals(Collections.emptyList(), keyIndex.getKeysByTag("unknown"));
+
+		// replace - previous tags are removed
+		keyIndex.put(URL1, DOMAIN, Arrays.asList("sale"));
+		assertEquals(Arrays.asList(URL2), keyIndex.getKeysByTag("catalog"));
+		assertEquals(Collections.emptyList(), keyIndex.getKeysByTag("coin"));
+		assertEquals(Arrays.asList(URL1), keyIndex.getKeysByTag("sale"));
+		assertEquals(2, keyIndex.getTagsCount());
+
+		// remove - empty tags / domains are dropped
+		keyIndex.remove(URL2);
+		keyIndex.remove(URL2);
+		assertFalse(keyIndex.contains(URL2));
+		assertEquals(Collections.emptyList(), keyIndex.getKeysByTag("catalog"));
+		assertEquals(1, keyIndex.getTagsCount());
+		assertEquals(Arrays.asList(URL1), keyIndex.getKeysByDomain(DOMAIN));
+		assertEquals(Arrays.asList(URL1), keyIndex.getKeysByPrefix("/en/catalog/"));
+
+		keyIndex.clear();
+		assertEquals(0, keyIndex.size());
+		assertEquals(0, keyIndex.getTagsCount());
+		assertEquals(Collections.emptyList(), keyIndex.getKeysByDomain(DOMAIN));
+		assertEquals(Collections.emptyList(), keyIndex.getKeysByPrefix("/en/"));
+	}
+
+	@Test
+	public void listenerTest() throws Exception {
+		Cache cache = new Cache(new CacheConfiguration("listener-test", 2).timeToLiveSeconds(1));
+		cacheManager.addCache(cache);
+		cache.getCacheEventNotificationService().registerListener(new L1L2CacheProcessor.L1KeyIndexListener(keyIndex));
+
+		// put / update
+		cache.put(new Element(URL1, response(URL1, "coin")));
+		cache.put(new Element(URL2, response(URL2, "coin")));
+		assertEquals(2, keyIndex.getKeysByTag("coin").size());
+		cache.put(new Element(URL2, response(URL2, "catalog")));
+		assertEquals(Arrays.asList(URL1), keyIndex.getKeysByTag("coin"));
+		assertEquals(Arrays.asList(URL2), keyIndex.getKeysByTag("catalog"));
+
+		// remove
+		cache.remove(URL1);
+		assertFalse(keyIndex.contains(URL1));
+		assertEquals(Collections.emptyList(), keyIndex.getKeysByTag("coin"));
+
+		// evict (max 2 entries in memory)
+		cache.put(new Element(URL1, response(URL1, "coin")));
+		cache.put(new Element(URL3, response(URL3, "welcome")));
+		assertEquals(2, cache.getSize());
+		assertEquals(2, keyIndex.size());
+
+		// expire
+		Thread.sleep(1100);
+		for (Object key : Arrays.asList(URL1, URL2, URL3))
+			cache.get(key);
+
+		assertEquals(0, keyIndex.size());
+		assertEquals(0, keyIndex.getTagsCount());
+
+		// remove all
+		cache.put(new Element(URL1, response(URL1, "coin")));
+		assertTrue(keyIndex.contains(URL1));
+		cache.removeAll();
+		assertEquals(0, keyIndex.size());
+	}
+
+	private static WebResponse response(String url, String tag)
+	{
+		WebResponse response = new WebResponse(url, "data".getBytes(), "30d", null);
+		response.setDomain(DOMAIN);
+		response.addTags(Arrays.asList(tag));
+		return response;
+	}
+
+}
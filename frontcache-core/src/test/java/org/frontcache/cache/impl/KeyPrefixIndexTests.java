@@ -0,0 +1,185 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class KeyPrefixIndexTests {
+
+	private final static String HOST1 = "http://www.coinshome.net";
+
+	private final static String HOST2 = "https://localhost:9443";
+
+	private static Set<String> set(String... keys)
+	{
+		return new HashSet<String>(Arrays.asList(keys));
+	}
+
+	private static Set<String> set(List<String> keys)
+	{
+		return new HashSet<String>(keys);
+	}
+
+	@Test
+	public void pathTest() throws Exception {
+		assertEquals("/en/welcome.htm?a=b", KeyPrefixIndex.toPath(HOST2 + "/en/welcome.htm?a=b"));
+		assertEquals("/", KeyPrefixIndex.toPath(HOST1));
+		assertEquals("/en/", KeyPrefixIndex.toPath("/en/"));
+
+		assertTrue(KeyPrefixIndex.matches("/en/", HOST1 + "/en/welcome.htm"));
+		assertTrue(KeyPrefixIndex.matches(HOST1 + "/en/", HOST1 + "/en/welcome.htm"));
+		assertFalse(KeyPrefixIndex.matches(HOST2 + "/en/", HOST1 + "/en/welcome.htm"));
+		assertFalse(KeyPrefixIndex.matches("/de/", HOST1 + "/en/welcome.htm"));
+	}
+
+	@Test
+	public void splitAndPrefixWalkTest() throws Exception {
+		KeyPrefixIndex index = new KeyPrefixIndex();
+		String coins = HOST1 + "/en/catalog/coins.htm";
+		String coinsPage = HOST1 + "/en/catalog/coins.htm?page=2";
+		String cat = HOST1 + "/en/cat.htm";
+		String welcome = HOST1 + "/en/welcome.htm";
+
+		index.put(coinsPage);
+		index.put(coins); // key in the middle of the edge - split
+		index.put(cat); // split inside "/catalog"
+		index.put(welcome);
+		index.put(welcome); // duplicate
+		assertEquals(4, index.size());
+
+		assertEquals(set(coins, coinsPage, cat, welcome), set(index.getKeysByPrefix("/")));
+		assertEquals(set(coins, coinsPage, cat), set(index.getKeysByPrefix("/en/cat")));
+		assertEquals(set(coins, coinsPage), set(index.getKeysByPrefix("/en/catalog/")));
+		assertEquals(set(coins, coinsPage), set(index.getKeysByPrefix("/en/catalog/coins.htm"))); // prefix ends on node
+		assertEquals(set(coinsPage), set(index.getKeysByPrefix("/en/catalog/coins.htm?")));
+		assertEquals(set(coins, coinsPage), set(index.getKeysByPrefix("/en/catal"))); // prefix ends inside edge
+		assertEquals(set(welcome), set(index.getKeysByPrefix(HOST1 + "/en/w")));
+		assertEquals(Collections.emptyList(), index.getKeysByPrefix("/en/catalogue"));
+		assertEquals(Collections.emptyList(), index.getKeysByPrefix("/de/"));
+		assertEquals(Collections.emptyList(), index.getKeysByPrefix("/en/welcome.htm?page=1"));
+	}
+
+	@Test
+	public void hostsTest() throws Exception {
+		KeyPrefixIndex index = new KeyPrefixIndex();
+		index.put(HOST1 + "/en/welcome.htm");
+		index.put(HOST2 + "/en/welcome.htm"); // the same path
+		assertEquals(2, index.size());
+
+		assertEquals(set(HOST1 + "/en/welcome.htm", HOST2 + "/en/welcome.htm"), set(index.getKeysByPrefix("/en/")));
+		assertEquals(set(HOST2 + "/en/welcome.htm"), set(index.getKeysByPrefix(HOST2 + "/en/")));
+		assertEquals(set(HOST2 + "/en/welcome.htm"), set(index.getKeysByPrefix(HOST2)));
+
+		index.remove(HOST1 + "/en/welcome.htm");
+		assertEquals(set(HOST2 + "/en/welcome.htm"), set(index.getKeysByPrefix("/en/")));
+		assertEquals(Collections.emptyList(), index.getKeysByPrefix(HOST1 + "/en/"));
+	}
+
+	@Test
+	public void removeAndMergeTest() throws Exception {
+		KeyPrefixIndex index = new KeyPrefixIndex();
+		String a = HOST1 + "/en/catalog/a.htm";
+		String b = HOST1 + "/en/catalog/b.htm";
+		String catalog = HOST1 + "/en/catalog/";
+
+		index.put(a);
+		index.put(b);
+		index.put(catalog);
+
+		index.remove(HOST1 + "/en/catalog/c.htm"); // not indexed
+		index.remove(HOST1 + "/en/cat"); // path ends inside edge
+		assertEquals(3, index.size());
+
+		index.remove(catalog); // "/en/catalog/" node keeps children
+		assertEquals(set(a, b), set(index.getKeysByPrefix("/en/catalog/")));
+
+		index.remove(a); // "/en/catalog/" + "b.htm" are merged
+		assertEquals(set(b), set(index.getKeysByPrefix("/en/catalog/")));
+		assertEquals(set(b), set(index.getKeysByPrefix("/en/catalog/b")));
+		assertEquals(Collections.emptyList(), index.getKeysByPrefix("/en/catalog/a"));
+
+		// merged edge is split again
+		index.put(a);
+		assertEquals(set(a, b), set(index.getKeysByPrefix("/en/catalog/")));
+
+		index.remove(a);
+		index.remove(b);
+		assertEquals(0, index.size());
+		assertEquals(Collections.emptyList(), index.getKeysByPrefix("/"));
+
+		index.put(a);
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(Collections.emptyList(), index.getKeysByPrefix("/"));
+	}
+
+	@Test
+	public void randomTest() throws Exception {
+		KeyPrefixIndex index = new KeyPrefixIndex();
+		Set<String> keys = new HashSet<String>();
+		Random random = new Random(17);
+		String[] segments = {"/", "en", "de", "catalog", "coin", "s", ".htm", "?page=", "1", "2"};
+
+		for (int i = 0; i < 5000; i++)
+		{
+			StringBuilder path = new StringBuilder("/");
+			int length = 1 + random.nextInt(6);
+			for (int j = 0; j < length; j++)
+				path.append(segments[random.nextInt(segments.length)]);
+
+			String key = (random.nextBoolean() ? HOST1 : HOST2) + path;
+			if (random.nextInt(3) == 0)
+			{
+				index.remove(key);
+				keys.remove(key);
+			} else {
+				index.put(key);
+				keys.add(key);
+			}
+
+			if (0 == i % 100)
+			{
+				String prefix = path.substring(0, 1 + random.nextInt(path.length()));
+				if (random.nextBoolean())
+					prefix = HOST1 + prefix;
+
+				List<String> expected = new ArrayList<String>();
+				for (String k : keys)
+					if (KeyPrefixIndex.matches(prefix, k))
+						expected.add(k);
+
+				assertEquals(prefix, set(expected), set(index.getKeysByPrefix(prefix)));
+				assertEquals(keys.size(), index.size());
+			}
+		}
+
+		assertEquals(keys, set(index.getKeysByPrefix("/")));
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class L1L2CacheProcessorTests {
+
+	private final static String DOMAIN = "test-domain";
+
+	private final static String URL1 = "http://localhost:9080/en/catalog/coin-1.htm";
+
+	private final static String URL2 = "http://localhost:9080/en/catalog/coin-2.htm";
+
+	private final static String URL3 = "http://localhost:9080/en/welcome.htm";
+
+	L1L2CacheProcessor cacheProcessor = null;
+
+	@Before
+	public void setUp() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.impl.cache-dir", "/tmp/l1l2-cache-" + System.currentTimeMillis() + "/");
+		cacheProcessor = new L1L2CacheProcessor();
+		cacheProcessor.init(properties);
+
+		putToL1(URL1, DOMAIN, "coin");
+		putToL1(URL2, DOMAIN, "coin");
+		putToL1(URL3, "other-domain", "welcome");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cacheProcessor.removeFromCacheAll(DOMAIN);
+		cacheProcessor.removeFromCacheAll("other-domain");
+		cacheProcessor.destroy();
+	}
+
+	private void putToL1(String url, String domain, String tag)
+	{
+		WebResponse response = new WebResponse(url, "data".getBytes(), "30d", null);
+		response.setCacheLevel(FCHeaders.CACHE_LEVEL_L1);
+		response.addTags(Arrays.asList(tag));
+		cacheProcessor.putToCache(domain, url, response);
+		assertNotNull(cacheProcessor.getFromCacheImpl(url));
+	}
+
+	@Test
+	public void removeByUrlOrTagTest() throws Exception {
+		// exact URL or tag only (the same as L2) - no substring matching
+		cacheProcessor.removeFromCache(DOMAIN, "catalog");
+		cacheProcessor.removeFromCache(DOMAIN, "coin-1.htm");
+		cacheProcessor.removeFromCache(DOMAIN, "co");
+		assertNotNull(cacheProcessor.getFromCacheImpl(URL1));
+		assertNotNull(cacheProcessor.getFromCacheImpl(URL2));
+
+		cacheProcessor.removeFromCache(DOMAIN, URL1);
+		assertNull(cacheProcessor.getFromCacheImpl(URL1));
+		assertNotNull(cacheProcessor.getFromCacheImpl(URL2));
+
+		putToL1(URL1, DOMAIN, "coin");
+		cacheProcessor.removeFromCache(DOMAIN, "coin");
+		assertNull(cacheProcessor.getFromCacheImpl(URL1));
+		assertNull(cacheProcessor.getFromCacheImpl(URL2));
+		assertNotNull(cacheProcessor.getFromCacheImpl(URL3));
+	}
+
+	@Test
+	public void removeByPrefixAndDomainTest() throws Exception {
+		cacheProcessor.removeFromCacheByPrefix(DOMAIN, "/en/catalog/");
+		assertNull(cacheProcessor.getFromCacheImpl(URL1));
+		assertNull(cacheProcessor.getFromCacheImpl(URL2));
+		assertNotNull(cacheProcessor.getFromCacheImpl(URL3));
+
+		putToL1(URL1, DOMAIN, "coin");
+		cacheProcessor.removeFromCacheAll(DOMAIN);
+		assertNull(cacheProcessor.getFromCacheImpl(URL1));
+		assertNotNull(cacheProcessor.getFromCacheImpl(URL3));
+	}
+
+}
@@ -0,0 +1,211 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+import org.frontcache.core.WebResponseCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogStructuredStoreTests {
+
+	private final static String DOMAIN = "test-domain";
+
+	private String storeDir;
+
+	private Properties properties;
+
+	LogStructuredStore store = null;
+
+	@Before
+	public void setUp() {
+		storeDir = "/tmp/log-store-l2-" + System.currentTimeMillis();
+		properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.impl.l2.log.segment-size", "4096");
+		store = new LogStructuredStore(storeDir, properties);
+	}
+
+	@After
+	public void cleanUp() {
+		store.close();
+	}
+
+	private WebResponse createResponse(String url, String content, String tag) {
+		WebResponse response = new WebResponse(url, content.getBytes());
+		response.setDomain(DOMAIN);
+		response.setStatusCode(200);
+		response.setTags(new HashSet<String>(Arrays.asList(tag)));
+		return response;
+	}
+
+	@Test
+	public void putGetDeleteTest() throws Exception {
+		store.put(createResponse("http://localhost/en/a.htm", "a", "apple"));
+		store.put(createResponse("http://localhost/en/b.htm", "b", "banana"));
+		store.put(createResponse("http://localhost/de/c.htm", "c", "apple"));
+
+		assertEquals(3, store.getIndexSize());
+		assertEquals("b", new String(store.getResponse("http://localhost/en/b.htm").getContent()));
+
+		store.delete(DOMAIN, "apple");
+		assertNull(store.getResponse("http://localhost/en/a.htm"));
+		assertNull(store.getResponse("http://localhost/de/c.htm"));
+		assertNotNull(store.getResponse("http://localhost/en/b.htm"));
+
+		store.deleteByPrefix("/en/");
+		assertEquals(0, store.getIndexSize());
+	}
+
+	@Test
+	public void recoveryAndCompactionTest() throws Exception {
+		for (int i = 0; i < 100; i++)
+			store.put(createResponse("http://localhost/page-" + (i % 10), "content-" + i, "tag-" + (i % 10)));
+
+		store.delete("tag-0");
+		store.compact();
+		store.close();
+
+		store = new LogStructuredStore(storeDir, properties); // index is rebuilt from segments
+
+		assertEquals(9, store.getIndexSize());
+		assertNull(store.getResponse("http://localhost/page-0"));
+		assertEquals("content-99", new String(store.getResponse("http://localhost/page-9").getContent()));
+		assertEquals(9, store.getDocumentsCount(DOMAIN));
+	}
+
+	private static int getPutRecordSize(WebResponse response) {
+		return 8 + 1 + 4 + response.getUrl().length() + 4 + WebResponseCodec.encode(response).length + 4 + response.getContent().length;
+	}
+
+	private static int getDeleteRecordSize(String url) {
+		return 8 + 1 + 4 + url.length();
+	}
+
+	@Test
+	public void tombstoneCompactionTest() throws Exception {
+		// segment 0 - small entries (deleted later) and big live one, filled up exactly
+		int segmentSize = 4096;
+		int tombstonesSize = 0;
+		for (int i = 0; i < 10; i++)
+		{
+			WebResponse small = createResponse("http://localhost/small-" + i, "s", "small");
+			store.put(small);
+			segmentSize -= getPutRecordSize(small);
+			tombstonesSize += getDeleteRecordSize(small.getUrl());
+		}
+
+		WebResponse big = createResponse("http://localhost/big-0", "", "big");
+		big.setContent(new byte[segmentSize - getPutRecordSize(big)]);
+		store.put(big);
+		assertEquals("1", store.getStatus().get("segments"));
+
+		// segment 1 - tombstones only (closed by the next put)
+		store.delete(DOMAIN, "small");
+		store.put(createResponse("http://localhost/big-1", new String(new byte[3800]), "big")); // doesn't fit to segment 1
+		assertEquals("3", store.getStatus().get("segments"));
+		assertEquals("" + tombstonesSize, store.getStatus().get("tombstone-size"));
+
+		// tombstones mask puts in segment 0 - they are not dead, segment 1 is not rewritten again and again
+		store.compact();
+		store.compact();
+		assertEquals("0", store.getStatus().get("compactions"));
+		assertEquals("3", store.getStatus().get("segments"));
+
+		// segment 0 is compacted -> segment 1 is the oldest one, its tombstones are dropped
+		store.delete("http://localhost/big-0");
+		store.compact();
+		assertEquals("2", store.getStatus().get("compactions"));
+		assertEquals("1", store.getStatus().get("segments"));
+		assertEquals("" + getDeleteRecordSize("http://localhost/big-0"), store.getStatus().get("tombstone-size"));
+
+		store.close();
+		store = new LogStructuredStore(storeDir, properties);
+		assertEquals(1, store.getIndexSize());
+		assertNull(store.getResponse("http://localhost/small-0"));
+		assertNull(store.getResponse("http://localhost/big-0"));
+		assertNotNull(store.getResponse("http://localhost/big-1"));
+	}
+
+	@Test
+	public void wrongConfigTest() throws Exception {
+		store.close();
+		properties.setProperty("front-cache.cache-processor.impl.l2.log.compaction-threshold", "half");
+		properties.setProperty("front-cache.cache-processor.impl.l2.log.compaction-interval", "1 min");
+		properties.setProperty("front-cache.cache-processor.impl.l2.commit-interval", "-1");
+		store = new LogStructuredStore(storeDir, properties); // defaults are used
+
+		store.put(createResponse("http://localhost/en/a.htm", "a", "apple"));
+		assertNotNull(store.getResponse("http://localhost/en/a.htm"));
+	}
+
+	@Test
+	public void expirySweepTest() throws Exception {
+		WebResponse expired = new WebResponse("http://localhost/en/expired.htm", "a".getBytes(), "1", null);
+		expired.setDomain(DOMAIN);
+		WebResponse soft = new WebResponse("http://localhost/en/soft.htm", "b".getBytes(), "1", "soft");
+		soft.setDomain(DOMAIN);
+		WebResponse fresh = new WebResponse("http://localhost/en/fresh.htm", "c".getBytes(), "1d", null);
+		fresh.setDomain(DOMAIN);
+		WebResponse revalidatable = new WebResponse("http://localhost/en/revalidatable.htm", "d".getBytes(), "1", null);
+		revalidatable.setDomain(DOMAIN);
+		revalidatable.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, "1");
+		revalidatable.addHeader(FCHeaders.ETAG, "\"d\"");
+
+		store.put(expired);
+		store.put(soft);
+		store.put(fresh);
+		store.put(revalidatable);
+
+		Thread.sleep(1100);
+		store.deleteExpired();
+
+		assertNull(store.getResponse("http://localhost/en/expired.htm"));
+		assertNotNull(store.getResponse("http://localhost/en/soft.htm")); // soft refresh entries are not swept
+		assertNotNull(store.getResponse("http://localhost/en/fresh.htm"));
+		assertNotNull(store.getResponse("http://localhost/en/revalidatable.htm")); // kept for revalidation retention period
+		assertEquals("1", store.getStatus().get("expiry-swept"));
+	}
+
+	@Test
+	public void revalidateRetentionTest() throws Exception {
+		store.close();
+		properties.setProperty("front-cache.cache-processor.revalidate-retention", "0");
+		store = new LogStructuredStore(storeDir, properties);
+
+		WebResponse revalidatable = new WebResponse("http://localhost/en/revalidatable.htm", "d".getBytes(), "1", null);
+		revalidatable.setDomain(DOMAIN);
+		revalidatable.addHeader(FCHeaders.X_FRONTCACHE_COMPONENT_MAX_AGE, "1");
+		revalidatable.addHeader(FCHeaders.ETAG, "\"d\"");
+		store.put(revalidatable);
+
+		Thread.sleep(1100);
+		store.deleteExpired();
+
+		assertNull(store.getResponse("http://localhost/en/revalidatable.htm"));
+	}
+
+}
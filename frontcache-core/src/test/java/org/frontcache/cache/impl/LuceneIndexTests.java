@@ -19,6 +19,7 @@ package org.frontcache.cache.impl;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,6 +27,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 
@@ -190,6 +192,47 @@ public class LuceneIndexTests {
 		
 	}
 	
+	@Test
+	public void asyncWriteTest() throws Exception {
+
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.impl.l2.durability", LuceneIndexManager.DURABILITY_ASYNC);
+		LuceneIndexManager asyncIndexManager = new LuceneIndexManager("/tmp/lucene-text-index-l2-async-" + System.currentTimeMillis(), properties);
+		
+		try
+		{
+			String url = UUID.randomUUID().toString();
+			WebResponse response = new WebResponse(url, "data".getBytes());
+			response.addTags(Arrays.asList(new String[]{"apple"}));
+			response.setDomain(DOMAIN);
+			asyncIndexManager.indexDoc(response);
+			
+			// queued put is visible for readers
+			WebResponse fromFile = asyncIndexManager.getResponse(url);
+			assertNotNull(fromFile);
+			assertEquals("data", new String(fromFile.getContent()));
+			
+			assertTrue(asyncIndexManager.flush(10000));
+			assertEquals(1, asyncIndexManager.getIndexSize());
+			assertEquals(0, asyncIndexManager.getWriteQueueDepth());
+			
+			// invalidation is visible right away (delete is queued)
+			asyncIndexManager.delete(DOMAIN, "apple");
+			assertNull(asyncIndexManager.getResponse(url));
+			assertNull(asyncIndexManager.getResponseMetadata(url));
+			
+			assertTrue(asyncIndexManager.flush(10000));
+			assertEquals(0, asyncIndexManager.getIndexSize());
+			
+			asyncIndexManager.indexDoc(response);
+			assertTrue(asyncIndexManager.flush(10000));
+			asyncIndexManager.deleteAll(DOMAIN);
+			assertNull(asyncIndexManager.getResponse(url));
+		} finally {
+			asyncIndexManager.close();
+		}
+	}
+	
 	@Test
 	public void fileEmptyByteTest() throws Exception {
 
@@ -0,0 +1,95 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.cache.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.frontcache.cache.CacheProcessor;
+import org.frontcache.core.WebResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapCacheProcessorTests {
+
+	private final static String DOMAIN = "test-domain";
+
+	OffHeapCacheProcessor cacheProcessor = null;
+
+	@Before
+	public void setUp() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.cache-processor.impl.off-heap.maxsize", "64K");
+		properties.setProperty("front-cache.cache-processor.impl.off-heap.slab-size", "16K");
+		properties.setProperty("front-cache.cache-processor.impl.off-heap.chunk-size", "1K");
+		cacheProcessor = new OffHeapCacheProcessor();
+		cacheProcessor.init(properties);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cacheProcessor.destroy();
+	}
+
+	@Test
+	public void putGetRemoveTest() throws Exception {
+		byte[] content = new byte[3000]; // spans several chunks
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte) i;
+
+		String url = "http://localhost:9080/en/welcome.htm";
+		WebResponse response = new WebResponse(url, content, "30d", null);
+		response.setStatusCode(200);
+		response.addHeader("Content-Type", "text/html");
+		cacheProcessor.putToCache(DOMAIN, url, response);
+
+		WebResponse cached = cacheProcessor.getFromCacheImpl(url);
+		assertNotNull(cached);
+		assertEquals(200, cached.getStatusCode());
+		assertEquals(DOMAIN, cached.getDomain());
+		assertEquals("text/html", cached.getHeader("Content-Type"));
+		assertArrayEquals(content, cached.getContent());
+
+		cacheProcessor.removeFromCache(DOMAIN, "welcome");
+		assertNull(cacheProcessor.getFromCacheImpl(url));
+		assertEquals("0", cacheProcessor.getCacheStatus().get("off-heap.used-size"));
+	}
+
+	@Test
+	public void evictionTest() throws Exception {
+		byte[] content = new byte[4000];
+		for (int i = 0; i < 100; i++)
+		{
+			String url = "http://localhost:9080/page-" + i;
+			cacheProcessor.putToCache(DOMAIN, url, new WebResponse(url, content, "30d", null));
+		}
+
+		Map<String, String> status = cacheProcessor.getCacheStatus();
+		assertTrue(Long.parseLong(status.get("off-heap.reserved-size")) <= 64 * 1024);
+		assertTrue(Long.parseLong(status.get("off-heap.evictions")) > 0);
+		assertTrue(Integer.parseInt(status.get(CacheProcessor.CACHED_ENTRIES)) < 100);
+		assertNotNull(cacheProcessor.getFromCacheImpl("http://localhost:9080/page-99")); // the latest one is kept
+	}
+
+}
@@ -17,6 +17,9 @@
 package org.frontcache.core.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.frontcache.core.FCUtils;
 import org.junit.Test;
@@ -39,4 +42,49 @@ public class FCUtilsTests {
 		
 		return;
 	}
+	
+	@Test
+	public void eTagTest() throws Exception {
+		
+		String eTag = FCUtils.strongETag("<html>coins</html>".getBytes(), false);
+		assertEquals(eTag, FCUtils.strongETag("<html>coins</html>".getBytes(), false));
+		assertNotEquals(eTag, FCUtils.strongETag("<html>coins 2</html>".getBytes(), false));
+		
+		String gzipETag = FCUtils.strongETag("<html>coins</html>".getBytes(), true);
+		assertNotEquals(eTag, gzipETag);
+		assertEquals(gzipETag, FCUtils.representationETag(gzipETag, true));
+		assertEquals(eTag, FCUtils.representationETag(gzipETag, false));
+		assertEquals(eTag, FCUtils.representationETag(eTag, true));
+		
+		assertTrue(FCUtils.isETagMatched(eTag, eTag));
+		assertTrue(FCUtils.isETagMatched(eTag, "\"other\", W/" + eTag));
+		assertTrue(FCUtils.isETagMatched(eTag, "*"));
+		assertFalse(FCUtils.isETagMatched(eTag, "\"other\""));
+		assertFalse(FCUtils.isETagMatched(eTag, null));
+		
+		return;
+	}
+
+	@Test
+	public void gzipAcceptedTest() throws Exception {
+		
+		assertTrue(FCUtils.isGzipAccepted("gzip"));
+		assertTrue(FCUtils.isGzipAccepted("deflate, GZIP"));
+		assertTrue(FCUtils.isGzipAccepted("br;q=1.0, gzip;q=0.8, *;q=0.1"));
+		assertTrue(FCUtils.isGzipAccepted("x-gzip"));
+		assertTrue(FCUtils.isGzipAccepted("*"));
+		assertTrue(FCUtils.isGzipAccepted("gzip;q=0, gzip;q=0.5"));
+		
+		assertFalse(FCUtils.isGzipAccepted(null));
+		assertFalse(FCUtils.isGzipAccepted(""));
+		assertFalse(FCUtils.isGzipAccepted("identity"));
+		assertFalse(FCUtils.isGzipAccepted("gzip;q=0"));
+		assertFalse(FCUtils.isGzipAccepted("gzip; q=0.000, deflate"));
+		assertFalse(FCUtils.isGzipAccepted("gzip;q=0, *")); // explicit wins over '*'
+		assertFalse(FCUtils.isGzipAccepted("*;q=0"));
+		assertFalse(FCUtils.isGzipAccepted("gzip;q=abc"));
+		assertFalse(FCUtils.isGzipAccepted("gzipx, xgzip"));
+		
+		return;
+	}
 }
@@ -0,0 +1,71 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.client.methods.HttpGet;
+import org.frontcache.core.RequestContext;
+import org.junit.Test;
+
+public class RequestContextTests {
+
+	@Test
+	public void deadlineTest() throws Exception {
+		RequestContext context = new RequestContext();
+		
+		// no deadline
+		assertEquals(0, context.getDeadline());
+		assertEquals(Long.MAX_VALUE, context.getTimeLeft());
+		assertFalse(context.isDeadlineReached());
+		
+		context.setDeadline(System.currentTimeMillis() + 1000);
+		long timeLeft = context.getTimeLeft();
+		assertTrue(0 < timeLeft && timeLeft <= 1000);
+		assertFalse(context.isDeadlineReached());
+		
+		context.setDeadline(System.currentTimeMillis() - 1);
+		assertEquals(0, context.getTimeLeft());
+		assertTrue(context.isDeadlineReached());
+		
+		// copies are used for background calls
+		assertEquals(0, context.copy().getDeadline());
+	}
+
+	@Test
+	public void abortInFlightRequestsTest() throws Exception {
+		RequestContext context = new RequestContext();
+		assertEquals(0, context.abortInFlightRequests());
+		
+		HttpGet inFlight = new HttpGet("http://localhost/a");
+		HttpGet completed = new HttpGet("http://localhost/b");
+		context.addInFlightRequest(inFlight);
+		context.addInFlightRequest(completed);
+		context.removeInFlightRequest(completed);
+		
+		assertEquals(0, context.copy().abortInFlightRequests()); // not shared with copies
+		
+		assertEquals(1, context.abortInFlightRequests());
+		assertTrue(inFlight.isAborted());
+		assertFalse(completed.isAborted());
+		
+		assertEquals(0, context.abortInFlightRequests()); // aborted once
+	}
+
+}
@@ -16,14 +16,23 @@
  */
 package org.frontcache.core.tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.FCUtils;
 import org.frontcache.core.WebResponse;
+import org.frontcache.core.WebResponseCodec;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,4 +81,109 @@ public class WebResponseTests {
 		assertEquals(webResponseJSONStr1, webResponseJSONStr2);
 		return;
 	}
+
+	/**
+	 * Tests WebResponse metadata encoding/decoding with WebResponseCodec
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void binarySerializationTest() throws Exception {
+		
+		WebResponse webResponse = new WebResponse("http://localhost:9080/en/welcome.htm", "some text".getBytes(), "bot:30d", FCHeaders.COMPONENT_REFRESH_TYPE_SOFT);
+		webResponse.setStatusCode(200);
+		webResponse.setDomain("localhost");
+		webResponse.setCacheLevel(FCHeaders.CACHE_LEVEL_L1);
+		webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html; charset=UTF-8");
+		webResponse.addHeader("X-custom-header", "\u00fcml\u00e4ut");
+		webResponse.addTags(Arrays.asList("apple", "banana"));
+		
+		byte[] meta = WebResponseCodec.encode(webResponse);
+		WebResponse webResponse2 = WebResponseCodec.decode(meta);
+		
+		assertEquals(webResponse.getStatusCode(), webResponse2.getStatusCode());
+		assertEquals(webResponse.getUrl(), webResponse2.getUrl());
+		assertEquals(webResponse.getDomain(), webResponse2.getDomain());
+		assertEquals(webResponse.getRefreshType(), webResponse2.getRefreshType());
+		assertEquals(webResponse.getCacheLevel(), webResponse2.getCacheLevel());
+		assertEquals(webResponse.getExpireTimeMap(), webResponse2.getExpireTimeMap());
+		assertEquals(webResponse.getHeaders(), webResponse2.getHeaders());
+		assertEquals(webResponse.getTags(), webResponse2.getTags());
+		assertNull(webResponse2.getContent()); // content is not part of metadata
+		return;
+	}
+
+	/**
+	 * Tests content compression at put to cache and gzip flag in WebResponseCodec
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void gzipContentTest() throws Exception {
+		
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			sb.append("<div class=\"coin\">some text ").append(i).append("</div>\n");
+		byte[] content = sb.toString().getBytes("UTF-8");
+		
+		WebResponse webResponse = new WebResponse("http://localhost:9080/en/welcome.htm", content, "30d", null);
+		webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html; charset=UTF-8");
+		webResponse.compressContent(1024);
+		
+		assertTrue(webResponse.isContentGzipped());
+		assertTrue(webResponse.getContentLenth() < content.length);
+		assertArrayEquals(content, webResponse.getContent());
+		assertArrayEquals(content, FCUtils.gunzip(webResponse.getGzippedContent()));
+		assertTrue(webResponse.isCacheable());
+		
+		byte[] meta = WebResponseCodec.encode(webResponse);
+		assertTrue(WebResponseCodec.isContentGzipped(meta, 0, meta.length));
+		
+		WebResponse small = new WebResponse("http://localhost:9080/en/small.htm", "some text".getBytes());
+		small.compressContent(1024);
+		assertFalse(small.isContentGzipped()); // below min size
+		
+		meta = WebResponseCodec.encode(small);
+		assertFalse(WebResponseCodec.isContentGzipped(meta, 0, meta.length));
+		return;
+	}
+
+	/**
+	 * Tests frozen (cached) instance and per request overlay
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void overlayTest() throws Exception {
+		
+		WebResponse cached = new WebResponse("http://localhost:9080/en/welcome.htm", "some text".getBytes(), "30d", null);
+		cached.addHeader(FCHeaders.CONTENT_TYPE, "text/html; charset=UTF-8");
+		cached.addTags(Arrays.asList("apple"));
+		cached.freeze();
+		assertTrue(cached.isFrozen());
+		
+		try {
+			cached.addHeader("X-custom-header", "value");
+			fail("frozen instance is modified");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		
+		WebResponse overlay = cached.overlay();
+		assertFalse(overlay.isFrozen());
+		assertTrue(cached.getHeaders() == overlay.getHeaders()); // shared until modified
+		
+		overlay.setContent("other text".getBytes());
+		overlay.addHeader("X-custom-header", "value");
+		overlay.addTags(Arrays.asList("banana"));
+		
+		assertArrayEquals("some text".getBytes(), cached.getContent());
+		assertNull(cached.getHeaders().get("X-custom-header"));
+		assertEquals(1, cached.getTags().size());
+		assertEquals(2, overlay.getTags().size());
+		assertEquals("value", overlay.getHeaders().get("X-custom-header").get(0));
+		
+		assertTrue(WebResponseCodec.decode(WebResponseCodec.encode(cached)).isFrozen());
+		return;
+	}
 }
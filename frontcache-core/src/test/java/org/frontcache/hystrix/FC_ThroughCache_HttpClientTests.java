@@ -0,0 +1,100 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.hystrix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.frontcache.core.DomainContext;
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.FrontCacheException;
+import org.frontcache.core.RequestContext;
+import org.junit.Test;
+
+public class FC_ThroughCache_HttpClientTests {
+
+	@Test
+	public void deadlineBoundTest() throws Exception {
+		RequestContext context = new RequestContext();
+		Map<String, List<String>> requestHeaders = new HashMap<String, List<String>>();
+		assertFalse(FC_ThroughCache_HttpClient.isDeadlineBound(context, requestHeaders)); // no deadline
+		
+		context.setDeadline(System.currentTimeMillis() + 1000);
+		assertTrue(FC_ThroughCache_HttpClient.isDeadlineBound(context, requestHeaders));
+		
+		// async includes are not bound by deadline
+		requestHeaders.put(FCHeaders.X_FRONTCACHE_ASYNC_INCLUDE, Arrays.asList(new String[]{"true"}));
+		assertFalse(FC_ThroughCache_HttpClient.isDeadlineBound(context, requestHeaders));
+	}
+
+	@Test
+	public void requestConfigTest() throws Exception {
+		RequestConfig clientConfig = RequestConfig.custom()
+				.setSocketTimeout(5000)
+				.setConnectTimeout(100)
+				.build();
+		CloseableHttpClient client = HttpClients.custom().setDefaultRequestConfig(clientConfig).build();
+		try {
+			// timeouts are capped at time left
+			RequestConfig config = FC_ThroughCache_HttpClient.getRequestConfig(client, 1000);
+			assertEquals(1000, config.getSocketTimeout());
+			assertEquals(100, config.getConnectTimeout()); // shorter one is kept
+			assertEquals(1000, config.getConnectionRequestTimeout()); // infinite
+			
+			assertEquals(1, FC_ThroughCache_HttpClient.getRequestConfig(client, 0).getSocketTimeout()); // 0 - infinite for http client
+		} finally {
+			client.close();
+		}
+		
+		// client config is not available
+		RequestConfig config = FC_ThroughCache_HttpClient.getRequestConfig(mock(HttpClient.class), 300);
+		assertEquals(300, config.getSocketTimeout());
+		assertEquals(300, config.getConnectTimeout());
+		assertEquals(300, config.getConnectionRequestTimeout());
+	}
+
+	@Test
+	public void deadlineReachedTest() throws Exception {
+		RequestContext context = new RequestContext();
+		context.setDomainContext(new DomainContext("localhost", null, "localhost", "80", "443"));
+		context.setDeadline(System.currentTimeMillis() - 1);
+		HttpClient client = mock(HttpClient.class);
+		
+		FC_ThroughCache_HttpClient command = new FC_ThroughCache_HttpClient("http://localhost/a", new HashMap<String, List<String>>(), client, context);
+		try {
+			command.run();
+			fail("origin should not be called after deadline");
+		} catch (FrontCacheException e) {
+			assertTrue(e.getMessage().contains("deadline"));
+		}
+		verifyZeroInteractions(client);
+	}
+
+}
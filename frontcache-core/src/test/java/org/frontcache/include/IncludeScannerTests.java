@@ -0,0 +1,99 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.include;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.WebResponse;
+import org.frontcache.include.IncludeScanner.IncludeTag;
+import org.junit.Test;
+
+public class IncludeScannerTests {
+
+	@Test
+	public void scanTest() throws Exception {
+		String page = "<html>\u041f\u0440\u0438\u0432\u0435\u0442, \u20acuro <fc:include url=\"/fc/header.htm\" /> text <fc:include url=\"/fc/counter.htm\" call=\"async\" client=\"bot\" /></html>";
+		byte[] content = page.getBytes(StandardCharsets.UTF_8);
+		
+		assertTrue(IncludeScanner.hasIncludes(content, IncludeProcessor.MAX_INCLUDE_LENGHT));
+		
+		List<IncludeTag> tags = IncludeScanner.scan(content, StandardCharsets.UTF_8);
+		assertEquals(2, tags.size());
+		
+		IncludeTag tag = tags.get(0);
+		assertEquals("/fc/header.htm", tag.getUrl());
+		assertEquals("sync", tag.getType());
+		assertNull(tag.getClientType());
+		assertEquals("<fc:include url=\"/fc/header.htm\" />", new String(content, tag.getStartIdx(), tag.getEndIdx() - tag.getStartIdx(), StandardCharsets.UTF_8));
+		
+		tag = tags.get(1);
+		assertEquals("/fc/counter.htm", tag.getUrl());
+		assertEquals("async", tag.getType());
+		assertEquals(FCHeaders.REQUEST_CLIENT_TYPE_BOT, tag.getClientType());
+		
+		assertFalse(IncludeScanner.hasIncludes("<html>no includes</html>".getBytes(StandardCharsets.UTF_8), IncludeProcessor.MAX_INCLUDE_LENGHT));
+		assertFalse(IncludeScanner.hasIncludes("<fc:include url=\"/no/closing\" >".getBytes(StandardCharsets.UTF_8), IncludeProcessor.MAX_INCLUDE_LENGHT));
+		assertNull(IncludeScanner.scan("<html>no includes</html>".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void templateTest() throws Exception {
+		String page = "<html><fc:include url=\"/fc/header.htm\" /> text <fc:include url=\"/fc/counter.htm?a=1 b\" call=\"async\" client=\"browser\" /></html>";
+		WebResponse webResponse = new WebResponse("http://localhost/a.htm", page.getBytes(StandardCharsets.UTF_8));
+		webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html");
+		
+		List<IncludeTag> tags = IncludeScanner.scan(webResponse, webResponse.getContent());
+		List<IncludeTag> restored = IncludeScanner.fromTemplate(IncludeScanner.toTemplate(tags));
+		assertEquals(tags.size(), restored.size());
+		for (int i = 0; i < tags.size(); i++)
+		{
+			assertEquals(tags.get(i).getStartIdx(), restored.get(i).getStartIdx());
+			assertEquals(tags.get(i).getEndIdx(), restored.get(i).getEndIdx());
+			assertEquals(tags.get(i).getUrl(), restored.get(i).getUrl());
+			assertEquals(tags.get(i).getType(), restored.get(i).getType());
+			assertEquals(tags.get(i).getClientType(), restored.get(i).getClientType());
+		}
+		
+		// include free
+		assertTrue(IncludeScanner.fromTemplate(IncludeScanner.toTemplate(null)).isEmpty());
+		
+		// malformed
+		assertNull(IncludeScanner.fromTemplate(Arrays.asList("10 5 sync * /fc/header.htm")));
+		assertNull(IncludeScanner.fromTemplate(Arrays.asList("abc")));
+	}
+	
+	@Test
+	public void charsetTest() throws Exception {
+		WebResponse webResponse = new WebResponse("http://localhost/a.htm", new byte[0]);
+		assertEquals(StandardCharsets.UTF_8, IncludeScanner.getCharset(webResponse));
+		
+		webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html; charset=ISO-8859-1");
+		assertEquals(StandardCharsets.ISO_8859_1, IncludeScanner.getCharset(webResponse));
+		
+		assertTrue(IncludeScanner.isScannable(StandardCharsets.ISO_8859_1));
+		assertFalse(IncludeScanner.isScannable(StandardCharsets.UTF_16));
+	}
+	
+}
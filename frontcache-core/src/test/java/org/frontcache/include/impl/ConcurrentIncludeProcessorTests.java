@@ -0,0 +1,445 @@
+/**
+ *        Copyright 2017 Eternita LLC
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.frontcache.include.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.frontcache.core.FCHeaders;
+import org.frontcache.core.FrontCacheException;
+import org.frontcache.core.RequestContext;
+import org.frontcache.core.WebResponse;
+import org.frontcache.include.IncludeProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentIncludeProcessorTests {
+
+	private static final String HOST_URL = "http://localhost";
+
+	private static final String FALLBACK = "[fallback]";
+
+	private TestIncludeProcessor processor;
+
+	private RecordingExecutor executor;
+
+	@Before
+	public void setUp() {
+		Properties properties = new Properties();
+		properties.setProperty("front-cache.include-processor.impl.concurrent.timeout", "500");
+		processor = new TestIncludeProcessor();
+		processor.init(properties);
+		processor.executor.shutdown();
+		
+		executor = new RecordingExecutor();
+		processor.executor = executor;
+	}
+
+	@After
+	public void cleanUp() {
+		processor.destroy();
+	}
+
+	private static WebResponse textResponse(String url, String content) {
+		WebResponse webResponse = new WebResponse(url, content.getBytes(StandardCharsets.UTF_8));
+		webResponse.addHeader(FCHeaders.CONTENT_TYPE, "text/html; charset=UTF-8");
+		return webResponse;
+	}
+
+	private static RequestContext createContext(String clientType) {
+		RequestContext context = new RequestContext();
+		context.setClientType(clientType);
+		return context;
+	}
+
+	private String processIncludes(String page, RequestContext context) {
+		WebResponse webResponse = processor.processIncludes(textResponse(HOST_URL + "/", page), HOST_URL, new HashMap<String, List<String>>(), null, context, 1);
+		return new String(webResponse.getContent(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void nestedIncludesTest() throws Exception {
+		processor.include("/a", "a1<fc:include url=\"/a/x\" />a2", 100);
+		processor.include("/a/x", "ax<fc:include url=\"/a/x/y\" />", 0);
+		processor.include("/a/x/y", "axy", 50);
+		processor.include("/b", "b", 0); // resolved before /a
+
+		String result = processIncludes("A<fc:include url=\"/a\" />B<fc:include url=\"/b\" />C", createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+
+		// all levels in document order
+		assertEquals("Aa1axaxya2BbC", result);
+		assertEquals(4, processor.calls.size());
+		
+		// include levels
+		assertEquals("1.0", executor.getLevel(HOST_URL + "/a"));
+		assertEquals("1.0.0", executor.getLevel(HOST_URL + "/a/x"));
+		assertEquals("1.0.0.0", executor.getLevel(HOST_URL + "/a/x/y"));
+		assertEquals("1.1", executor.getLevel(HOST_URL + "/b"));
+	}
+
+	@Test
+	public void maxRecursionLevelTest() throws Exception {
+		String include = "<fc:include url=\"/r\" />";
+		processor.include("/r", "r" + include, 0); // includes itself
+
+		String result = processIncludes(include, createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+
+		// content of include at MAX_RECURSION_LEVEL is not scanned (include tag is sent as is)
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < IncludeProcessor.MAX_RECURSION_LEVEL; i++)
+			expected.append("r");
+		expected.append(include);
+		
+		assertEquals(expected.toString(), result);
+		assertEquals(IncludeProcessor.MAX_RECURSION_LEVEL, processor.calls.size());
+	}
+
+	@Test
+	public void timedOutIncludeTest() throws Exception {
+		processor.include("/fast", "fast", 0);
+		processor.include("/slow", "slow<fc:include url=\"/slow/child\" />", 2000);
+		processor.include("/slow/child", "child", 0);
+
+		long start = System.currentTimeMillis();
+		String result = processIncludes("<fc:include url=\"/fast\" />|<fc:include url=\"/slow\" />", createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+
+		// timed out include and its subtree are replaced with fallback
+		assertEquals("fast|" + FALLBACK, result);
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		
+		Thread.sleep(100); // cancelled include is not resolved (interrupted)
+		assertFalse(processor.calls.contains(HOST_URL + "/slow/child"));
+	}
+
+	@Test
+	public void timedOutNestedIncludeTest() throws Exception {
+		processor.include("/p", "p<fc:include url=\"/p/slow\" />|<fc:include url=\"/p/fast\" />", 0);
+		processor.include("/p/slow", "slow", 2000);
+		processor.include("/p/fast", "fast", 0);
+
+		String result = processIncludes("<fc:include url=\"/p\" />", createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+
+		// resolved parent is kept, timed out child falls back
+		assertEquals("p" + FALLBACK + "|fast", result);
+	}
+
+	@Test
+	public void clientTypeAndAsyncIncludesTest() throws Exception {
+		processor.include("/bot", "bot", 0);
+		processor.include("/browser", "browser", 0);
+		processor.include("/counter", "counter", 0);
+
+		String result = processIncludes("A<fc:include url=\"/bot\" client=\"bot\" />B<fc:include url=\"/browser\" client=\"browser\" />C<fc:include url=\"/counter\" call=\"async\" />D", 
+				createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+
+		// include for other client type is removed, async include response is not sent to client
+		assertEquals("ABbrowserCD", result);
+		assertFalse(executor.submitted.containsKey(HOST_URL + "/bot"));
+		assertTrue(executor.submitted.containsKey(HOST_URL + "/browser"));
+		assertTrue(executor.submitted.containsKey(HOST_URL + "/counter"));
+		
+		// async include is called with async include header
+		Map<String, List<String>> asyncHeaders = processor.awaitCall(HOST_URL + "/counter", 1000);
+		assertNotNull(asyncHeaders);
+		assertNotNull(asyncHeaders.get(FCHeaders.X_FRONTCACHE_ASYNC_INCLUDE));
+	}
+
+	@Test
+	public void deadlineReachedTest() throws Exception {
+		processor.include("/a", "a", 0);
+		processor.include("/counter", "counter", 0);
+
+		RequestContext context = createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER);
+		context.setDeadline(System.currentTimeMillis() - 1); // e.g. spent by previous includes
+		String result = processIncludes("<fc:include url=\"/a\" />|<fc:include url=\"/counter\" call=\"async\" />", context);
+
+		// sync include is not submitted after deadline (fallback), async include is
+		assertEquals(FALLBACK + "|", result);
+		assertFalse(executor.submitted.containsKey(HOST_URL + "/a"));
+		assertTrue(executor.submitted.containsKey(HOST_URL + "/counter"));
+	}
+
+	@Test
+	public void asyncIncludeIsNotBoundByDeadlineTest() throws Exception {
+		processor.include("/a", "a", 0);
+		processor.include("/counter", "counter", 1000); // longer than timeout
+
+		long start = System.currentTimeMillis();
+		String result = processIncludes("<fc:include url=\"/a\" />|<fc:include url=\"/counter\" call=\"async\" />", createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+		assertEquals("a|", result);
+		assertTrue(System.currentTimeMillis() - start < 1000); // not waited for
+
+		// async include is not cancelled when timeout is reached
+		assertTrue(processor.awaitCompletion(HOST_URL + "/counter", 2000));
+	}
+
+	@Test
+	public void abortInFlightRequestsTest() throws Exception {
+		processor.include("/fast", "fast", 0);
+		processor.blockingInclude("/stuck"); // unblocked by abort only (like socket read)
+
+		long start = System.currentTimeMillis();
+		String result = processIncludes("<fc:include url=\"/fast\" />|<fc:include url=\"/stuck\" />", createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER));
+		assertEquals("fast|" + FALLBACK, result);
+		assertTrue(System.currentTimeMillis() - start < 2000);
+
+		// origin call is aborted when timeout is reached
+		assertTrue(processor.requests.get(HOST_URL + "/stuck").isAborted());
+		assertFalse(processor.requests.get(HOST_URL + "/fast").isAborted());
+		assertTrue(processor.awaitCompletion(HOST_URL + "/stuck", 1000));
+	}
+
+	private String writeIncludes(String page, RecordingOutputStream out) throws Exception {
+		processor.writeIncludes(textResponse(HOST_URL + "/", page), HOST_URL, new HashMap<String, List<String>>(), null, createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER), out);
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void streamingDocumentOrderTest() throws Exception {
+		processor.include("/a", "a1<fc:include url=\"/a/x\" />a2", 100);
+		processor.include("/a/x", "ax", 0);
+		processor.include("/b", "b", 0); // resolved before /a
+
+		String page = "A<fc:include url=\"/a\" />B<fc:include url=\"/b\" />C";
+		RecordingOutputStream out = new RecordingOutputStream(processor);
+		assertEquals("Aa1axa2BbC", writeIncludes(page, out));
+		assertEquals(processIncludes(page, createContext(FCHeaders.REQUEST_CLIENT_TYPE_BROWSER)), out.toString("UTF-8")); // the same as buffered
+		
+		// page without includes is written as is
+		out = new RecordingOutputStream(processor);
+		assertEquals("ABC", writeIncludes("ABC", out));
+	}
+
+	@Test
+	public void streamingFlushBeforeSlowIncludeTest() throws Exception {
+		processor.include("/fast", "fast", 0);
+		processor.include("/slow", "slow", 300);
+
+		RecordingOutputStream out = new RecordingOutputStream(processor);
+		assertEquals("<head>fast|slow</body>", writeIncludes("<head><fc:include url=\"/fast\" />|<fc:include url=\"/slow\" /></body>", out));
+
+		// ready part is flushed while slow include is resolved (page start can be flushed before fast include as well)
+		int idx = out.flushes.indexOf("<head>fast|");
+		assertTrue(-1 < idx);
+		assertFalse(out.completedAtFlush.get(idx).contains(HOST_URL + "/slow"));
+	}
+
+	@Test
+	public void streamingTimeoutTest() throws Exception {
+		processor.include("/fast", "fast", 0);
+		processor.include("/slow", "slow", 2000);
+
+		long start = System.currentTimeMillis();
+		RecordingOutputStream out = new RecordingOutputStream(processor);
+		assertEquals("fast|" + FALLBACK + "|end", writeIncludes("<fc:include url=\"/fast\" />|<fc:include url=\"/slow\" />|end", out));
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertTrue(out.flushes.contains("fast|")); // flushed before timeout
+	}
+
+	/**
+	 * records content flushed to client
+	 */
+	static class RecordingOutputStream extends ByteArrayOutputStream {
+
+		private final TestIncludeProcessor processor;
+
+		final List<String> flushes = Collections.synchronizedList(new ArrayList<String>()); // output at flush
+
+		final List<List<String>> completedAtFlush = Collections.synchronizedList(new ArrayList<List<String>>()); // include calls completed at flush
+
+		RecordingOutputStream(TestIncludeProcessor processor) {
+			this.processor = processor;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			super.flush();
+			flushes.add(new String(toByteArray(), StandardCharsets.UTF_8));
+			completedAtFlush.add(new ArrayList<String>(processor.completed));
+		}
+	}
+
+	/**
+	 * callInclude() returns configured content (after delay), origin / cache are not used
+	 */
+	static class TestIncludeProcessor extends ConcurrentIncludeProcessor {
+
+		private final Map<String, String> contents = new ConcurrentHashMap<String, String>();
+
+		private final Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+
+		final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+		private final Map<String, Map<String, List<String>>> callHeaders = new ConcurrentHashMap<String, Map<String, List<String>>>();
+
+		private final List<String> blocking = Collections.synchronizedList(new ArrayList<String>());
+
+		private final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+
+		final Map<String, HttpGet> requests = new ConcurrentHashMap<String, HttpGet>(); // registered in context as in-flight origin calls
+
+		void include(String path, String content, long delay) {
+			contents.put(HOST_URL + path, content);
+			delays.put(HOST_URL + path, delay);
+		}
+
+		void blockingInclude(String path) {
+			blocking.add(HOST_URL + path);
+		}
+
+		boolean awaitCompletion(String url, long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (!completed.contains(url) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			
+			return completed.contains(url);
+		}
+
+		Map<String, List<String>> awaitCall(String url, long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (!callHeaders.containsKey(url) && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			
+			return callHeaders.get(url);
+		}
+
+		@Override
+		protected WebResponse callInclude(String urlStr, Map<String, List<String>> requestHeaders, HttpClient client, RequestContext context, String includeLevel, String includeType) throws FrontCacheException {
+			calls.add(urlStr);
+			callHeaders.put(urlStr, requestHeaders);
+			
+			HttpGet request = new HttpGet(urlStr);
+			requests.put(urlStr, request);
+			if (!requestHeaders.containsKey(FCHeaders.X_FRONTCACHE_ASYNC_INCLUDE))
+				context.addInFlightRequest(request);
+			
+			try {
+				if (blocking.contains(urlStr))
+				{
+					long start = System.currentTimeMillis();
+					while (!request.isAborted() && System.currentTimeMillis() - start < 5000)
+						sleep(10); // interrupt is ignored
+					
+					return null;
+				}
+				
+				Long delay = delays.get(urlStr);
+				if (null != delay && 0 < delay)
+					Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt(); // cancelled on timeout
+				return null;
+			} finally {
+				context.removeInFlightRequest(request);
+				completed.add(urlStr);
+			}
+			
+			String content = contents.get(urlStr);
+			return (null == content) ? null : textResponse(urlStr, content);
+		}
+
+		private static void sleep(long millis) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+
+		@Override
+		protected WebResponse getFallback(RequestContext context, String fallbackSource, String includeURL) {
+			return textResponse(includeURL, FALLBACK);
+		}
+	}
+
+	/**
+	 * records submitted includes (URL -> include level)
+	 */
+	static class RecordingExecutor extends AbstractExecutorService {
+
+		private final ExecutorService pool = Executors.newFixedThreadPool(10);
+
+		final Map<String, String> submitted = new ConcurrentHashMap<String, String>();
+
+		String getLevel(String url) {
+			return submitted.get(url);
+		}
+
+		@Override
+		public <T> Future<T> submit(Callable<T> task) {
+			if (task instanceof ConcurrentIncludeProcessor.IncludeResolutionPlaceholder)
+			{
+				ConcurrentIncludeProcessor.IncludeResolutionPlaceholder inc = (ConcurrentIncludeProcessor.IncludeResolutionPlaceholder) task;
+				submitted.put(inc.includeURL, inc.includeLevel);
+			}
+			return super.submit(task);
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			pool.execute(command);
+		}
+
+		@Override
+		public void shutdown() {
+			pool.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return pool.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return pool.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return pool.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return pool.awaitTermination(timeout, unit);
+		}
+	}
+
+}